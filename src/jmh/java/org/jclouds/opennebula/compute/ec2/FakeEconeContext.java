@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeServiceContext;
+
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+/**
+ * A {@link FakeEconeServer} and a context pointed at it, built with the
+ * {@link Fixtures#unthrottled()} overrides so that the client rate limit does not cap what is
+ * measured. Closing it closes the context, then stops the server.
+ */
+final class FakeEconeContext implements Closeable {
+
+   final FakeEconeServer server;
+   final ComputeServiceContext context;
+   final Injector injector;
+
+   private FakeEconeContext(FakeEconeServer server, ComputeServiceContext context) {
+      this.server = server;
+      this.context = context;
+      this.injector = context.utils().injector();
+   }
+
+   /**
+    * Starts a server answering after {@code latencyMillis} milliseconds, and a context for it.
+    */
+   static FakeEconeContext start(long latencyMillis) throws IOException {
+      return start(new FakeEconeServer().latency(latencyMillis, latencyMillis, TimeUnit.MILLISECONDS),
+               new Properties());
+   }
+
+   /**
+    * Starts {@code server}, and a context for it with {@code overrides} applied over the
+    * unthrottled ones.
+    */
+   static FakeEconeContext start(FakeEconeServer server, Properties overrides, Module... modules) {
+      Properties properties = Fixtures.unthrottled();
+      properties.putAll(overrides);
+      server.start();
+      try {
+         return new FakeEconeContext(server, Fixtures.computeContext(server.getURI(), properties, modules));
+      } catch (RuntimeException e) {
+         server.stop();
+         throw e;
+      }
+   }
+
+   OpenNebulaComputeService compute() {
+      return OpenNebulaComputeService.class.cast(context.getComputeService());
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         context.close();
+      } finally {
+         server.stop();
+      }
+   }
+}
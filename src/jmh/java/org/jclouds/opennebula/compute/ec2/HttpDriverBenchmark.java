@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.Constants;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.rest.config.HttpApiProvider;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+
+/**
+ * Compares the default {@code HttpURLConnection} driver with
+ * {@link PooledOkHttpCommandExecutorServiceModule} on small DescribeInstances calls made from
+ * {@link #THREADS} threads against a {@link FakeEconeServer}.
+ * <p/>
+ * Next to the throughput and latency percentiles, {@link Connections} counters report how many
+ * connections the server saw for how many requests; with the default driver that is roughly one
+ * connection for every request made beyond its five idle connections per host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class HttpDriverBenchmark {
+
+   static final int THREADS = 16;
+
+   @Param({ "default", "pooled" })
+   String driver;
+
+   @Param({ "0", "5" })
+   long latency;
+
+   @Param({ "10" })
+   int inventory;
+
+   private FakeEconeContext econe;
+   private OpenNebulaInstanceApi instanceApi;
+
+   /**
+    * Connections and requests the server saw during the iteration.
+    */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   public static class Connections {
+
+      public int connections;
+      public int requests;
+
+      @Setup(Level.Iteration)
+      public void clear() {
+         connections = 0;
+         requests = 0;
+      }
+
+      @TearDown(Level.Iteration)
+      public void count(HttpDriverBenchmark benchmark, ThreadParams thread) {
+         // counters are summed over the threads, so only one of them reports the server's
+         if (thread.getThreadIndex() == 0) {
+            connections = benchmark.econe.server.connections();
+            requests = benchmark.econe.server.calls().size();
+         }
+      }
+   }
+
+   @Setup
+   public void setup() throws IOException {
+      Properties overrides = new Properties();
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, Integer.toString(THREADS));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, Integer.toString(THREADS));
+      Module[] modules = "pooled".equals(driver) ? new Module[] { new PooledOkHttpCommandExecutorServiceModule() }
+               : new Module[0];
+      econe = FakeEconeContext.start(new FakeEconeServer().latency(latency, latency, TimeUnit.MILLISECONDS),
+               overrides, modules);
+      // the generated api, so that single-flight does not collapse concurrent calls
+      instanceApi = econe.injector.getInstance(Key.get(new TypeLiteral<HttpApiProvider<OpenNebulaComputeEC2Api>>() {
+      })).get().getInstanceApiForRegion(Region.DEFAULT).get();
+   }
+
+   @Setup(Level.Iteration)
+   public void resetCounts() {
+      econe.server.reset();
+      econe.server.launch(econe.server.imageIds().get(0), inventory);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      econe.close();
+   }
+
+   @Benchmark
+   @Threads(THREADS)
+   public int describeInstances(Connections connections) {
+      int count = 0;
+      for (Reservation<? extends RunningInstance> reservation : instanceApi
+               .describeInstancesInRegion(Region.DEFAULT))
+         count += reservation.size();
+      return count;
+   }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.functions.GroupNamingConvention;
+import org.jclouds.ssh.SshKeys;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+/**
+ * Resolves one of {@link #keys} public keys to a key pair from {@link #THREADS} threads against a
+ * {@link FakeEconeServer}, either through one {@link OpenNebulaKeyPairManager} shared for the
+ * whole iteration, as the provider does, or through a new one per call, which checks and imports
+ * the key every time.
+ * <p/>
+ * The server forgets its key pairs before each iteration, so every iteration starts with a burst
+ * of concurrent requests for keys that do not exist yet. The DescribeKeyPairs and ImportKeyPair
+ * calls the server received are reported as {@link Calls} counters; with the shared manager that
+ * is one of each per key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class KeyPairBenchmark {
+
+   static final int THREADS = 16;
+
+   @Param({ "shared", "perCall" })
+   String manager;
+
+   @Param({ "1", "8" })
+   int keys;
+
+   @Param({ "5" })
+   long latency;
+
+   private FakeEconeContext econe;
+   private OpenNebulaComputeEC2Api api;
+   private GroupNamingConvention.Factory namingConvention;
+   private List<String> publicKeys;
+   private volatile OpenNebulaKeyPairManager shared;
+
+   /**
+    * Calls the server received during the iteration.
+    */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   public static class Calls {
+
+      public int describeKeyPairs;
+      public int importKeyPair;
+
+      @Setup(Level.Iteration)
+      public void clear() {
+         describeKeyPairs = 0;
+         importKeyPair = 0;
+      }
+
+      @TearDown(Level.Iteration)
+      public void count(KeyPairBenchmark benchmark, ThreadParams thread) {
+         // counters are summed over the threads, so only one of them reports the server's
+         if (thread.getThreadIndex() == 0) {
+            Multiset<String> calls = benchmark.econe.server.calls();
+            describeKeyPairs = calls.count("DescribeKeyPairs");
+            importKeyPair = calls.count("ImportKeyPair");
+         }
+      }
+   }
+
+   @Setup
+   public void setup() throws IOException {
+      econe = FakeEconeContext.start(latency);
+      api = econe.injector.getInstance(OpenNebulaComputeEC2Api.class);
+      namingConvention = econe.injector.getInstance(GroupNamingConvention.Factory.class);
+      publicKeys = Lists.newArrayListWithCapacity(keys);
+      for (int i = 0; i < keys; i++)
+         publicKeys.add(SshKeys.generate().get("public"));
+   }
+
+   @Setup(Level.Iteration)
+   public void reset() {
+      econe.server.reset();
+      shared = new OpenNebulaKeyPairManager(api, namingConvention);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      econe.close();
+   }
+
+   @Benchmark
+   @Threads(THREADS)
+   public String keyNameFor(Calls calls) {
+      String publicKey = publicKeys.get(ThreadLocalRandom.current().nextInt(keys));
+      OpenNebulaKeyPairManager keyPairs = "shared".equals(manager) ? shared
+               : new OpenNebulaKeyPairManager(api, namingConvention);
+      return keyPairs.keyNameFor(Region.DEFAULT, publicKey);
+   }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures the cost {@link MeteringInvocationHandler} and {@link InMemoryOpenNebulaMetrics} add to
+ * every api call, against a {@link HostApi} that answers without any I/O. The difference between
+ * {@code direct} and {@code metered} is the per-call overhead; the contended variants show how it
+ * grows when many threads record the same action.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+   private HostApi direct;
+   private HostApi metered;
+   private InMemoryOpenNebulaMetrics metrics;
+
+   @Setup
+   public void setup() {
+      direct = new FixedHostApi();
+      metrics = new InMemoryOpenNebulaMetrics(false);
+      metered = MeteringInvocationHandler.metering(HostApi.class, direct, metrics);
+   }
+
+   @Benchmark
+   public List<Host> direct() {
+      return direct.list();
+   }
+
+   @Benchmark
+   public List<Host> metered() {
+      return metered.list();
+   }
+
+   @Benchmark
+   public void record() {
+      metrics.record("onehost:list", 1234567, false);
+   }
+
+   @Benchmark
+   @Threads(8)
+   public List<Host> directContended() {
+      return direct.list();
+   }
+
+   @Benchmark
+   @Threads(8)
+   public List<Host> meteredContended() {
+      return metered.list();
+   }
+
+   private static final class FixedHostApi implements HostApi {
+      private final List<Host> hosts = ImmutableList.of(Host.create(0, "host0", 2, "default",
+               Host.Share.create(1024, 4096, 100, 400, 1)));
+
+      @Override
+      public Host info(int id) {
+         return hosts.get(0);
+      }
+
+      @Override
+      public List<Host> list() {
+         return hosts;
+      }
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.ParseRunningInstancesStreamingTest.REGION;
+import static org.jclouds.opennebula.compute.ec2.ParseRunningInstancesStreamingTest.describeInstancesRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.ec2.compute.functions.RunningInstanceToNodeMetadata;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.xml.DescribeInstancesResponseHandler;
+import org.jclouds.http.functions.ParseSax;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Injector;
+
+/**
+ * Measures parsing a DescribeInstancesResponse and mapping every instance to {@link NodeMetadata}.
+ * The image and zone catalogs used by the mapping are served by a {@link FixtureEndpoint}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeMappingBenchmark {
+
+   @Param({ "10", "1000", "100000" })
+   int items;
+
+   private FixtureEndpoint endpoint;
+   private Injector injector;
+   private ParseSax.Factory sax;
+   private ParseRunningInstancesStreaming streaming;
+   private RunningInstanceToNodeMetadata toNodeMetadata;
+   private GeneratedHttpRequest describeInstances;
+   private byte[] instances;
+
+   @Setup
+   public void setup() throws IOException, NoSuchMethodException {
+      endpoint = new FixtureEndpoint(ImmutableMap.of(
+               "DescribeImages", Fixtures.bytes(Fixtures.IMAGES),
+               "DescribeAvailabilityZones", Fixtures.bytes(Fixtures.AVAILABILITY_ZONES),
+               "DescribeInstances", Fixtures.bytes(Fixtures.INSTANCES))).start();
+      injector = Fixtures.injector(endpoint.getURI());
+      sax = injector.getInstance(ParseSax.Factory.class);
+      streaming = injector.getInstance(ParseRunningInstancesStreaming.class);
+      toNodeMetadata = injector.getInstance(RunningInstanceToNodeMetadata.class);
+      describeInstances = describeInstancesRequest();
+      instances = Fixtures.scaledInstances(items);
+
+      // resolve the image and location catalogs before measuring
+      for (RunningInstance instance : streaming.stream(new ByteArrayInputStream(instances), REGION))
+         toNodeMetadata.apply(instance);
+   }
+
+   @TearDown
+   public void tearDown() {
+      endpoint.stop();
+   }
+
+   @Benchmark
+   public void parseSaxThenMap(Blackhole blackhole) {
+      DescribeInstancesResponseHandler handler = injector.getInstance(DescribeInstancesResponseHandler.class);
+      Set<Reservation<? extends RunningInstance>> reservations = sax.create(handler.setContext(describeInstances))
+               .parse(new ByteArrayInputStream(instances));
+      for (Reservation<? extends RunningInstance> reservation : reservations) {
+         for (RunningInstance instance : reservation)
+            blackhole.consume(toNodeMetadata.apply(instance));
+      }
+   }
+
+   @Benchmark
+   public void streamThenMap(Blackhole blackhole) {
+      for (RunningInstance instance : streaming.stream(new ByteArrayInputStream(instances), REGION))
+         blackhole.consume(toNodeMetadata.apply(instance));
+   }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MAX_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MIN_INTERVAL;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.ComputeMetadata;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.HardwareBuilder;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.ImageBuilder;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.OperatingSystem;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.internal.TemplateImpl;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * End-to-end load test of {@link OpenNebulaComputeService} against a {@link FakeEconeServer},
+ * through the compute view that {@code ContextBuilder.buildView} returns.
+ * <p/>
+ * Reports throughput and, through {@link Mode#SampleTime}, the latency percentiles of provisioning
+ * groups of nodes from several threads at once, and of listing an inventory of {@link #inventory}
+ * nodes, either whole or only the {@link #nodes} nodes of one group, with the group filter pushed
+ * down to the server or applied on the client. Listing is paginated when {@link #pageSize} is set.
+ * The server answers after {@link #latency} milliseconds on average, fails
+ * {@link #errorRate} of all requests with a retryable error, and boots instances in 100
+ * milliseconds. Polling intervals are shortened to match, and the client rate limit is raised so
+ * that it does not cap the measured throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ProvisioningLoadBenchmark {
+
+   static final String GROUP = "load";
+   static final String LISTED_GROUP = "listed";
+
+   /**
+    * Same as {@link OpenNebulaNodePredicates#inGroup}, but opaque to the compute service.
+    */
+   static final Predicate<ComputeMetadata> IN_LISTED_GROUP = new Predicate<ComputeMetadata>() {
+      @Override
+      public boolean apply(ComputeMetadata input) {
+         return input instanceof NodeMetadata && LISTED_GROUP.equals(NodeMetadata.class.cast(input).getGroup());
+      }
+   };
+
+   @Param({ "0", "20" })
+   long latency;
+
+   @Param({ "0", "0.01" })
+   double errorRate;
+
+   @Param({ "10" })
+   int nodes;
+
+   @Param({ "1000" })
+   int inventory;
+
+   @Param({ "0", "100" })
+   int pageSize;
+
+   private FakeEconeContext econe;
+   private FakeEconeServer server;
+   private OpenNebulaComputeService compute;
+   private Template template;
+   private String imageId;
+
+   @Setup
+   public void setup() throws IOException {
+      Properties overrides = new Properties();
+      overrides.setProperty(PROPERTY_POLLER_MIN_INTERVAL, "50");
+      overrides.setProperty(PROPERTY_POLLER_MAX_INTERVAL, "500");
+      overrides.setProperty(PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE, Integer.toString(pageSize));
+      econe = FakeEconeContext.start(new FakeEconeServer()
+               .latency(latency / 2, latency * 3 / 2, TimeUnit.MILLISECONDS)
+               .transition(100, TimeUnit.MILLISECONDS)
+               .errorRate(errorRate), overrides);
+      server = econe.server;
+      compute = econe.compute();
+      imageId = server.imageIds().get(0);
+      template = template(imageId);
+      seed();
+
+      // resolve the image and location catalogs before measuring
+      compute.listNodes();
+   }
+
+   @TearDown(Level.Iteration)
+   public void seed() {
+      server.reset();
+      server.launch(imageId, inventory - nodes);
+      server.launch(imageId, nodes, ImmutableMap.of(GROUP_TAG, LISTED_GROUP));
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      econe.close();
+   }
+
+   @Benchmark
+   @Threads(4)
+   public void createNodesInGroup(Blackhole blackhole) throws RunNodesException {
+      for (NodeMetadata node : compute.createNodesInGroup(GROUP, nodes, template))
+         blackhole.consume(node);
+   }
+
+   @Benchmark
+   public void listNodes(Blackhole blackhole) {
+      for (ComputeMetadata node : compute.listNodes())
+         blackhole.consume(node);
+   }
+
+   @Benchmark
+   public void listNodesLazily(Blackhole blackhole) {
+      for (NodeMetadata node : compute.listNodesLazily())
+         blackhole.consume(node);
+   }
+
+   @Benchmark
+   public void listNodesInGroupPushedDown(Blackhole blackhole) {
+      for (ComputeMetadata node : compute.listNodesDetailsMatching(OpenNebulaNodePredicates
+               .<ComputeMetadata> inGroup(LISTED_GROUP)))
+         blackhole.consume(node);
+   }
+
+   @Benchmark
+   public void listNodesInGroupOnClient(Blackhole blackhole) {
+      for (ComputeMetadata node : compute.listNodesDetailsMatching(IN_LISTED_GROUP))
+         blackhole.consume(node);
+   }
+
+   private static Template template(String imageId) {
+      Location region = new LocationBuilder().scope(LocationScope.REGION).id(Region.DEFAULT)
+               .description(Region.DEFAULT).build();
+      Image image = new ImageBuilder().id(Region.DEFAULT + "/" + imageId).providerId(imageId).name(imageId)
+               .location(region).operatingSystem(OperatingSystem.builder().description(imageId).build())
+               .status(Image.Status.AVAILABLE).build();
+      Hardware hardware = new HardwareBuilder().ids("m1.small").location(region).build();
+      return new TemplateImpl(image, hardware, region, new EC2TemplateOptions());
+   }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.ParseRunningInstancesStreamingTest.REGION;
+import static org.jclouds.opennebula.compute.ec2.ParseRunningInstancesStreamingTest.describeInstancesRequest;
+import static org.jclouds.opennebula.compute.ec2.ParseRunningInstancesStreamingTest.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.ec2.domain.AvailabilityZoneInfo;
+import org.jclouds.ec2.domain.Image;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.domain.Volume;
+import org.jclouds.ec2.features.AMIApi;
+import org.jclouds.ec2.features.AvailabilityZoneAndRegionApi;
+import org.jclouds.ec2.features.ElasticBlockStoreApi;
+import org.jclouds.ec2.options.DescribeAvailabilityZonesOptions;
+import org.jclouds.ec2.options.DescribeImagesOptions;
+import org.jclouds.ec2.xml.DescribeAvailabilityZonesResponseHandler;
+import org.jclouds.ec2.xml.DescribeImagesResponseHandler;
+import org.jclouds.ec2.xml.DescribeInstancesResponseHandler;
+import org.jclouds.ec2.xml.DescribeVolumesResponseHandler;
+import org.jclouds.http.functions.ParseSax;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.inject.Injector;
+
+/**
+ * Measures how fast the Describe* fixtures are parsed, with the stock SAX handlers and with the
+ * streaming instance parser. Run with {@code -prof gc} to also get allocation rates.
+ * <p/>
+ * {@link ParseRunningInstancesStreamingTest} checks that both return the same instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+   @Param({ "10", "1000", "100000" })
+   int items;
+
+   private Injector injector;
+   private ParseSax.Factory sax;
+   private ParseRunningInstancesStreaming streaming;
+
+   private byte[] instances;
+   private byte[] images;
+   private byte[] volumes;
+   private byte[] zones;
+
+   private GeneratedHttpRequest describeInstances;
+   private GeneratedHttpRequest describeImages;
+   private GeneratedHttpRequest describeVolumes;
+   private GeneratedHttpRequest describeZones;
+
+   @Setup
+   public void setup() throws IOException, NoSuchMethodException {
+      injector = Fixtures.injector(URI.create("http://localhost:4567/"));
+      sax = injector.getInstance(ParseSax.Factory.class);
+      streaming = injector.getInstance(ParseRunningInstancesStreaming.class);
+
+      instances = Fixtures.scaledInstances(items);
+      images = Fixtures.scaledImages(items);
+      volumes = Fixtures.scaledVolumes(items);
+      zones = Fixtures.scaledAvailabilityZones(items);
+
+      describeInstances = describeInstancesRequest();
+      describeImages = request(AMIApi.class.getMethod("describeImagesInRegion", String.class,
+               DescribeImagesOptions[].class));
+      describeVolumes = request(ElasticBlockStoreApi.class.getMethod("describeVolumesInRegion", String.class,
+               String[].class));
+      describeZones = request(AvailabilityZoneAndRegionApi.class.getMethod("describeAvailabilityZonesInRegion",
+               String.class, DescribeAvailabilityZonesOptions[].class));
+   }
+
+   @Benchmark
+   public Set<Reservation<? extends RunningInstance>> describeInstancesSax() {
+      DescribeInstancesResponseHandler handler = injector.getInstance(DescribeInstancesResponseHandler.class);
+      return sax.create(handler.setContext(describeInstances)).parse(new ByteArrayInputStream(instances));
+   }
+
+   @Benchmark
+   public void describeInstancesStreaming(Blackhole blackhole) {
+      for (RunningInstance instance : streaming.stream(new ByteArrayInputStream(instances), REGION))
+         blackhole.consume(instance);
+   }
+
+   @Benchmark
+   public Set<Image> describeImages() {
+      DescribeImagesResponseHandler handler = injector.getInstance(DescribeImagesResponseHandler.class);
+      return sax.create(handler.setContext(describeImages)).parse(new ByteArrayInputStream(images));
+   }
+
+   @Benchmark
+   public Set<Volume> describeVolumes() {
+      DescribeVolumesResponseHandler handler = injector.getInstance(DescribeVolumesResponseHandler.class);
+      return sax.create(handler.setContext(describeVolumes)).parse(new ByteArrayInputStream(volumes));
+   }
+
+   @Benchmark
+   public Set<AvailabilityZoneInfo> describeAvailabilityZones() {
+      DescribeAvailabilityZonesResponseHandler handler = injector
+               .getInstance(DescribeAvailabilityZonesResponseHandler.class);
+      return sax.create(handler.setContext(describeZones)).parse(new ByteArrayInputStream(zones));
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_KEEP_ALIVE;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.domain.ComputeMetadata;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.Statements;
+import org.jclouds.sshj.config.SshjSshClientModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Runs scripts on the nodes of a {@link FakeEconeServer} over a {@link FakeSshServer}, through
+ * {@link OpenNebulaComputeService#runScriptOnNodesMatching} on the {@link #nodes} nodes of a group
+ * and {@link OpenNebulaComputeService#submitScriptOnNode} on one of them, with connections from
+ * the {@link OpenNebulaSshClientPool}.
+ * <p/>
+ * {@link OpenNebulaScriptRunnerTest} checks how the pool leases, releases, discards and sweeps
+ * those connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ScriptRunnerBenchmark {
+
+   static final String GROUP = "scripts";
+
+   static final Statement HELLO = Statements.exec("hello");
+
+   @Param({ "10" })
+   int nodes;
+
+   private FakeEconeContext econe;
+   private FakeSshServer ssh;
+   private RunScriptOptions options;
+   private OpenNebulaComputeService compute;
+   private String nodeId;
+
+   @Setup
+   public void setup() throws Exception {
+      ssh = new FakeSshServer().start();
+      options = RunScriptOptions.Builder.runAsRoot(false).blockOnPort(ssh.getPort(), 10);
+      Properties overrides = new Properties();
+      overrides.setProperty(PROPERTY_SSH_POOL_KEEP_ALIVE, "60000");
+      econe = FakeEconeContext.start(new FakeEconeServer().address("127.0.0.1"), overrides,
+               new SshjSshClientModule());
+      econe.server.launch(econe.server.imageIds().get(0), nodes, ImmutableMap.of(GROUP_TAG, GROUP));
+
+      compute = econe.compute();
+      nodeId = login(econe.context, GROUP).keySet().iterator().next();
+      // open the pooled connections before measuring
+      compute.runScriptOnNodesMatching(OpenNebulaNodePredicates.<NodeMetadata> inGroup(GROUP), HELLO, options);
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      econe.close();
+      ssh.stop();
+   }
+
+   @Benchmark
+   public Map<? extends NodeMetadata, ExecResponse> runScriptOnNodesMatching() throws RunScriptOnNodesException {
+      return compute.runScriptOnNodesMatching(OpenNebulaNodePredicates.<NodeMetadata> inGroup(GROUP), HELLO, options);
+   }
+
+   @Benchmark
+   public ExecResponse submitScriptOnNode() throws InterruptedException, ExecutionException {
+      return compute.submitScriptOnNode(nodeId, HELLO, options).get();
+   }
+
+   /**
+    * Stores a login of its own for each node of {@code group}, so that the SSH server can tell the
+    * nodes apart, and returns the login user of each node id, in id order.
+    */
+   private static Map<String, String> login(ComputeServiceContext context, String group) {
+      Set<String> ids = Sets.newTreeSet();
+      for (ComputeMetadata node : context.getComputeService().listNodesDetailsMatching(
+               OpenNebulaNodePredicates.<ComputeMetadata> inGroup(group)))
+         ids.add(node.getId());
+      Map<String, String> users = Maps.newLinkedHashMap();
+      for (String id : ids) {
+         String user = group + "-" + users.size();
+         context.utils().credentialStore().put("node#" + id,
+                  LoginCredentials.builder().user(user).password(FakeSshServer.PASSWORD).build());
+         users.put(id, user);
+      }
+      return users;
+   }
+}
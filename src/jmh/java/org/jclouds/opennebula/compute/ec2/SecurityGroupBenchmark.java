@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.domain.SecurityGroup;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.ec2.features.SecurityGroupApi;
+import org.jclouds.net.domain.IpPermission;
+import org.jclouds.net.domain.IpProtocol;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+/**
+ * Sets up a security group with {@link #ports} ports open to two CIDR blocks each against a
+ * {@link FakeEconeServer}: through the stock {@link SecurityGroupApi}, one rule per call, or
+ * through {@link OpenNebulaSecurityGroupExtension}, and again through the extension on a group that
+ * already has those rules.
+ * <p/>
+ * The calls per action the server received are reported as {@link Calls} counters, so that the
+ * stock path shows one AuthorizeSecurityGroupIngress per rule, the extension a single one per
+ * group, and re-applying none at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SecurityGroupBenchmark {
+
+   static final List<String> CIDR_BLOCKS = ImmutableList.of("0.0.0.0/0", "10.0.0.0/8");
+
+   @Param({ "10" })
+   int ports;
+
+   @Param({ "5" })
+   long latency;
+
+   private FakeEconeContext econe;
+   private SecurityGroupApi securityGroupApi;
+   private OpenNebulaSecurityGroupExtension extension;
+   private Location region;
+   private List<IpPermission> rules;
+   private SecurityGroup configured;
+   private Multiset<String> callsBefore;
+   private final AtomicInteger groups = new AtomicInteger();
+
+   /**
+    * Calls the server received during the iteration.
+    */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   public static class Calls {
+
+      public int createSecurityGroup;
+      public int describeSecurityGroups;
+      public int authorizeSecurityGroupIngress;
+      public int revokeSecurityGroupIngress;
+
+      @Setup(Level.Iteration)
+      public void clear() {
+         createSecurityGroup = 0;
+         describeSecurityGroups = 0;
+         authorizeSecurityGroupIngress = 0;
+         revokeSecurityGroupIngress = 0;
+      }
+
+      @TearDown(Level.Iteration)
+      public void count(SecurityGroupBenchmark benchmark, ThreadParams thread) {
+         // counters are summed over the threads, so only one of them reports the server's
+         if (thread.getThreadIndex() == 0) {
+            Multiset<String> calls = benchmark.econe.server.calls();
+            Multiset<String> before = benchmark.callsBefore;
+            createSecurityGroup = calls.count("CreateSecurityGroup") - before.count("CreateSecurityGroup");
+            describeSecurityGroups = calls.count("DescribeSecurityGroups") - before.count("DescribeSecurityGroups");
+            authorizeSecurityGroupIngress = calls.count("AuthorizeSecurityGroupIngress")
+                     - before.count("AuthorizeSecurityGroupIngress");
+            revokeSecurityGroupIngress = calls.count("RevokeSecurityGroupIngress")
+                     - before.count("RevokeSecurityGroupIngress");
+         }
+      }
+   }
+
+   @Setup
+   public void setup() throws IOException {
+      econe = FakeEconeContext.start(latency);
+      securityGroupApi = econe.injector.getInstance(OpenNebulaComputeEC2Api.class).getSecurityGroupApiForRegion(
+               Region.DEFAULT).get();
+      extension = econe.injector.getInstance(OpenNebulaSecurityGroupExtension.class);
+      region = new LocationBuilder().scope(LocationScope.REGION).id(Region.DEFAULT).description(Region.DEFAULT)
+               .build();
+      rules = Lists.newArrayListWithCapacity(ports);
+      for (int port = 8000; port < 8000 + ports; port++)
+         rules.add(IpPermission.builder().ipProtocol(IpProtocol.TCP).fromPort(port).toPort(port)
+                  .cidrBlocks(CIDR_BLOCKS).build());
+      configured = extension.setIpPermissions(extension.createSecurityGroup("configured", region), rules);
+   }
+
+   @Setup(Level.Iteration)
+   public void countCalls() {
+      callsBefore = econe.server.calls();
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      econe.close();
+   }
+
+   @Benchmark
+   public String authorizePerRule(Calls calls) {
+      String name = "per-rule-" + groups.incrementAndGet();
+      securityGroupApi.createSecurityGroupInRegion(Region.DEFAULT, name, name);
+      for (IpPermission rule : rules) {
+         for (String cidrBlock : rule.getCidrBlocks())
+            securityGroupApi.authorizeSecurityGroupIngressInRegion(Region.DEFAULT, name, rule.getIpProtocol(),
+                     rule.getFromPort(), rule.getToPort(), cidrBlock);
+      }
+      return name;
+   }
+
+   @Benchmark
+   public SecurityGroup setIpPermissions(Calls calls) {
+      String name = "diffed-" + groups.incrementAndGet();
+      return extension.setIpPermissions(extension.createSecurityGroup(name, region), rules);
+   }
+
+   @Benchmark
+   public SecurityGroup setUnchangedIpPermissions(Calls calls) {
+      return extension.setIpPermissions(configured, rules);
+   }
+}
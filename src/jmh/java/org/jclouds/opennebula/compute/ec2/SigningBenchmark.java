@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaFormSignerTest.DESCRIBE_INSTANCES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaFormSignerTest.ENDPOINT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaFormSignerTest.RUN_INSTANCES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaFormSignerTest.request;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.aws.filters.FormSigner;
+import org.jclouds.aws.filters.FormSigner.FormSignerV2;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.rest.annotations.ApiVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Compares {@link OpenNebulaFormSigner} with the stock {@link FormSignerV2} on a small
+ * DescribeInstances form and on a RunInstances form carrying tags and 4 KB of user data. Run with
+ * {@code -prof gc} (the default of the benchmarks profile) for the allocation rate per operation.
+ * <p/>
+ * {@link OpenNebulaFormSignerTest} checks that both sign these forms alike.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigningBenchmark {
+
+   @Param({ "describe", "run" })
+   String form;
+
+   private Injector injector;
+   private FormSigner stock;
+   private FormSigner pooled;
+   private String payload;
+
+   @Setup
+   public void setup() {
+      injector = Fixtures.injector(ENDPOINT);
+      stock = injector.getInstance(FormSignerV2.class);
+      pooled = injector.getInstance(OpenNebulaFormSigner.class);
+      // forms carry the configured version, as the generated requests do
+      String version = "&Version=" + injector.getInstance(Key.get(String.class, ApiVersion.class));
+      payload = ("run".equals(form) ? RUN_INSTANCES : DESCRIBE_INSTANCES) + version;
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      injector.getInstance(Closer.class).close();
+   }
+
+   @Benchmark
+   public HttpRequest stock() {
+      return stock.filter(request(payload));
+   }
+
+   @Benchmark
+   public HttpRequest pooled() {
+      return pooled.filter(request(payload));
+   }
+
+   @Benchmark
+   @Threads(8)
+   public HttpRequest stockContended() {
+      return stock.filter(request(payload));
+   }
+
+   @Benchmark
+   @Threads(8)
+   public HttpRequest pooledContended() {
+      return pooled.filter(request(payload));
+   }
+}
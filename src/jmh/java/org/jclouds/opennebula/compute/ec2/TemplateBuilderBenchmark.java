@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.OsFamily;
+import org.jclouds.compute.domain.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares resolving a template through {@link OpenNebulaTemplateBuilder} with the generic
+ * approach of filtering and sorting every image and hardware combination of the catalog, for
+ * catalogs of {@link #images} images served by a {@link FixtureEndpoint}. Both pick the smallest
+ * hardware with at least 1 GB of RAM and the newest 64-bit Ubuntu image it supports.
+ * <p/>
+ * {@link OpenNebulaTemplateBuilderTest} checks that both resolve the same template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBuilderBenchmark {
+
+   @Param({ "100", "10000" })
+   int images;
+
+   private FixtureEndpoint endpoint;
+   private ComputeServiceContext context;
+   private OpenNebulaComputeService compute;
+   private OpenNebulaCatalogCache catalog;
+
+   @Setup
+   public void setup() throws IOException {
+      endpoint = new FixtureEndpoint(ImmutableMap.of(
+               "DescribeImages", Fixtures.distinctImages(images),
+               "DescribeAvailabilityZones", Fixtures.bytes(Fixtures.AVAILABILITY_ZONES))).start();
+      context = Fixtures.computeContext(endpoint.getURI(), new Properties());
+      compute = OpenNebulaComputeService.class.cast(context.getComputeService());
+      catalog = context.utils().injector().getInstance(OpenNebulaCatalogCache.class);
+
+      // load the catalogs and build the indexes before measuring
+      indexed();
+   }
+
+   @TearDown
+   public void tearDown() {
+      context.close();
+      endpoint.stop();
+   }
+
+   @Benchmark
+   public Template indexed() {
+      return compute.templateBuilder().osFamily(OsFamily.UBUNTU).os64Bit(true).minRam(1024).build();
+   }
+
+   @Benchmark
+   public Template scan() {
+      return OpenNebulaTemplateBuilderTest.scan(catalog);
+   }
+}
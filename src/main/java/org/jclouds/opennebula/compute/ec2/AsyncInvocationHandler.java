@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.jclouds.rest.annotations.Delegate;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.AbstractInvocationHandler;
+import com.google.common.reflect.Reflection;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Implements a non-blocking view of an api by running, on an executor, the blocking method of the
+ * same name and parameters declared by one of the apis returned by its parameterless
+ * {@link Delegate} methods. The region of such calls is given by their own endpoint parameter, so
+ * the region-less delegates serve every region.
+ * <p>
+ * Each call holds an executor thread until its response is parsed, so the executor bounds the
+ * number of requests in flight; further calls wait in its queue.
+ */
+public final class AsyncInvocationHandler extends AbstractInvocationHandler {
+
+   /**
+    * Returns an implementation of {@code type}, whose methods return a {@link ListenableFuture} of
+    * what the matching blocking method of an api delegated to by {@code api} returns, run on
+    * {@code executor}.
+    * 
+    * @throws IllegalArgumentException
+    *            if a method of {@code type} has no blocking counterpart
+    */
+   public static <A, B> A async(Class<A> type, Class<B> apiType, B api, ListeningExecutorService executor) {
+      return Reflection.newProxy(type, new AsyncInvocationHandler(type, features(apiType, api), executor));
+   }
+
+   private final Map<Method, Call> calls;
+   private final ListeningExecutorService executor;
+
+   private AsyncInvocationHandler(Class<?> type, List<Object> features, ListeningExecutorService executor) {
+      this.executor = checkNotNull(executor, "executor");
+      ImmutableMap.Builder<Method, Call> calls = ImmutableMap.builder();
+      for (Method method : type.getMethods()) {
+         checkArgument(method.getReturnType() == ListenableFuture.class, "%s does not return a future", method);
+         calls.put(method, blocking(method, features));
+      }
+      this.calls = calls.build();
+   }
+
+   @Override
+   protected Object handleInvocation(Object proxy, Method method, final Object[] args) {
+      final Call call = calls.get(method);
+      return executor.submit(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            try {
+               return call.method.invoke(call.api, args);
+            } catch (InvocationTargetException e) {
+               Throwables.propagateIfPossible(e.getCause(), Exception.class);
+               throw e;
+            }
+         }
+      });
+   }
+
+   private static List<Object> features(Class<?> apiType, Object api) {
+      checkNotNull(api, "api");
+      ImmutableList.Builder<Object> features = ImmutableList.builder();
+      for (Method method : apiType.getMethods()) {
+         if (!method.isAnnotationPresent(Delegate.class) || method.getParameterTypes().length > 0)
+            continue;
+         Object feature = invoke(method, api);
+         if (feature instanceof Optional)
+            feature = ((Optional<?>) feature).orNull();
+         if (feature != null)
+            features.add(feature);
+      }
+      return features.build();
+   }
+
+   private static Call blocking(Method method, List<Object> features) {
+      for (Object feature : features) {
+         for (Class<?> featureType : feature.getClass().getInterfaces()) {
+            try {
+               return new Call(feature, featureType.getMethod(method.getName(), method.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+               continue;
+            }
+         }
+      }
+      throw new IllegalArgumentException(String.format("no blocking method for %s", method));
+   }
+
+   private static Object invoke(Method method, Object api) {
+      try {
+         return method.invoke(api);
+      } catch (InvocationTargetException e) {
+         throw Throwables.propagate(e.getCause());
+      } catch (IllegalAccessException e) {
+         throw Throwables.propagate(e);
+      }
+   }
+
+   private static final class Call {
+      private final Object api;
+      private final Method method;
+
+      private Call(Object api, Method method) {
+         this.api = api;
+         this.method = method;
+      }
+   }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.EC2Api;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.features.InstanceApi;
+import org.jclouds.logging.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Describes instances by id, sending at most
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE} ids per
+ * DescribeInstances call.
+ * <p/>
+ * EC2 answers {@code InvalidInstanceID.NotFound} for the whole call as soon as one of its ids is
+ * unknown, for example because the instance was purged or is not visible yet, and
+ * {@link InstanceApi#describeInstancesInRegion} turns that error into an empty result. A chunk of
+ * several ids that comes back empty is therefore split in halves that are described again, so
+ * that only the unknown ids are missing from the result.
+ */
+@Singleton
+public class DescribeInstancesInChunks {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final EC2Api api;
+   private final int chunkSize;
+
+   @Inject
+   DescribeInstancesInChunks(EC2Api api, @Named(PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE) int chunkSize) {
+      this.api = checkNotNull(api, "api");
+      checkArgument(chunkSize > 0, "%s must be positive", PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE);
+      this.chunkSize = chunkSize;
+   }
+
+   /**
+    * Describes the given slash-encoded {@code region/instanceId} handles, grouped by region.
+    */
+   public List<RunningInstance> byHandles(Iterable<String> handles) {
+      Multimap<String, String> idsByRegion = LinkedHashMultimap.create();
+      for (String handle : handles) {
+         String[] parts = parseHandle(handle);
+         idsByRegion.put(parts[0], parts[1]);
+      }
+      ImmutableList.Builder<RunningInstance> instances = ImmutableList.builder();
+      for (Map.Entry<String, Collection<String>> entry : idsByRegion.asMap().entrySet())
+         instances.addAll(inRegion(entry.getKey(), entry.getValue()));
+      return instances.build();
+   }
+
+   /**
+    * Describes the given instances of a region, issuing one DescribeInstances call per chunk of
+    * ids, plus the calls needed to isolate unknown ids. Unknown ids are left out of the result. An
+    * empty set of ids issues no call at all, as DescribeInstances would otherwise return every
+    * instance of the region.
+    */
+   public List<RunningInstance> inRegion(String region, Iterable<String> instanceIds) {
+      InstanceApi instanceApi = api.getInstanceApiForRegion(region).get();
+      ImmutableList.Builder<RunningInstance> instances = ImmutableList.builder();
+      for (List<String> chunk : Iterables.partition(instanceIds, chunkSize))
+         describe(instanceApi, region, chunk, instances);
+      return instances.build();
+   }
+
+   private void describe(InstanceApi instanceApi, String region, List<String> ids,
+            ImmutableList.Builder<RunningInstance> instances) {
+      logger.trace(">> describing %d instances in region(%s)", ids.size(), region);
+      boolean found = false;
+      for (Reservation<? extends RunningInstance> reservation : instanceApi.describeInstancesInRegion(region,
+               ids.toArray(new String[ids.size()]))) {
+         instances.addAll(reservation);
+         found |= !reservation.isEmpty();
+      }
+      if (found || ids.size() == 1)
+         return;
+      logger.debug("<< no instance found among %d ids in region(%s), splitting", ids.size(), region);
+      int half = ids.size() / 2;
+      describe(instanceApi, region, ids.subList(0, half), instances);
+      describe(instanceApi, region, ids.subList(half, ids.size()), instances);
+   }
+}
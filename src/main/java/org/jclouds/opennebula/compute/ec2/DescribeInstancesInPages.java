@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.logging.Logger;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Multimap;
+
+/**
+ * Lists the instances of a region lazily, one DescribeInstances page of
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE} instances at a time.
+ * The next page is only requested once the caller has iterated the previous one, so the first
+ * instances are available after a single small call and at most one page is being read at a
+ * time.
+ * <p/>
+ * A server that ignores {@code MaxResults} answers with every instance and no {@code nextToken};
+ * that response is then streamed like an unpaginated one. With a page size of 0 each region is
+ * listed with a single call.
+ * <p/>
+ * Iterators of the returned iterables are {@link Closeable}: closing one releases the page being
+ * read, which callers that may stop iterating early must do.
+ */
+@Singleton
+public class DescribeInstancesInPages {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaComputeEC2Api api;
+   private final int pageSize;
+
+   @Inject
+   DescribeInstancesInPages(OpenNebulaComputeEC2Api api,
+            @Named(PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE) int pageSize) {
+      this.api = checkNotNull(api, "api");
+      checkArgument(pageSize >= 0, "%s must not be negative", PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE);
+      this.pageSize = pageSize;
+   }
+
+   /**
+    * Returns a single-use iterable over the instances in {@code region} matching {@code filter},
+    * which may be empty.
+    */
+   public FluentIterable<RunningInstance> inRegion(final String region, final Multimap<String, String> filter) {
+      checkNotNull(filter, "filter");
+      if (pageSize == 0) {
+         return filter.isEmpty() ? api.getInstanceApiForRegion(region).get().streamInstancesInRegion(region) : api
+                  .getInstanceApiForRegion(region).get().streamInstancesInRegionWithFilter(region, filter);
+      }
+      return new FluentIterable<RunningInstance>() {
+         @Override
+         public Iterator<RunningInstance> iterator() {
+            return new Pages(region, filter);
+         }
+      };
+   }
+
+   private final class Pages extends AbstractIterator<RunningInstance> implements Closeable {
+      private final String region;
+      private final Multimap<String, String> filter;
+      private volatile StreamedInstances page;
+      private volatile boolean closed;
+      private Iterator<RunningInstance> instances;
+
+      private Pages(String region, Multimap<String, String> filter) {
+         this.region = region;
+         this.filter = filter;
+      }
+
+      @Override
+      protected RunningInstance computeNext() {
+         if (page == null)
+            next(null);
+         while (!instances.hasNext()) {
+            String nextToken = page.getNextToken();
+            if (nextToken == null)
+               return endOfData();
+            next(nextToken);
+         }
+         return instances.next();
+      }
+
+      private void next(String nextToken) {
+         checkState(!closed, "listing of region(%s) was closed", region);
+         page = page(region, filter, nextToken);
+         instances = page.iterator();
+         // closed while the page was being requested
+         if (closed)
+            page.close();
+      }
+
+      @Override
+      public void close() {
+         closed = true;
+         StreamedInstances current = page;
+         if (current != null)
+            current.close();
+      }
+   }
+
+   private StreamedInstances page(String region, Multimap<String, String> filter, String nextToken) {
+      logger.trace(">> describing instances in region(%s) from page(%s)", region, nextToken);
+      DescribeInstancesPageOptions options = DescribeInstancesPageOptions.Builder.maxResults(pageSize).filter(filter);
+      if (nextToken != null)
+         options.nextToken(nextToken);
+      return api.getInstanceApiForRegion(region).get().streamInstancesPageInRegion(region, options);
+   }
+}
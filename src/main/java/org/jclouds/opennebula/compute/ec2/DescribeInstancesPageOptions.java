@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jclouds.ec2.options.internal.BaseEC2RequestOptions;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * Contains options supported in the form API for a paginated DescribeInstances operation.
+ * <p/>
+ * <h2>Usage</h2> The recommended way to instantiate a DescribeInstancesPageOptions object is to
+ * statically import DescribeInstancesPageOptions.Builder.* and invoke a static creation method
+ * followed by an instance mutator (if needed):
+ * <p/>
+ * <code>
+ * import static org.jclouds.opennebula.compute.ec2.DescribeInstancesPageOptions.Builder.*
+ * <p/>
+ * OpenNebulaComputeEC2Api connection = // get connection
+ * StreamedInstances page = connection.getInstanceApi().get().streamInstancesPageInRegion(null, maxResults(100).nextToken(token));
+ * <code>
+ */
+public class DescribeInstancesPageOptions extends BaseEC2RequestOptions {
+
+   /**
+    * Maximum number of instances returned in the page.
+    */
+   public DescribeInstancesPageOptions maxResults(int maxResults) {
+      checkArgument(maxResults > 0, "maxResults must be positive");
+      formParameters.put("MaxResults", String.valueOf(maxResults));
+      return this;
+   }
+
+   /**
+    * Token of the page to return, from {@link StreamedInstances#getNextToken()} of the previous one.
+    */
+   public DescribeInstancesPageOptions nextToken(String nextToken) {
+      formParameters.put("NextToken", checkNotNull(nextToken, "nextToken"));
+      return this;
+   }
+
+   /**
+    * Returns only the instances matching every filter; values of the same name are alternatives.
+    */
+   public DescribeInstancesPageOptions filter(Multimap<String, String> filter) {
+      int index = 1;
+      for (Map.Entry<String, Collection<String>> entry : filter.asMap().entrySet()) {
+         formParameters.put("Filter." + index + ".Name", entry.getKey());
+         int valueIndex = 1;
+         for (String value : entry.getValue())
+            formParameters.put("Filter." + index + ".Value." + valueIndex++, value);
+         index++;
+      }
+      return this;
+   }
+
+   public static class Builder {
+
+      /**
+       * @see DescribeInstancesPageOptions#maxResults(int)
+       */
+      public static DescribeInstancesPageOptions maxResults(int maxResults) {
+         DescribeInstancesPageOptions options = new DescribeInstancesPageOptions();
+         return options.maxResults(maxResults);
+      }
+
+      /**
+       * @see DescribeInstancesPageOptions#filter(Multimap)
+       */
+      public static DescribeInstancesPageOptions filter(Multimap<String, String> filter) {
+         DescribeInstancesPageOptions options = new DescribeInstancesPageOptions();
+         return options.filter(filter);
+      }
+   }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * An instance of a DescribeInstancesResponse, together with the attributes {@link RunningInstance}
+ * has no field for: those of its reservation, and those the stock EC2 api only models for AWS.
+ */
+public final class DescribedInstance {
+
+   private final RunningInstance instance;
+   private final String reservationId;
+   private final String ownerId;
+   private final String spotInstanceRequestId;
+   private final String iamInstanceProfileArn;
+   private final String iamInstanceProfileId;
+   private final String monitoringState;
+
+   DescribedInstance(RunningInstance instance, @Nullable String reservationId, @Nullable String ownerId,
+            @Nullable String spotInstanceRequestId, @Nullable String iamInstanceProfileArn,
+            @Nullable String iamInstanceProfileId, @Nullable String monitoringState) {
+      this.instance = checkNotNull(instance, "instance");
+      this.reservationId = reservationId;
+      this.ownerId = ownerId;
+      this.spotInstanceRequestId = spotInstanceRequestId;
+      this.iamInstanceProfileArn = iamInstanceProfileArn;
+      this.iamInstanceProfileId = iamInstanceProfileId;
+      this.monitoringState = monitoringState;
+   }
+
+   public RunningInstance getInstance() {
+      return instance;
+   }
+
+   @Nullable
+   public String getReservationId() {
+      return reservationId;
+   }
+
+   /**
+    * Account owning the reservation the instance was launched in.
+    */
+   @Nullable
+   public String getOwnerId() {
+      return ownerId;
+   }
+
+   @Nullable
+   public String getSpotInstanceRequestId() {
+      return spotInstanceRequestId;
+   }
+
+   @Nullable
+   public String getIamInstanceProfileArn() {
+      return iamInstanceProfileArn;
+   }
+
+   @Nullable
+   public String getIamInstanceProfileId() {
+      return iamInstanceProfileId;
+   }
+
+   /**
+    * State of detailed monitoring, such as {@code enabled} or {@code disabled}.
+    */
+   @Nullable
+   public String getMonitoringState() {
+      return monitoringState;
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (!(obj instanceof DescribedInstance))
+         return false;
+      DescribedInstance that = DescribedInstance.class.cast(obj);
+      return instance.equals(that.instance) && Objects.equal(reservationId, that.reservationId)
+               && Objects.equal(ownerId, that.ownerId)
+               && Objects.equal(spotInstanceRequestId, that.spotInstanceRequestId)
+               && Objects.equal(iamInstanceProfileArn, that.iamInstanceProfileArn)
+               && Objects.equal(iamInstanceProfileId, that.iamInstanceProfileId)
+               && Objects.equal(monitoringState, that.monitoringState);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(instance, reservationId, ownerId, spotInstanceRequestId, iamInstanceProfileArn,
+               iamInstanceProfileId, monitoringState);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).omitNullValues().add("instance", instance)
+               .add("reservationId", reservationId).add("ownerId", ownerId)
+               .add("spotInstanceRequestId", spotInstanceRequestId).add("iamInstanceProfileArn", iamInstanceProfileArn)
+               .add("iamInstanceProfileId", iamInstanceProfileId).add("monitoringState", monitoringState).toString();
+   }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.json.SerializedNames;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * An OpenNebula hypervisor host, as returned by {@code onehost}.
+ * <p/>
+ * Memory figures are in kilobytes and CPU figures in hundredths of a core, as reported by
+ * OpenNebula.
+ */
+public final class Host {
+
+   public enum State {
+      INIT, MONITORING_MONITORED, MONITORED, ERROR, DISABLED, MONITORING_ERROR, MONITORING_INIT,
+      MONITORING_DISABLED, OFFLINE, UNRECOGNIZED;
+
+      public static State fromValue(int state) {
+         return state >= 0 && state < UNRECOGNIZED.ordinal() ? values()[state] : UNRECOGNIZED;
+      }
+
+      /**
+       * Whether new virtual machines can be deployed on hosts in this state.
+       */
+      public boolean isSchedulable() {
+         return this == MONITORED || this == MONITORING_MONITORED;
+      }
+   }
+
+   /**
+    * Capacity and usage of a host.
+    */
+   public static final class Share {
+
+      private final long memUsage;
+      private final long maxMem;
+      private final long cpuUsage;
+      private final long maxCpu;
+      private final int runningVms;
+
+      @SerializedNames({ "MEM_USAGE", "MAX_MEM", "CPU_USAGE", "MAX_CPU", "RUNNING_VMS" })
+      public static Share create(long memUsage, long maxMem, long cpuUsage, long maxCpu, int runningVms) {
+         return new Share(memUsage, maxMem, cpuUsage, maxCpu, runningVms);
+      }
+
+      private Share(long memUsage, long maxMem, long cpuUsage, long maxCpu, int runningVms) {
+         this.memUsage = memUsage;
+         this.maxMem = maxMem;
+         this.cpuUsage = cpuUsage;
+         this.maxCpu = maxCpu;
+         this.runningVms = runningVms;
+      }
+
+      public long getMemUsage() {
+         return memUsage;
+      }
+
+      public long getMaxMem() {
+         return maxMem;
+      }
+
+      public long getCpuUsage() {
+         return cpuUsage;
+      }
+
+      public long getMaxCpu() {
+         return maxCpu;
+      }
+
+      public int getRunningVms() {
+         return runningVms;
+      }
+
+      public long getFreeMem() {
+         return Math.max(0, maxMem - memUsage);
+      }
+
+      public long getFreeCpu() {
+         return Math.max(0, maxCpu - cpuUsage);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj)
+            return true;
+         if (!(obj instanceof Share))
+            return false;
+         Share that = Share.class.cast(obj);
+         return memUsage == that.memUsage && maxMem == that.maxMem && cpuUsage == that.cpuUsage
+                  && maxCpu == that.maxCpu && runningVms == that.runningVms;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(memUsage, maxMem, cpuUsage, maxCpu, runningVms);
+      }
+
+      @Override
+      public String toString() {
+         return MoreObjects.toStringHelper(this).add("memUsage", memUsage).add("maxMem", maxMem)
+                  .add("cpuUsage", cpuUsage).add("maxCpu", maxCpu).add("runningVms", runningVms).toString();
+      }
+   }
+
+   private final int id;
+   private final String name;
+   private final State state;
+   private final String cluster;
+   private final Share share;
+
+   @SerializedNames({ "ID", "NAME", "STATE", "CLUSTER", "HOST_SHARE" })
+   public static Host create(int id, String name, int state, @Nullable String cluster, Share share) {
+      return new Host(id, name, State.fromValue(state), cluster, share);
+   }
+
+   private Host(int id, String name, State state, @Nullable String cluster, Share share) {
+      this.id = id;
+      this.name = checkNotNull(name, "name");
+      this.state = checkNotNull(state, "state of %s", name);
+      this.cluster = cluster;
+      this.share = checkNotNull(share, "share of %s", name);
+   }
+
+   public int getId() {
+      return id;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public State getState() {
+      return state;
+   }
+
+   /**
+    * Name of the cluster the host belongs to, if any.
+    */
+   @Nullable
+   public String getCluster() {
+      return cluster;
+   }
+
+   public Share getShare() {
+      return share;
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (!(obj instanceof Host))
+         return false;
+      Host that = Host.class.cast(obj);
+      return id == that.id && name.equals(that.name) && state == that.state
+               && Objects.equal(cluster, that.cluster) && share.equals(that.share);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(id, name, state, cluster, share);
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).omitNullValues().add("id", id).add("name", name).add("state", state)
+               .add("cluster", cluster).add("share", share).toString();
+   }
+}
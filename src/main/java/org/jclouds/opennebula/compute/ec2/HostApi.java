@@ -16,6 +16,8 @@
  */
 package org.jclouds.opennebula.compute.ec2;
 
+import java.util.List;
+
 import javax.inject.Named;
 import javax.ws.rs.Consumes;
 
@@ -26,12 +28,29 @@ import javax.ws.rs.PathParam;
 
 import javax.ws.rs.core.MediaType;
 
+import org.jclouds.Fallbacks.EmptyListOnNotFoundOr404;
+import org.jclouds.Fallbacks.NullOnNotFoundOr404;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.rest.annotations.Fallback;
+import org.jclouds.rest.annotations.SelectJson;
+
 @Consumes(MediaType.APPLICATION_JSON)
 @Path("onehost")
 public interface HostApi {
     
-   @Named("info/{id}")
+   @Named("onehost:info")
+   @GET
+   @Path("/info/{id}")
+   @SelectJson("HOST")
+   @Fallback(NullOnNotFoundOr404.class)
+   @Nullable
+   Host info(@PathParam("id")int id);
+
+   @Named("onehost:list")
    @GET
-   void info(@PathParam("id")int id);
+   @Path("/list")
+   @SelectJson("HOST")
+   @Fallback(EmptyListOnNotFoundOr404.class)
+   List<Host> list();
     
 }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_METRICS_JMX;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.logging.Logger;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Default {@link OpenNebulaMetrics}, keeping lock-free counters and a latency histogram per name
+ * in memory. They can be pulled through {@link #getMetrics()} or over JMX: by default every
+ * context registers its own MBean, unless {@link OpenNebulaComputeEC2Constants#PROPERTY_METRICS_JMX}
+ * is false.
+ */
+@Singleton
+public class InMemoryOpenNebulaMetrics implements OpenNebulaMetrics, OpenNebulaMetricsMXBean {
+
+   static final int BUCKETS = 32;
+
+   private static final AtomicInteger CONTEXTS = new AtomicInteger();
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final boolean jmx;
+   private final ConcurrentMap<String, Timer> timers = Maps.newConcurrentMap();
+   private ObjectName objectName;
+
+   @Inject
+   InMemoryOpenNebulaMetrics(@Named(PROPERTY_METRICS_JMX) boolean jmx) {
+      this.jmx = jmx;
+   }
+
+   @Override
+   public void record(String name, long nanos, boolean failed) {
+      Timer timer = timers.get(name);
+      if (timer == null) {
+         Timer created = new Timer();
+         timer = timers.putIfAbsent(name, created);
+         if (timer == null)
+            timer = created;
+      }
+      timer.record(nanos, failed);
+   }
+
+   @Override
+   public Map<String, MetricsSnapshot> getMetrics() {
+      ImmutableSortedMap.Builder<String, MetricsSnapshot> metrics = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, Timer> timer : timers.entrySet())
+         metrics.put(timer.getKey(), timer.getValue().snapshot());
+      return metrics.build();
+   }
+
+   @Override
+   public void reset() {
+      timers.clear();
+   }
+
+   @PostConstruct
+   void registerMBean() {
+      if (!jmx)
+         return;
+      try {
+         objectName = new ObjectName("org.jclouds.opennebula-compute-ec2:type=Metrics,name="
+                  + CONTEXTS.incrementAndGet());
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      } catch (JMException e) {
+         logger.warn(e, "could not register metrics MBean %s", objectName);
+         objectName = null;
+      }
+   }
+
+   @PreDestroy
+   void unregisterMBean() {
+      if (objectName == null)
+         return;
+      try {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+         logger.warn(e, "could not unregister metrics MBean %s", objectName);
+      }
+   }
+
+   private static final class Timer {
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong errors = new AtomicLong();
+      private final AtomicLong totalNanos = new AtomicLong();
+      private final AtomicLong maxNanos = new AtomicLong();
+      private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+      void record(long nanos, boolean failed) {
+         count.incrementAndGet();
+         if (failed)
+            errors.incrementAndGet();
+         totalNanos.addAndGet(nanos);
+         long max = maxNanos.get();
+         while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+         histogram.incrementAndGet(bucket(nanos));
+      }
+
+      MetricsSnapshot snapshot() {
+         long[] buckets = new long[BUCKETS];
+         for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = histogram.get(i);
+         long n = count.get();
+         return new MetricsSnapshot(n, errors.get(), n == 0 ? 0 : totalNanos.get() / 1e6 / n, maxNanos.get() / 1e6,
+                  buckets);
+      }
+
+      private static int bucket(long nanos) {
+         long micros = nanos / 1000;
+         return Math.min(BUCKETS - 1, micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1));
+      }
+   }
+}
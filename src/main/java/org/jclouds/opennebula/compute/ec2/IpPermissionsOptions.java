@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Map;
+
+import org.jclouds.ec2.options.internal.BaseEC2RequestOptions;
+import org.jclouds.net.domain.IpPermission;
+
+/**
+ * Contains options supported in the form API for the AuthorizeSecurityGroupIngress and
+ * RevokeSecurityGroupIngress operations, so that several rules are changed by a single call.
+ * <p/>
+ * <h2>Usage</h2> The recommended way to instantiate an IpPermissionsOptions object is to statically
+ * import IpPermissionsOptions.Builder.* and invoke a static creation method:
+ * <p/>
+ * <code>
+ * import static org.jclouds.opennebula.compute.ec2.IpPermissionsOptions.Builder.*
+ * <p/>
+ * OpenNebulaComputeEC2Api connection = // get connection
+ * connection.getSecurityGroupApi().get().authorizeIpPermissionsInRegion(null, "web", ipPermissions(permissions));
+ * <code>
+ */
+public class IpPermissionsOptions extends BaseEC2RequestOptions {
+
+   private int index;
+
+   /**
+    * Adds {@code permissions} as {@code IpPermissions.N} parameters. Group sources are named by
+    * owner and group name; group ids and exclusion blocks are not supported by econe-server.
+    */
+   public IpPermissionsOptions ipPermissions(Iterable<IpPermission> permissions) {
+      for (IpPermission permission : permissions) {
+         checkArgument(permission.getGroupIds().isEmpty(), "group ids are not supported: %s", permission);
+         checkArgument(permission.getExclusionCidrBlocks().isEmpty(), "exclusion cidr blocks are not supported: %s",
+                  permission);
+         String prefix = "IpPermissions." + ++index + ".";
+         formParameters.put(prefix + "IpProtocol", permission.getIpProtocol().value());
+         formParameters.put(prefix + "FromPort", String.valueOf(permission.getFromPort()));
+         formParameters.put(prefix + "ToPort", String.valueOf(permission.getToPort()));
+         int rangeIndex = 1;
+         for (String cidrBlock : permission.getCidrBlocks())
+            formParameters.put(prefix + "IpRanges." + rangeIndex++ + ".CidrIp", cidrBlock);
+         int groupIndex = 1;
+         for (Map.Entry<String, String> pair : permission.getTenantIdGroupNamePairs().entries()) {
+            formParameters.put(prefix + "Groups." + groupIndex + ".UserId", pair.getKey());
+            formParameters.put(prefix + "Groups." + groupIndex++ + ".GroupName", pair.getValue());
+         }
+      }
+      return this;
+   }
+
+   public static class Builder {
+
+      /**
+       * @see IpPermissionsOptions#ipPermissions(Iterable)
+       */
+      public static IpPermissionsOptions ipPermissions(Iterable<IpPermission> permissions) {
+         IpPermissionsOptions options = new IpPermissionsOptions();
+         return options.ipPermissions(permissions);
+      }
+   }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONE_PARTIAL_RESULTS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONE_TIMEOUT;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Lists instances of several zones at once, merging them as they are parsed.
+ * <p/>
+ * Each iteration requests every zone in parallel on the user executor. Instances are handed to the
+ * caller in the order they arrive, so the fastest zone is seen first. A zone that fails, or that
+ * sends nothing for {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_TIMEOUT} while the caller
+ * waits for it, fails the iteration with an {@link IllegalStateException}, and every response
+ * stream is closed, so that callers never act on a silently truncated inventory. Time a zone spends
+ * waiting for the caller does not count, so a large listing or a slow caller is never cut short.
+ * <p/>
+ * With {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_PARTIAL_RESULTS}, listings that only read
+ * instead log and drop such a zone, closing its stream; the other zones keep being listed, and
+ * instances already received from the dropped zone are still returned. Listings that nodes are
+ * changed from, made with {@link #listComplete}, always fail.
+ * <p/>
+ * Producers block while the caller falls behind, so at most {@value #BUFFERED_INSTANCES} instances
+ * are buffered at a time. Iterators are {@link Closeable}; a caller that stops early should close
+ * its iterator, or its producers give up, and release their streams, only after the caller has
+ * taken nothing for the zone timeout. Resuming iteration after that fails rather than returning a
+ * truncated listing.
+ */
+@Singleton
+public class ListInstancesAcrossZones {
+
+   static final int BUFFERED_INSTANCES = 1024;
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final ListeningExecutorService userExecutor;
+   private final long timeoutMillis;
+   private final boolean partialResults;
+
+   @Inject
+   ListInstancesAcrossZones(@Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+            @Named(PROPERTY_ZONE_TIMEOUT) long timeoutMillis,
+            @Named(PROPERTY_ZONE_PARTIAL_RESULTS) boolean partialResults) {
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      checkArgument(timeoutMillis > 0, "%s must be positive", PROPERTY_ZONE_TIMEOUT);
+      this.timeoutMillis = timeoutMillis;
+      this.partialResults = partialResults;
+   }
+
+   /**
+    * Lists the instances {@code listZone} returns for each of {@code zones}. Iterators of the
+    * iterables {@code listZone} returns are closed once the zone is done with, if they are
+    * {@link Closeable}. A zone that cannot be listed fails the iteration unless
+    * {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_PARTIAL_RESULTS} is set.
+    */
+   public Iterable<RunningInstance> list(Set<String> zones,
+            Function<String, ? extends Iterable<RunningInstance>> listZone) {
+      return list(zones, listZone, partialResults);
+   }
+
+   /**
+    * Same as {@link #list}, but a zone that cannot be listed always fails the iteration, for
+    * callers about to change the nodes listed.
+    */
+   public Iterable<RunningInstance> listComplete(Set<String> zones,
+            Function<String, ? extends Iterable<RunningInstance>> listZone) {
+      return list(zones, listZone, false);
+   }
+
+   private Iterable<RunningInstance> list(final Set<String> zones,
+            final Function<String, ? extends Iterable<RunningInstance>> listZone, final boolean partial) {
+      return new Iterable<RunningInstance>() {
+         @Override
+         public Iterator<RunningInstance> iterator() {
+            return new MergingIterator(ImmutableSet.copyOf(zones), listZone, partial);
+         }
+      };
+   }
+
+   /**
+    * Marks the end of a zone in the queue.
+    */
+   private static final class ZoneDone {
+      private final String zone;
+      private final Throwable failure;
+
+      private ZoneDone(String zone, Throwable failure) {
+         this.zone = zone;
+         this.failure = failure;
+      }
+   }
+
+   private final class MergingIterator extends AbstractIterator<RunningInstance> implements Closeable {
+      private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(BUFFERED_INSTANCES);
+      private final Map<String, Producer> pending = Maps.newLinkedHashMap();
+      private final boolean partial;
+      private boolean closed;
+
+      MergingIterator(Set<String> zones, Function<String, ? extends Iterable<RunningInstance>> listZone,
+               boolean partial) {
+         this.partial = partial;
+         for (String zone : zones)
+            pending.put(zone, new Producer(zone, listZone));
+         for (Producer producer : pending.values())
+            producer.future = userExecutor.submit(producer);
+      }
+
+      @Override
+      protected RunningInstance computeNext() {
+         while (!closed) {
+            Object next = queue.poll();
+            if (next == null) {
+               if (pending.isEmpty())
+                  break;
+               next = await();
+            }
+            if (next instanceof ZoneDone) {
+               ZoneDone done = (ZoneDone) next;
+               pending.remove(done.zone);
+               if (done.failure != null && !partial) {
+                  close();
+                  throw new IllegalStateException(String.format("could not list instances in zone(%s)",
+                           done.zone), done.failure);
+               }
+               if (done.failure != null)
+                  logger.warn(done.failure, "<< could not list instances in zone(%s)", done.zone);
+            } else if (next != null) {
+               return (RunningInstance) next;
+            }
+         }
+         return endOfData();
+      }
+
+      /**
+       * Waits for the next item of the zones still listing, failing if one of them has sent nothing
+       * for the timeout, or dropping it with partial results. Returns null if there is nothing to
+       * wait for anymore.
+       */
+      private Object await() {
+         long now = System.currentTimeMillis();
+         long wait = timeoutMillis;
+         for (Iterator<Producer> producers = pending.values().iterator(); producers.hasNext();) {
+            Producer producer = producers.next();
+            if (producer.abandoned) {
+               close();
+               throw new IllegalStateException(String.format(
+                        "listing of zone(%s) was abandoned after nothing was taken for %dms", producer.zone,
+                        timeoutMillis));
+            }
+            long idle = producer.offering ? 0 : now - producer.lastProgress;
+            if (idle >= timeoutMillis && !partial) {
+               close();
+               throw new IllegalStateException(String.format("zone(%s) sent no instance for %dms", producer.zone,
+                        idle));
+            } else if (idle >= timeoutMillis) {
+               logger.warn("<< zone(%s) sent no instance for %dms; its remaining instances are missing",
+                        producer.zone, idle);
+               producer.stop();
+               producers.remove();
+            } else {
+               wait = Math.min(wait, timeoutMillis - idle);
+            }
+         }
+         if (pending.isEmpty())
+            return null;
+         try {
+            return queue.poll(wait, MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("interrupted while listing zones " + pending.keySet(), e);
+         }
+      }
+
+      /**
+       * Stops every zone still listing and releases its stream.
+       */
+      @Override
+      public void close() {
+         closed = true;
+         for (Producer producer : pending.values())
+            producer.stop();
+         pending.clear();
+         queue.clear();
+      }
+
+      private final class Producer implements Runnable {
+         private final String zone;
+         private final Function<String, ? extends Iterable<RunningInstance>> listZone;
+         private volatile long lastProgress = System.currentTimeMillis();
+         private volatile boolean offering;
+         private volatile boolean abandoned;
+         private volatile boolean stopped;
+         private volatile Closeable stream;
+         private Future<?> future;
+
+         private Producer(String zone, Function<String, ? extends Iterable<RunningInstance>> listZone) {
+            this.zone = zone;
+            this.listZone = listZone;
+         }
+
+         @Override
+         public void run() {
+            Throwable failure = null;
+            try {
+               Iterator<RunningInstance> instances = listZone.apply(zone).iterator();
+               if (instances instanceof Closeable) {
+                  stream = (Closeable) instances;
+                  // stopped before the stream was known
+                  if (stopped)
+                     return;
+               }
+               while (!stopped && instances.hasNext()) {
+                  RunningInstance instance = instances.next();
+                  lastProgress = System.currentTimeMillis();
+                  if (!offer(instance))
+                     return;
+               }
+            } catch (RuntimeException e) {
+               failure = e;
+            } finally {
+               release();
+            }
+            if (!stopped)
+               offer(new ZoneDone(zone, failure));
+         }
+
+         /**
+          * Queues {@code item}, unless the caller has taken nothing for the whole timeout, in which
+          * case the listing is considered abandoned.
+          */
+         private boolean offer(Object item) {
+            offering = true;
+            try {
+               if (queue.offer(item, timeoutMillis, MILLISECONDS))
+                  return true;
+               abandoned = true;
+               logger.debug("<< stopped listing zone(%s): nothing taken for %dms", zone, timeoutMillis);
+               return false;
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return false;
+            } finally {
+               lastProgress = System.currentTimeMillis();
+               offering = false;
+            }
+         }
+
+         private void stop() {
+            stopped = true;
+            release();
+            if (future != null)
+               future.cancel(true);
+         }
+
+         private void release() {
+            Closeable current = stream;
+            if (current != null)
+               closeQuietly(current);
+         }
+      }
+   }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.inject.Named;
+
+import org.jclouds.rest.annotations.Delegate;
+
+import com.google.common.base.Optional;
+import com.google.common.reflect.AbstractInvocationHandler;
+import com.google.common.reflect.Reflection;
+
+/**
+ * Reports the duration of every call to a method carrying a {@link Named} action to
+ * {@link OpenNebulaMetrics}, including calls made through the apis returned by {@link Delegate}
+ * methods. Calls returning a lazily parsed response are timed until the response is returned.
+ */
+public final class MeteringInvocationHandler extends AbstractInvocationHandler {
+
+   /**
+    * Returns a view of {@code api} whose calls are reported to {@code metrics}.
+    */
+   public static <A> A metering(Class<A> type, A api, OpenNebulaMetrics metrics) {
+      return Reflection.newProxy(type, new MeteringInvocationHandler(api, metrics));
+   }
+
+   private final Object delegate;
+   private final OpenNebulaMetrics metrics;
+
+   private MeteringInvocationHandler(Object delegate, OpenNebulaMetrics metrics) {
+      this.delegate = checkNotNull(delegate, "delegate");
+      this.metrics = checkNotNull(metrics, "metrics");
+   }
+
+   @Override
+   protected Object handleInvocation(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.isAnnotationPresent(Delegate.class))
+         return wrap(invoke(method, args));
+      Named action = method.getAnnotation(Named.class);
+      if (action == null)
+         return invoke(method, args);
+
+      long started = System.nanoTime();
+      boolean failed = true;
+      try {
+         Object result = invoke(method, args);
+         failed = false;
+         return result;
+      } finally {
+         metrics.record(action.value(), System.nanoTime() - started, failed);
+      }
+   }
+
+   private Object invoke(Method method, Object[] args) throws Throwable {
+      try {
+         return method.invoke(delegate, args);
+      } catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+
+   private Object wrap(Object api) {
+      if (api instanceof Optional) {
+         Optional<?> optional = (Optional<?>) api;
+         return optional.isPresent() ? Optional.of(wrap(optional.get())) : optional;
+      }
+      if (api == null || !Proxy.isProxyClass(api.getClass()))
+         return api;
+      return Proxy.newProxyInstance(api.getClass().getClassLoader(), api.getClass().getInterfaces(),
+               new MeteringInvocationHandler(api, metrics));
+   }
+}
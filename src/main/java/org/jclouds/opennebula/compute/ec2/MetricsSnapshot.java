@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.beans.ConstructorProperties;
+import java.util.Arrays;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * Counters and latency distribution of one action or operation at a point in time.
+ * <p>
+ * Latencies are kept in a histogram whose bucket {@code i} counts durations up to
+ * {@code 2^i} microseconds, so percentiles are upper bounds accurate to a factor of two.
+ */
+public final class MetricsSnapshot {
+
+   private final long count;
+   private final long errorCount;
+   private final double meanMillis;
+   private final double maxMillis;
+   private final long[] histogram;
+
+   public MetricsSnapshot(long count, long errorCount, double meanMillis, double maxMillis, long[] histogram) {
+      this.count = count;
+      this.errorCount = errorCount;
+      this.meanMillis = meanMillis;
+      this.maxMillis = maxMillis;
+      this.histogram = histogram.clone();
+   }
+
+   /**
+    * Rebuilds a snapshot from all of its properties, as JMX clients do with the composite data of
+    * {@link OpenNebulaMetricsMXBean#getMetrics()}. The percentiles are derived from the histogram,
+    * so the given ones are ignored.
+    */
+   @ConstructorProperties({ "count", "errorCount", "meanMillis", "maxMillis", "p50Millis", "p90Millis",
+            "p99Millis", "histogram" })
+   public MetricsSnapshot(long count, long errorCount, double meanMillis, double maxMillis, double p50Millis,
+            double p90Millis, double p99Millis, long[] histogram) {
+      this(count, errorCount, meanMillis, maxMillis, histogram);
+   }
+
+   public long getCount() {
+      return count;
+   }
+
+   public long getErrorCount() {
+      return errorCount;
+   }
+
+   public double getMeanMillis() {
+      return meanMillis;
+   }
+
+   public double getMaxMillis() {
+      return maxMillis;
+   }
+
+   public double getP50Millis() {
+      return percentileMillis(0.50);
+   }
+
+   public double getP90Millis() {
+      return percentileMillis(0.90);
+   }
+
+   public double getP99Millis() {
+      return percentileMillis(0.99);
+   }
+
+   /**
+    * Counts per histogram bucket; bucket {@code i} holds durations up to {@code 2^i} microseconds.
+    */
+   public long[] getHistogram() {
+      return histogram.clone();
+   }
+
+   /**
+    * Upper bound, in milliseconds, of the bucket holding the given quantile, capped by the maximum.
+    */
+   public double percentileMillis(double quantile) {
+      long total = 0;
+      for (long bucket : histogram)
+         total += bucket;
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+         seen += histogram[i];
+         if (seen >= rank)
+            return Math.min((1L << i) / 1000.0, maxMillis);
+      }
+      return maxMillis;
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj)
+         return true;
+      if (!(obj instanceof MetricsSnapshot))
+         return false;
+      MetricsSnapshot that = (MetricsSnapshot) obj;
+      return count == that.count && errorCount == that.errorCount && meanMillis == that.meanMillis
+               && maxMillis == that.maxMillis && Arrays.equals(histogram, that.histogram);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(count, errorCount, meanMillis, maxMillis, Arrays.hashCode(histogram));
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper(this).add("count", count).add("errorCount", errorCount)
+               .add("meanMillis", meanMillis).add("p50Millis", getP50Millis()).add("p99Millis", getP99Millis())
+               .add("maxMillis", maxMillis).toString();
+   }
+}
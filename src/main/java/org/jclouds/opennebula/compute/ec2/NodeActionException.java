@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.compute.domain.NodeMetadata;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+/**
+ * Thrown when a state change of several nodes failed for some of them. Like
+ * {@link org.jclouds.compute.RunNodesException}, it carries both the nodes that were changed and the
+ * error of each node that was not.
+ */
+public class NodeActionException extends RuntimeException {
+   private static final long serialVersionUID = 1L;
+
+   private final String action;
+   private final Set<? extends NodeMetadata> successfulNodes;
+   private final Map<? extends NodeMetadata, ? extends Throwable> nodeErrors;
+
+   public NodeActionException(String action, Set<? extends NodeMetadata> successfulNodes,
+            Map<? extends NodeMetadata, ? extends Throwable> nodeErrors) {
+      super(String.format("%s failed for %d of %d nodes: %s", checkNotNull(action, "action"), nodeErrors.size(),
+               successfulNodes.size() + nodeErrors.size(), nodeErrors), Iterables.getFirst(nodeErrors.values(), null));
+      this.action = action;
+      this.successfulNodes = ImmutableSet.copyOf(checkNotNull(successfulNodes, "successfulNodes"));
+      this.nodeErrors = ImmutableMap.copyOf(checkNotNull(nodeErrors, "nodeErrors"));
+   }
+
+   /**
+    * The action that was applied, such as {@code destroy}.
+    */
+   public String getAction() {
+      return action;
+   }
+
+   /**
+    * Nodes that reached their new state.
+    */
+   public Set<? extends NodeMetadata> getSuccessfulNodes() {
+      return successfulNodes;
+   }
+
+   /**
+    * Nodes that could not be changed or did not reach their new state, with the reason.
+    */
+   public Map<? extends NodeMetadata, ? extends Throwable> getNodeErrors() {
+      return nodeErrors;
+   }
+}
@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PROVISIONING_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_STATE_CHANGE_CHUNK_SIZE;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.aws.AWSResponseException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadata.Status;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.compute.reference.ComputeServiceConstants.Timeouts;
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.logging.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Destroys, suspends, resumes or reboots many nodes with as few calls as possible: instance ids
+ * are grouped by region and sent at most
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_STATE_CHANGE_CHUNK_SIZE} at a time in one
+ * Terminate, Stop, Start or RebootInstances call, and the wait for the new state is handed to the
+ * shared {@link OpenNebulaNodeStatePoller}, which checks every node with batched
+ * DescribeInstances calls.
+ * <p/>
+ * A chunk rejected because of an {@code InvalidInstanceID.*} error is split in halves that are sent
+ * again, so that a single unknown node does not fail its neighbours. Any other error, such as
+ * throttling that outlasted the retries, fails the whole chunk without further calls. Nodes that
+ * fail, or never reach the new state, do not affect the others, and are reported together with the
+ * nodes that were changed in a {@link NodeActionException}.
+ */
+@Singleton
+public class OpenNebulaBatchedNodeActions {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaComputeEC2Api api;
+   private final OpenNebulaNodeStatePoller poller;
+   private final Timeouts timeouts;
+   private final OpenNebulaMetrics metrics;
+   private final ListeningExecutorService provisioningExecutor;
+   private final int chunkSize;
+
+   @Inject
+   OpenNebulaBatchedNodeActions(OpenNebulaComputeEC2Api api, OpenNebulaNodeStatePoller poller,
+            Timeouts timeouts, OpenNebulaMetrics metrics,
+            @Named(PROPERTY_PROVISIONING_THREADS) ListeningExecutorService provisioningExecutor,
+            @Named(PROPERTY_STATE_CHANGE_CHUNK_SIZE) int chunkSize) {
+      this.api = checkNotNull(api, "api");
+      this.poller = checkNotNull(poller, "poller");
+      this.timeouts = checkNotNull(timeouts, "timeouts");
+      this.metrics = checkNotNull(metrics, "metrics");
+      this.provisioningExecutor = checkNotNull(provisioningExecutor, "provisioningExecutor");
+      checkArgument(chunkSize > 0, "%s must be positive", PROPERTY_STATE_CHANGE_CHUNK_SIZE);
+      this.chunkSize = chunkSize;
+   }
+
+   /**
+    * Terminates {@code nodes} and waits until they are gone.
+    * 
+    * @return the nodes terminated
+    * @throws NodeActionException
+    *            if some of the nodes could not be terminated
+    */
+   public Set<NodeMetadata> destroy(Iterable<? extends NodeMetadata> nodes) {
+      return execute(Action.DESTROY, nodes);
+   }
+
+   /**
+    * Stops {@code nodes} and waits until they are stopped.
+    * 
+    * @return the nodes suspended
+    * @throws NodeActionException
+    *            if some of the nodes could not be suspended
+    */
+   public Set<NodeMetadata> suspend(Iterable<? extends NodeMetadata> nodes) {
+      return execute(Action.SUSPEND, nodes);
+   }
+
+   /**
+    * Starts {@code nodes} and waits until they are running.
+    * 
+    * @return the nodes resumed
+    * @throws NodeActionException
+    *            if some of the nodes could not be resumed
+    */
+   public Set<NodeMetadata> resume(Iterable<? extends NodeMetadata> nodes) {
+      return execute(Action.RESUME, nodes);
+   }
+
+   /**
+    * Reboots {@code nodes} and waits until they are running.
+    * 
+    * @return the nodes rebooted
+    * @throws NodeActionException
+    *            if some of the nodes could not be rebooted
+    */
+   public Set<NodeMetadata> reboot(Iterable<? extends NodeMetadata> nodes) {
+      return execute(Action.REBOOT, nodes);
+   }
+
+   private Set<NodeMetadata> execute(final Action action, Iterable<? extends NodeMetadata> nodes) {
+      Map<String, NodeMetadata> byHandle = Maps.newLinkedHashMap();
+      Multimap<String, String> idsByRegion = LinkedHashMultimap.create();
+      for (NodeMetadata node : nodes) {
+         if (node.getStatus() == Status.TERMINATED)
+            continue;
+         String[] parts = parseHandle(node.getId());
+         byHandle.put(node.getId(), node);
+         idsByRegion.put(parts[0], parts[1]);
+      }
+      if (byHandle.isEmpty())
+         return ImmutableSet.of();
+
+      long started = System.currentTimeMillis();
+      List<ListenableFuture<Chunk>> calls = Lists.newArrayList();
+      for (Map.Entry<String, Collection<String>> entry : idsByRegion.asMap().entrySet()) {
+         final String region = entry.getKey();
+         for (final List<String> ids : Iterables.partition(entry.getValue(), chunkSize)) {
+            calls.add(provisioningExecutor.submit(new Callable<Chunk>() {
+               @Override
+               public Chunk call() {
+                  logger.debug(">> %s %d instances in region(%s)", action, ids.size(), region);
+                  return new Chunk(region, ids, send(action, region, ids));
+               }
+            }));
+         }
+      }
+
+      Map<NodeMetadata, Throwable> failures = Maps.newLinkedHashMap();
+      Map<NodeMetadata, ListenableFuture<RunningInstance>> pending = Maps.newLinkedHashMap();
+      for (ListenableFuture<Chunk> future : Futures.inCompletionOrder(calls)) {
+         Chunk chunk = Futures.getUnchecked(future);
+         for (String id : chunk.ids) {
+            String handle = chunk.region + "/" + id;
+            NodeMetadata node = byHandle.get(handle);
+            Throwable failure = chunk.failures.get(id);
+            if (failure != null)
+               failures.put(node, failure);
+            else
+               pending.put(node, await(action, handle, started));
+         }
+      }
+
+      Set<NodeMetadata> done = Sets.newLinkedHashSet();
+      for (Map.Entry<NodeMetadata, ListenableFuture<RunningInstance>> entry : pending.entrySet()) {
+         try {
+            entry.getValue().get();
+            done.add(NodeMetadataBuilder.fromNodeMetadata(entry.getKey()).status(action.status).build());
+         } catch (ExecutionException e) {
+            failures.put(entry.getKey(), e.getCause());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.put(entry.getKey(), e);
+         }
+      }
+      if (!failures.isEmpty()) {
+         logger.warn("<< %s failed for %d of %d nodes", action, failures.size(), byHandle.size());
+         throw new NodeActionException(action.name().toLowerCase(Locale.ENGLISH), done, failures);
+      }
+      return done;
+   }
+
+   /**
+    * Sends one call for {@code ids}, split in halves while it fails because of an unknown or
+    * malformed instance id.
+    * 
+    * @return the failure of each id that could not be changed
+    */
+   private Map<String, Throwable> send(Action action, String region, List<String> ids) {
+      try {
+         action.call(api.getInstanceApiForRegion(region).get(), region, ids.toArray(new String[ids.size()]));
+         return ImmutableMap.of();
+      } catch (RuntimeException e) {
+         if (ids.size() == 1 || !isInvalidInstanceId(e)) {
+            Map<String, Throwable> failures = Maps.newHashMap();
+            for (String id : ids)
+               failures.put(id, e);
+            return failures;
+         }
+         logger.debug("<< %s of %d instances in region(%s) failed, splitting: %s", action, ids.size(), region,
+                  e.getMessage());
+         int half = ids.size() / 2;
+         return ImmutableMap.<String, Throwable> builder().putAll(send(action, region, ids.subList(0, half)))
+                  .putAll(send(action, region, ids.subList(half, ids.size()))).build();
+      }
+   }
+
+   private static boolean isInvalidInstanceId(Throwable e) {
+      for (AWSResponseException aws : Iterables.filter(Throwables.getCausalChain(e), AWSResponseException.class)) {
+         if (aws.getError() != null && aws.getError().getCode().startsWith("InvalidInstanceID"))
+            return true;
+      }
+      return false;
+   }
+
+   private ListenableFuture<RunningInstance> await(final Action action, String handle, final long started) {
+      ListenableFuture<RunningInstance> future = poller.awaitExisting(handle, action.timeout(timeouts), action.target);
+      if (action.metric != null) {
+         Futures.addCallback(future, new FutureCallback<RunningInstance>() {
+            @Override
+            public void onSuccess(RunningInstance result) {
+               record(false);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+               record(true);
+            }
+
+            private void record(boolean failed) {
+               metrics.record(action.metric, MILLISECONDS.toNanos(System.currentTimeMillis() - started), failed);
+            }
+         });
+      }
+      return future;
+   }
+
+   private enum Action {
+      DESTROY(InstanceState.TERMINATED, Status.TERMINATED, OpenNebulaMetrics.DESTROY_TO_TERMINATED) {
+         @Override
+         void call(OpenNebulaInstanceApi api, String region, String... ids) {
+            api.terminateInstancesInRegion(region, ids);
+         }
+
+         @Override
+         long timeout(Timeouts timeouts) {
+            return timeouts.nodeTerminated;
+         }
+      },
+      SUSPEND(InstanceState.STOPPED, Status.SUSPENDED, OpenNebulaMetrics.SUSPEND_TO_STOPPED) {
+         @Override
+         void call(OpenNebulaInstanceApi api, String region, String... ids) {
+            api.stopInstancesInRegion(region, false, ids);
+         }
+
+         @Override
+         long timeout(Timeouts timeouts) {
+            return timeouts.nodeSuspended;
+         }
+      },
+      RESUME(InstanceState.RUNNING, Status.RUNNING, OpenNebulaMetrics.RESUME_TO_RUNNING) {
+         @Override
+         void call(OpenNebulaInstanceApi api, String region, String... ids) {
+            api.startInstancesInRegion(region, ids);
+         }
+
+         @Override
+         long timeout(Timeouts timeouts) {
+            return timeouts.nodeRunning;
+         }
+      },
+      REBOOT(InstanceState.RUNNING, Status.RUNNING, null) {
+         @Override
+         void call(OpenNebulaInstanceApi api, String region, String... ids) {
+            api.rebootInstancesInRegion(region, ids);
+         }
+
+         @Override
+         long timeout(Timeouts timeouts) {
+            return timeouts.nodeRunning;
+         }
+      };
+
+      private final InstanceState target;
+      private final Status status;
+      private final String metric;
+
+      private Action(InstanceState target, Status status, String metric) {
+         this.target = target;
+         this.status = status;
+         this.metric = metric;
+      }
+
+      abstract void call(OpenNebulaInstanceApi api, String region, String... ids);
+
+      abstract long timeout(Timeouts timeouts);
+   }
+
+   private static final class Chunk {
+      private final String region;
+      private final List<String> ids;
+      private final Map<String, Throwable> failures;
+
+      private Chunk(String region, List<String> ids, Map<String, Throwable> failures) {
+         this.region = region;
+         this.ids = ids;
+         this.failures = failures;
+      }
+   }
+}
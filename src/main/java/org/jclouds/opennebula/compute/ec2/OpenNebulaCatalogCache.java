@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Predicates.notNull;
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.getFirst;
+import static com.google.common.collect.Iterables.transform;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.ec2.options.DescribeImagesOptions.Builder.imageIds;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_LAZY_IMAGES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_MAX_IMAGES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_TTL;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.collect.Memoized;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.EC2Api;
+import org.jclouds.ec2.compute.functions.EC2ImageParser;
+import org.jclouds.location.Region;
+import org.jclouds.logging.Logger;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Bounded, self-refreshing view of the image, hardware and location catalogs.
+ * <p/>
+ * Entries are refreshed asynchronously once they are older than
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_CATALOG_TTL}; until the refresh completes, and if
+ * it fails, the previous entry keeps being served. Only the very first load of a catalog blocks
+ * the caller. The image catalog is weighed by number of images and bounded by
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_CATALOG_MAX_IMAGES}; the bound applies to the whole
+ * catalog rather than to a segment of it, and a region listing more images is truncated to it.
+ * <p/>
+ * Hardware and locations are loaded through the context's memoized suppliers, so they are never
+ * refreshed more often than the session interval.
+ * <p/>
+ * When an {@link OpenNebulaCatalogSnapshot} is configured, the image and location catalogs are
+ * seeded from it at startup and revalidated in the background, and the snapshot is rewritten after
+ * every load. Hardware is not snapshotted: it is built locally from the instance types.
+ * <p/>
+ * With {@link OpenNebulaComputeEC2Constants#PROPERTY_CATALOG_LAZY_IMAGES}, {@link #getImage}
+ * describes just the requested image unless the catalog of its region is already loaded, so the
+ * full DescribeImages scan of a region only runs once the whole catalog is listed. Otherwise an
+ * image missing from a loaded catalog is described on its own, and the region rescanned in the
+ * background at most {@value #MISS_REFRESHES_PER_TTL} times per ttl.
+ */
+@Singleton
+public class OpenNebulaCatalogCache {
+
+   private static final Object SINGLE_KEY = "catalog";
+   static final int MISS_REFRESHES_PER_TTL = 10;
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final Supplier<Set<String>> regions;
+   private final OpenNebulaCatalogSnapshot snapshot;
+   private final LoadingCache<String, Map<String, Image>> imagesByRegion;
+   private final LoadingCache<String, Optional<Image>> imagesById;
+   private final boolean lazyImages;
+   private final long missRefreshIntervalMillis;
+   private final ConcurrentMap<String, Long> lastMissRefresh = Maps.newConcurrentMap();
+   private final LoadingCache<Object, Set<Hardware>> hardware;
+   private final LoadingCache<Object, Set<Location>> locations;
+
+   @Inject
+   OpenNebulaCatalogCache(final EC2Api api, @Region Supplier<Set<String>> regions,
+            final EC2ImageParser parser, @Memoized final Supplier<Set<? extends Hardware>> hardwareSupplier,
+            @Memoized final Supplier<Set<? extends Location>> locationSupplier,
+            @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+            @Named(PROPERTY_CATALOG_TTL) long ttlSeconds, @Named(PROPERTY_CATALOG_MAX_IMAGES) long maxImages,
+            @Named(PROPERTY_CATALOG_LAZY_IMAGES) boolean lazyImages, OpenNebulaCatalogSnapshot snapshot) {
+      this.regions = checkNotNull(regions, "regions");
+      this.snapshot = checkNotNull(snapshot, "snapshot");
+      final int maxImagesPerRegion = (int) Math.min(maxImages, Integer.MAX_VALUE);
+      // a single segment, or each one would only get its share of the weight
+      this.imagesByRegion = CacheBuilder.newBuilder()
+               .concurrencyLevel(1)
+               .refreshAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+               .maximumWeight(maxImages)
+               .weigher(new Weigher<String, Map<String, Image>>() {
+                  @Override
+                  public int weigh(String region, Map<String, Image> images) {
+                     return images.size();
+                  }
+               })
+               .recordStats()
+               .build(CacheLoader.asyncReloading(new CacheLoader<String, Map<String, Image>>() {
+                  @Override
+                  public Map<String, Image> load(String region) {
+                     logger.debug(">> loading image catalog of region(%s)", region);
+                     Map<String, Image> images = Maps.newLinkedHashMap();
+                     for (Image image : filter(transform(api.getAMIApi().get().describeImagesInRegion(region), parser),
+                              notNull())) {
+                        // heavier than the whole cache, the region would be evicted as soon as loaded
+                        if (images.size() == maxImagesPerRegion && !images.containsKey(image.getId())) {
+                           logger.warn("<< region(%s) has more than %d images; keeping the first ones", region,
+                                    maxImagesPerRegion);
+                           break;
+                        }
+                        images.put(image.getId(), image);
+                     }
+                     Map<String, Image> loaded = ImmutableMap.copyOf(images);
+                     logger.debug("<< loaded %d images of region(%s)", loaded.size(), region);
+                     saveSnapshot(region, loaded, null);
+                     return loaded;
+                  }
+               }, userExecutor));
+      this.lazyImages = lazyImages;
+      this.missRefreshIntervalMillis = TimeUnit.SECONDS.toMillis(ttlSeconds) / MISS_REFRESHES_PER_TTL;
+      this.imagesById = CacheBuilder.newBuilder()
+               .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+               .maximumSize(maxImages)
+               .recordStats()
+               .build(new CacheLoader<String, Optional<Image>>() {
+                  @Override
+                  public Optional<Image> load(String id) {
+                     String[] parts = parseHandle(id);
+                     logger.debug(">> describing image(%s)", id);
+                     try {
+                        return Optional.fromNullable(getFirst(filter(transform(api.getAMIApi().get()
+                                 .describeImagesInRegion(parts[0], imageIds(parts[1])), parser), notNull()), null));
+                     } catch (ResourceNotFoundException e) {
+                        return Optional.absent();
+                     }
+                  }
+               });
+      this.hardware = singleEntryCache(ttlSeconds, userExecutor, new CacheLoader<Object, Set<Hardware>>() {
+         @Override
+         public Set<Hardware> load(Object key) {
+            return ImmutableSet.<Hardware> copyOf(hardwareSupplier.get());
+         }
+      });
+      this.locations = singleEntryCache(ttlSeconds, userExecutor, new CacheLoader<Object, Set<Location>>() {
+         @Override
+         public Set<Location> load(Object key) {
+            Set<Location> loaded = ImmutableSet.<Location> copyOf(locationSupplier.get());
+            saveSnapshot(null, null, loaded);
+            return loaded;
+         }
+      });
+   }
+
+   /**
+    * Serves the catalogs of the snapshot, if any, until the background reloads it triggers
+    * complete.
+    */
+   @PostConstruct
+   void seedFromSnapshot() {
+      OpenNebulaCatalogSnapshot.Contents contents = snapshot.read();
+      if (contents == null)
+         return;
+      imagesByRegion.putAll(contents.getImagesByRegion());
+      // lazily resolved catalogs are only rescanned when listed past their ttl
+      if (!lazyImages) {
+         for (String region : contents.getImagesByRegion().keySet())
+            imagesByRegion.refresh(region);
+      }
+      if (!contents.getLocations().isEmpty()) {
+         locations.put(SINGLE_KEY, contents.getLocations());
+         locations.refresh(SINGLE_KEY);
+      }
+   }
+
+   /**
+    * Rewrites the snapshot with the current catalogs, replaced by whichever was just loaded.
+    */
+   private void saveSnapshot(String loadedRegion, Map<String, Image> loadedImages, Set<Location> loadedLocations) {
+      if (!snapshot.isEnabled())
+         return;
+      Map<String, Map<String, Image>> images = Maps.newLinkedHashMap(imagesByRegion.asMap());
+      if (loadedRegion != null)
+         images.put(loadedRegion, loadedImages);
+      Set<Location> currentLocations = loadedLocations != null ? loadedLocations : locations.getIfPresent(SINGLE_KEY);
+      snapshot.write(images, currentLocations != null ? currentLocations : ImmutableSet.<Location> of());
+   }
+
+   private static <V> LoadingCache<Object, V> singleEntryCache(long ttlSeconds,
+            ListeningExecutorService userExecutor, CacheLoader<Object, V> loader) {
+      return CacheBuilder.newBuilder()
+               .refreshAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+               .maximumSize(1)
+               .recordStats()
+               .build(CacheLoader.asyncReloading(loader, userExecutor));
+   }
+
+   public Set<Image> listImages() {
+      ImmutableSet.Builder<Image> images = ImmutableSet.builder();
+      for (String region : regions.get())
+         images.addAll(imagesByRegion.getUnchecked(region).values());
+      return images.build();
+   }
+
+   /**
+    * The image catalog of {@code region}, keyed by slash-encoded id. The same instance is returned
+    * until the catalog of the region is reloaded, so callers can tell when derived data is stale.
+    */
+   public Map<String, Image> imagesOf(String region) {
+      return imagesByRegion.getUnchecked(region);
+   }
+
+   /**
+    * Returns the image with the given slash-encoded {@code region/imageId}, or null if there is
+    * none. An image missing from the catalog of its region is described on its own, and triggers a
+    * background refresh of the region unless one was triggered by a miss less than a
+    * {@value #MISS_REFRESHES_PER_TTL}th of the ttl ago.
+    */
+   public Image getImage(String id) {
+      String region = parseHandle(id)[0];
+      if (lazyImages) {
+         Map<String, Image> loaded = imagesByRegion.asMap().get(region);
+         return loaded != null && loaded.containsKey(id) ? loaded.get(id) : imagesById.getUnchecked(id).orNull();
+      }
+      Image image = imagesByRegion.getUnchecked(region).get(id);
+      if (image == null) {
+         if (shouldRefreshOnMiss(region)) {
+            logger.debug("image(%s) not in catalog; refreshing region(%s)", id, region);
+            imagesByRegion.refresh(region);
+         }
+         image = imagesById.getUnchecked(id).orNull();
+      }
+      return image;
+   }
+
+   /**
+    * Claims the next miss-triggered refresh of {@code region}, if its interval has passed.
+    */
+   private boolean shouldRefreshOnMiss(String region) {
+      long now = System.currentTimeMillis();
+      Long last = lastMissRefresh.putIfAbsent(region, now);
+      if (last == null)
+         return true;
+      return now - last >= missRefreshIntervalMillis && lastMissRefresh.replace(region, last, now);
+   }
+
+   public Set<Hardware> listHardwareProfiles() {
+      return hardware.getUnchecked(SINGLE_KEY);
+   }
+
+   public Set<Location> listLocations() {
+      return locations.getUnchecked(SINGLE_KEY);
+   }
+
+   /**
+    * Discards the image catalog of a region; the next access reloads it.
+    */
+   public void invalidateImages(String region) {
+      imagesByRegion.invalidate(region);
+      lastMissRefresh.remove(region);
+      for (String id : imagesById.asMap().keySet()) {
+         if (parseHandle(id)[0].equals(region))
+            imagesById.invalidate(id);
+      }
+   }
+
+   /**
+    * Discards every catalog; the next access to each reloads it.
+    */
+   public void invalidateAll() {
+      imagesByRegion.invalidateAll();
+      lastMissRefresh.clear();
+      imagesById.invalidateAll();
+      hardware.invalidateAll();
+      locations.invalidateAll();
+   }
+
+   /**
+    * Hit, miss and load counters of each catalog, keyed by {@code images}, {@code imagesById},
+    * {@code hardware} and {@code locations}.
+    */
+   public Map<String, CacheStats> stats() {
+      return ImmutableMap.of("images", imagesByRegion.stats(), "imagesById", imagesById.stats(), "hardware",
+               hardware.stats(), "locations", locations.stats());
+   }
+}
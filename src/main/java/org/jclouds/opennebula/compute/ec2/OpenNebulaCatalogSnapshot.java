@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_SNAPSHOT;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.ImageBuilder;
+import org.jclouds.compute.domain.OperatingSystem;
+import org.jclouds.compute.domain.OsFamily;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * On-disk copy of the image and location catalogs, read back through a memory-mapped buffer so
+ * that a new context can serve them before the first DescribeImages call completes.
+ * <p/>
+ * The file holds a header (magic, format version, creation time), a table of every location
+ * referenced, each pointing at its parent by index, the indices of the listed locations, and the
+ * images of each region. Strings are length-prefixed UTF-8. Login credentials are stored without
+ * passwords or keys. A file written by another format version, or that cannot be parsed, is
+ * ignored.
+ * <p/>
+ * Disabled unless {@link OpenNebulaComputeEC2Constants#PROPERTY_CATALOG_SNAPSHOT} names a file.
+ */
+@Singleton
+public class OpenNebulaCatalogSnapshot {
+
+   private static final int MAGIC = 0x4F4E4353;
+   private static final int VERSION = 1;
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final File file;
+
+   @Inject
+   OpenNebulaCatalogSnapshot(@Named(PROPERTY_CATALOG_SNAPSHOT) String path) {
+      this.file = checkNotNull(path, "path").trim().isEmpty() ? null : new File(path.trim());
+   }
+
+   public boolean isEnabled() {
+      return file != null;
+   }
+
+   /**
+    * Reads the snapshot, or returns null if it is disabled, missing or unreadable.
+    */
+   @Nullable
+   public Contents read() {
+      if (file == null || !file.isFile())
+         return null;
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            logger.warn("ignoring catalog snapshot %s written in another format", file);
+            return null;
+         }
+         Contents contents = readContents(buffer);
+         logger.debug("<< read catalog snapshot %s from %tF %<tT", file, contents.getCreated());
+         return contents;
+      } catch (IOException | RuntimeException e) {
+         logger.warn(e, "ignoring unreadable catalog snapshot %s", file);
+         return null;
+      }
+   }
+
+   /**
+    * Replaces the snapshot with the given catalogs. The file is written aside and moved into
+    * place, so readers never see a partial snapshot.
+    */
+   public synchronized void write(Map<String, Map<String, Image>> imagesByRegion, Set<Location> locations) {
+      if (file == null)
+         return;
+      File parent = file.getAbsoluteFile().getParentFile();
+      try {
+         parent.mkdirs();
+         File temp = File.createTempFile(file.getName(), ".tmp", parent);
+         try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+               out.writeInt(MAGIC);
+               out.writeInt(VERSION);
+               writeContents(out, imagesByRegion, locations);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                     StandardCopyOption.ATOMIC_MOVE);
+         } finally {
+            temp.delete();
+         }
+         logger.debug(">> wrote catalog snapshot %s", file);
+      } catch (IOException e) {
+         logger.warn(e, "could not write catalog snapshot %s", file);
+      }
+   }
+
+   private static void writeContents(DataOutputStream out, Map<String, Map<String, Image>> imagesByRegion,
+            Set<Location> locations) throws IOException {
+      out.writeLong(System.currentTimeMillis());
+
+      Map<Location, Integer> index = Maps.newLinkedHashMap();
+      for (Location location : locations)
+         indexLocation(location, index);
+      for (Map<String, Image> images : imagesByRegion.values()) {
+         for (Image image : images.values())
+            indexLocation(image.getLocation(), index);
+      }
+      out.writeInt(index.size());
+      for (Location location : index.keySet()) {
+         writeString(out, location.getScope().name());
+         writeString(out, location.getId());
+         writeString(out, location.getDescription());
+         out.writeInt(location.getParent() != null ? index.get(location.getParent()) : -1);
+         writeStrings(out, location.getIso3166Codes());
+      }
+      out.writeInt(locations.size());
+      for (Location location : locations)
+         out.writeInt(index.get(location));
+
+      out.writeInt(imagesByRegion.size());
+      for (Map.Entry<String, Map<String, Image>> region : imagesByRegion.entrySet()) {
+         writeString(out, region.getKey());
+         out.writeInt(region.getValue().size());
+         for (Image image : region.getValue().values())
+            writeImage(out, image, index);
+      }
+   }
+
+   private static void indexLocation(@Nullable Location location, Map<Location, Integer> index) {
+      if (location == null || index.containsKey(location))
+         return;
+      // parents are written before their children
+      indexLocation(location.getParent(), index);
+      index.put(location, index.size());
+   }
+
+   private static void writeImage(DataOutputStream out, Image image, Map<Location, Integer> index)
+            throws IOException {
+      writeString(out, image.getId());
+      writeString(out, image.getProviderId());
+      writeString(out, image.getName());
+      writeString(out, image.getDescription());
+      writeString(out, image.getVersion());
+      writeString(out, image.getStatus().name());
+      writeString(out, image.getBackendStatus());
+      writeString(out, image.getUri() != null ? image.getUri().toString() : null);
+      out.writeInt(image.getLocation() != null ? index.get(image.getLocation()) : -1);
+      OperatingSystem os = image.getOperatingSystem();
+      writeString(out, os.getFamily() != null ? os.getFamily().name() : null);
+      writeString(out, os.getName());
+      writeString(out, os.getVersion());
+      writeString(out, os.getArch());
+      writeString(out, os.getDescription());
+      out.writeBoolean(os.is64Bit());
+      LoginCredentials credentials = image.getDefaultCredentials();
+      writeString(out, credentials != null ? credentials.getUser() : null);
+      out.writeBoolean(credentials != null && credentials.shouldAuthenticateSudo());
+      writeStrings(out, image.getTags());
+      out.writeInt(image.getUserMetadata().size());
+      for (Map.Entry<String, String> entry : image.getUserMetadata().entrySet()) {
+         writeString(out, entry.getKey());
+         writeString(out, entry.getValue());
+      }
+   }
+
+   private static Contents readContents(ByteBuffer in) {
+      long created = in.getLong();
+
+      List<Location> table = Lists.newArrayList();
+      for (int i = in.getInt(); i > 0; i--) {
+         LocationBuilder location = new LocationBuilder().scope(LocationScope.valueOf(readString(in)))
+                  .id(readString(in)).description(readString(in));
+         int parent = in.getInt();
+         if (parent >= 0)
+            location.parent(table.get(parent));
+         table.add(location.iso3166Codes(readStrings(in)).build());
+      }
+      ImmutableSet.Builder<Location> locations = ImmutableSet.builder();
+      for (int i = in.getInt(); i > 0; i--)
+         locations.add(table.get(in.getInt()));
+
+      ImmutableMap.Builder<String, Map<String, Image>> imagesByRegion = ImmutableMap.builder();
+      for (int i = in.getInt(); i > 0; i--) {
+         String region = readString(in);
+         ImmutableMap.Builder<String, Image> images = ImmutableMap.builder();
+         for (int j = in.getInt(); j > 0; j--) {
+            Image image = readImage(in, table);
+            images.put(image.getId(), image);
+         }
+         imagesByRegion.put(region, images.build());
+      }
+      return new Contents(created, imagesByRegion.build(), locations.build());
+   }
+
+   private static Image readImage(ByteBuffer in, List<Location> table) {
+      ImageBuilder image = new ImageBuilder().id(readString(in)).providerId(readString(in)).name(readString(in))
+               .description(readString(in)).version(readString(in)).status(Image.Status.valueOf(readString(in)))
+               .backendStatus(readString(in));
+      String uri = readString(in);
+      if (uri != null)
+         image.uri(URI.create(uri));
+      int location = in.getInt();
+      if (location >= 0)
+         image.location(table.get(location));
+      String family = readString(in);
+      image.operatingSystem(OperatingSystem.builder().family(family != null ? OsFamily.valueOf(family) : null)
+               .name(readString(in)).version(readString(in)).arch(readString(in)).description(readString(in))
+               .is64Bit(in.get() != 0).build());
+      String user = readString(in);
+      boolean sudo = in.get() != 0;
+      if (user != null)
+         image.defaultCredentials(LoginCredentials.builder().user(user).authenticateSudo(sudo).build());
+      image.tags(readStrings(in));
+      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+      for (int i = in.getInt(); i > 0; i--)
+         metadata.put(readString(in), readString(in));
+      return image.userMetadata(metadata.build()).build();
+   }
+
+   private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = value.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static void writeStrings(DataOutputStream out, Set<String> values) throws IOException {
+      out.writeInt(values.size());
+      for (String value : values)
+         writeString(out, value);
+   }
+
+   @Nullable
+   private static String readString(ByteBuffer in) {
+      int length = in.getInt();
+      if (length < 0)
+         return null;
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, Charsets.UTF_8);
+   }
+
+   private static Set<String> readStrings(ByteBuffer in) {
+      ImmutableSet.Builder<String> values = ImmutableSet.builder();
+      for (int i = in.getInt(); i > 0; i--)
+         values.add(readString(in));
+      return values.build();
+   }
+
+   /**
+    * Catalogs read from a snapshot.
+    */
+   public static final class Contents {
+      private final long created;
+      private final Map<String, Map<String, Image>> imagesByRegion;
+      private final Set<Location> locations;
+
+      private Contents(long created, Map<String, Map<String, Image>> imagesByRegion, Set<Location> locations) {
+         this.created = created;
+         this.imagesByRegion = imagesByRegion;
+         this.locations = locations;
+      }
+
+      /**
+       * When the snapshot was written, in milliseconds since the epoch.
+       */
+      public long getCreated() {
+         return created;
+      }
+
+      public Map<String, Map<String, Image>> getImagesByRegion() {
+         return imagesByRegion;
+      }
+
+      public Set<Location> getLocations() {
+         return locations;
+      }
+   }
+}
@@ -18,12 +18,42 @@
 package org.jclouds.opennebula.compute.ec2;
 
 import org.jclouds.ec2.EC2Api;
-//import org.jclouds.location.functions.RegionToEndpoint;
-//import org.jclouds.rest.annotations.Delegate;
-//import org.jclouds.rest.annotations.EndpointParam;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.location.functions.RegionToEndpointOrProviderIfNull;
+import org.jclouds.rest.annotations.Delegate;
+import org.jclouds.rest.annotations.EndpointParam;
+
+import com.google.common.base.Optional;
 
 public interface OpenNebulaComputeEC2Api extends EC2Api{
-    
-//    @Delegate
-//    HostApi getHostApi();
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaInstanceApi> getInstanceApi();
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaInstanceApi> getInstanceApiForRegion(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region);
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaKeyPairApi> getKeyPairApi();
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaKeyPairApi> getKeyPairApiForRegion(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region);
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaSecurityGroupApi> getSecurityGroupApi();
+
+   @Delegate
+   @Override
+   Optional<? extends OpenNebulaSecurityGroupApi> getSecurityGroupApiForRegion(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region);
+
+   @Delegate
+   HostApi getHostApi();
 }
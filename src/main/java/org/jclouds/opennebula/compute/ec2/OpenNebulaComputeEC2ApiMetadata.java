@@ -25,12 +25,37 @@ import org.jclouds.apis.ApiMetadata;
 import org.jclouds.ec2.EC2ApiMetadata;
 import org.jclouds.ec2.compute.EC2ComputeServiceContext;
 import org.jclouds.ec2.compute.config.EC2ResolveImagesModule;
-import org.jclouds.ec2.compute.config.EC2ComputeServiceContextModule;
 //import org.jclouds.ec2.config.EC2HttpApiModule;
 import org.jclouds.rest.internal.BaseHttpApiMetadata;
 
-import static org.jclouds.location.reference.LocationConstants.PROPERTY_REGIONS;
-//import org.jclouds.opennebula.compute.ec2.Region;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ASYNC_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_LAZY_IMAGES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_MAX_IMAGES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_SNAPSHOT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_CATALOG_TTL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HOST_CAPACITY_REFRESH;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HTTP_KEEP_ALIVE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HTTP_MAX_IDLE_CONNECTIONS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_METRICS_JMX;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PLACEMENT_LATENCY_WEIGHT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PLACEMENT_MODE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MAX_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MIN_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PROVISIONING_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT_FLOOR;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RETRY_MAX_DELAY;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RUN_INSTANCES_MAX_COUNT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SCRIPT_PARALLELISM;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SECURITY_GROUP_TTL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_KEEP_ALIVE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_MAX_IDLE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_STATE_CHANGE_CHUNK_SIZE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONES;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONE_PARTIAL_RESULTS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONE_TIMEOUT;
 
 import com.google.auto.service.AutoService;
 import com.google.common.collect.ImmutableSet;
@@ -55,8 +80,34 @@ public final class OpenNebulaComputeEC2ApiMetadata extends BaseHttpApiMetadata<O
 
    public static Properties defaultProperties() {
       Properties properties = EC2ApiMetadata.defaultProperties();
-      properties.setProperty(PROPERTY_REGIONS, "opennebula");
-//      properties.putAll(Region.regionProperties());
+      properties.setProperty(PROPERTY_ZONES, Region.DEFAULT);
+      properties.setProperty(PROPERTY_ZONE_TIMEOUT, "30000");
+      properties.setProperty(PROPERTY_ZONE_PARTIAL_RESULTS, "false");
+      properties.setProperty(PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE, "100");
+      properties.setProperty(PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE, "0");
+      properties.setProperty(PROPERTY_CATALOG_TTL, "600");
+      properties.setProperty(PROPERTY_CATALOG_MAX_IMAGES, "10000");
+      properties.setProperty(PROPERTY_RUN_INSTANCES_MAX_COUNT, "50");
+      properties.setProperty(PROPERTY_PROVISIONING_THREADS, "20");
+      properties.setProperty(PROPERTY_ASYNC_THREADS, "20");
+      properties.setProperty(PROPERTY_STATE_CHANGE_CHUNK_SIZE, "100");
+      properties.setProperty(PROPERTY_POLLER_MIN_INTERVAL, "1000");
+      properties.setProperty(PROPERTY_POLLER_MAX_INTERVAL, "10000");
+      properties.setProperty(PROPERTY_HOST_CAPACITY_REFRESH, "30");
+      properties.setProperty(PROPERTY_PLACEMENT_MODE, "template");
+      properties.setProperty(PROPERTY_PLACEMENT_LATENCY_WEIGHT, "0.1");
+      properties.setProperty(PROPERTY_RATE_LIMIT, "50");
+      properties.setProperty(PROPERTY_RATE_LIMIT_FLOOR, "1");
+      properties.setProperty(PROPERTY_RETRY_MAX_DELAY, "20000");
+      properties.setProperty(PROPERTY_METRICS_JMX, "true");
+      properties.setProperty(PROPERTY_CATALOG_SNAPSHOT, "");
+      properties.setProperty(PROPERTY_CATALOG_LAZY_IMAGES, "false");
+      properties.setProperty(PROPERTY_HTTP_MAX_IDLE_CONNECTIONS, "20");
+      properties.setProperty(PROPERTY_HTTP_KEEP_ALIVE, "60000");
+      properties.setProperty(PROPERTY_SCRIPT_PARALLELISM, "10");
+      properties.setProperty(PROPERTY_SSH_POOL_MAX_IDLE, "1");
+      properties.setProperty(PROPERTY_SSH_POOL_KEEP_ALIVE, "60000");
+      properties.setProperty(PROPERTY_SECURITY_GROUP_TTL, "60");
       
       return properties;
    }
@@ -73,9 +124,10 @@ public final class OpenNebulaComputeEC2ApiMetadata extends BaseHttpApiMetadata<O
          .defaultProperties(OpenNebulaComputeEC2ApiMetadata.defaultProperties())
          .view(EC2ComputeServiceContext.class)
          .defaultModules(ImmutableSet.<Class<? extends Module>>builder()
-                                     .add(OpenNebulaComputeEC2HttpApiModule.class)
+                                     .add(OpenNebulaComputeEC2InstrumentedApiModule.class)
+                                     // only binds the default login of images, which OpenNebulaCatalogCache loads
                                      .add(EC2ResolveImagesModule.class)
-                                     .add(EC2ComputeServiceContextModule.class).build());
+                                     .add(OpenNebulaComputeServiceContextModule.class).build());
       }
 
       @Override
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import java.util.Set;
+
+import org.jclouds.ec2.domain.Image;
+import org.jclouds.ec2.domain.InstanceStateChange;
+import org.jclouds.ec2.domain.KeyPair;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.domain.Volume;
+import org.jclouds.ec2.options.DescribeImagesOptions;
+import org.jclouds.ec2.options.RunInstancesOptions;
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Non-blocking view of the instance, image, volume and key pair operations of
+ * {@link OpenNebulaComputeEC2Api}. Every call returns immediately; the blocking request runs on a
+ * pool of {@link OpenNebulaComputeEC2Constants#PROPERTY_ASYNC_THREADS} threads and its outcome,
+ * including any exception, is delivered through the returned future. Each method is served by the
+ * blocking method of the same name and parameters.
+ * 
+ * @see OpenNebulaComputeEC2Api
+ */
+public interface OpenNebulaComputeEC2AsyncApi {
+
+   ListenableFuture<Set<? extends Reservation<? extends RunningInstance>>> describeInstancesInRegion(
+            @Nullable String region, String... instanceIds);
+
+   ListenableFuture<Reservation<? extends RunningInstance>> runInstancesInRegion(@Nullable String region,
+            @Nullable String nullableAvailabilityZone, String imageId, int minCount, int maxCount,
+            RunInstancesOptions... options);
+
+   ListenableFuture<Set<? extends InstanceStateChange>> terminateInstancesInRegion(@Nullable String region,
+            String... instanceIds);
+
+   ListenableFuture<Set<? extends InstanceStateChange>> startInstancesInRegion(@Nullable String region,
+            String... instanceIds);
+
+   ListenableFuture<Set<? extends InstanceStateChange>> stopInstancesInRegion(@Nullable String region,
+            boolean force, String... instanceIds);
+
+   ListenableFuture<Set<? extends Image>> describeImagesInRegion(@Nullable String region,
+            DescribeImagesOptions... options);
+
+   ListenableFuture<Set<Volume>> describeVolumesInRegion(@Nullable String region, String... volumeIds);
+
+   ListenableFuture<Volume> createVolumeInAvailabilityZone(String availabilityZone, int size);
+
+   ListenableFuture<Void> deleteVolumeInRegion(@Nullable String region, String volumeId);
+
+   ListenableFuture<Set<KeyPair>> describeKeyPairsInRegion(@Nullable String region, String... keyPairNames);
+
+   ListenableFuture<KeyPair> createKeyPairInRegion(@Nullable String region, String keyName);
+
+   ListenableFuture<Void> deleteKeyPairInRegion(@Nullable String region, String keyName);
+}
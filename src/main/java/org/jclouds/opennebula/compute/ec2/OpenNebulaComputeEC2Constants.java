@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+/**
+ * Configuration properties and constants used in OpenNebula Compute EC2 connections.
+ */
+public final class OpenNebulaComputeEC2Constants {
+
+   /**
+    * Maximum number of instance ids sent as {@code InstanceId.N} parameters of a single
+    * DescribeInstances call.
+    */
+   public static final String PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE = "jclouds.opennebula-compute-ec2.describe-instances.chunk-size";
+
+   /**
+    * {@code MaxResults} of each DescribeInstances call when listing nodes, which are then fetched
+    * page by page as they are iterated. 0 lists each zone with a single call.
+    */
+   public static final String PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE = "jclouds.opennebula-compute-ec2.describe-instances.page-size";
+
+   /**
+    * Seconds after which the image, hardware and location catalogs are refreshed in the background.
+    * Stale entries keep being served until the refresh completes.
+    */
+   public static final String PROPERTY_CATALOG_TTL = "jclouds.opennebula-compute-ec2.catalog.ttl";
+
+   /**
+    * Maximum number of images kept in the image catalog across all regions. A region with more
+    * images than that only keeps the first ones listed.
+    */
+   public static final String PROPERTY_CATALOG_MAX_IMAGES = "jclouds.opennebula-compute-ec2.catalog.max-images";
+
+   /**
+    * File the image and location catalogs are saved to after each load and read from when a
+    * context starts, so that they are available before the first DescribeImages call completes.
+    * Empty, the default, disables the snapshot.
+    */
+   public static final String PROPERTY_CATALOG_SNAPSHOT = "jclouds.opennebula-compute-ec2.catalog.snapshot";
+
+   /**
+    * Whether single images are described by id when requested, instead of loading the whole image
+    * catalog of their region. The full catalog is then only loaded when images are listed, for
+    * instance to match a template. Defaults to false.
+    */
+   public static final String PROPERTY_CATALOG_LAZY_IMAGES = "jclouds.opennebula-compute-ec2.catalog.lazy-images";
+
+   /**
+    * Maximum number of instances requested through the MaxCount of a single RunInstances call.
+    */
+   public static final String PROPERTY_RUN_INSTANCES_MAX_COUNT = "jclouds.opennebula-compute-ec2.run-instances.max-count";
+
+   /**
+    * Number of threads running the calls of {@link OpenNebulaComputeEC2AsyncApi}, and so the maximum
+    * number of its requests in flight. Further calls wait for a thread.
+    */
+   public static final String PROPERTY_ASYNC_THREADS = "jclouds.opennebula-compute-ec2.async.threads";
+
+   /**
+    * Number of threads naming, tagging and waiting for newly created nodes.
+    */
+   public static final String PROPERTY_PROVISIONING_THREADS = "jclouds.opennebula-compute-ec2.provisioning.threads";
+
+   /**
+    * Maximum number of instance ids sent in a single Terminate, Stop, Start or RebootInstances
+    * call by the {@code *NodesMatching} operations.
+    */
+   public static final String PROPERTY_STATE_CHANGE_CHUNK_SIZE = "jclouds.opennebula-compute-ec2.state-change.chunk-size";
+
+   /**
+    * Shortest interval, in milliseconds, between two polls of the shared node state poller. Used
+    * while nodes are changing state.
+    */
+   public static final String PROPERTY_POLLER_MIN_INTERVAL = "jclouds.opennebula-compute-ec2.poller.min-interval";
+
+   /**
+    * Longest interval, in milliseconds, the shared node state poller backs off to while no awaited
+    * node changes state.
+    */
+   public static final String PROPERTY_POLLER_MAX_INTERVAL = "jclouds.opennebula-compute-ec2.poller.max-interval";
+
+   /**
+    * Seconds between two refreshes of the in-memory host capacity snapshot.
+    */
+   public static final String PROPERTY_HOST_CAPACITY_REFRESH = "jclouds.opennebula-compute-ec2.host-capacity.refresh";
+
+   /**
+    * How nodes are placed across availability zones: {@code template} (the default) uses the zone of
+    * the template; {@code capacity} spreads nodes created in a region across its available zones,
+    * favouring zones with more free capacity and faster recent provisioning.
+    */
+   public static final String PROPERTY_PLACEMENT_MODE = "jclouds.opennebula-compute-ec2.placement.mode";
+
+   /**
+    * How strongly recent provisioning latency, in seconds, lowers the score of a zone in
+    * {@code capacity} placement mode. 0 ranks zones by free capacity alone.
+    */
+   public static final String PROPERTY_PLACEMENT_LATENCY_WEIGHT = "jclouds.opennebula-compute-ec2.placement.latency-weight";
+
+   /**
+    * Requests per second allowed for each EC2 action, 0 to disable rate limiting. Can be
+    * overridden per action by appending its name, as in
+    * {@code jclouds.opennebula-compute-ec2.rate-limit.RunInstances}. The rate is lowered while
+    * econe-server reports overload and recovers up to this value afterwards.
+    */
+   public static final String PROPERTY_RATE_LIMIT = "jclouds.opennebula-compute-ec2.rate-limit";
+
+   /**
+    * Lowest rate, in requests per second, an action is throttled down to while econe-server reports
+    * overload.
+    */
+   public static final String PROPERTY_RATE_LIMIT_FLOOR = "jclouds.opennebula-compute-ec2.rate-limit.floor";
+
+   /**
+    * Longest delay, in milliseconds, before retrying a request that failed with a server error.
+    */
+   public static final String PROPERTY_RETRY_MAX_DELAY = "jclouds.opennebula-compute-ec2.retry.max-delay";
+
+   /**
+    * Whether the default in-memory metrics are exported over JMX. Defaults to true, which registers
+    * one {@code org.jclouds.opennebula-compute-ec2:type=Metrics} MBean with the platform MBean
+    * server for every context, unregistered when the context is closed.
+    */
+   public static final String PROPERTY_METRICS_JMX = "jclouds.opennebula-compute-ec2.metrics.jmx";
+
+   /**
+    * OpenNebula zones to use, as comma-separated names each optionally followed by {@code =} and
+    * the endpoint of its econe-server. Defaults to a single zone served by the provider endpoint.
+    * 
+    * @see Region
+    */
+   public static final String PROPERTY_ZONES = "jclouds.opennebula-compute-ec2.zones";
+
+   /**
+    * Milliseconds a listing waits for a zone that sends no further instance. A zone idle for that
+    * long fails the listing, or is dropped from it with {@link #PROPERTY_ZONE_PARTIAL_RESULTS}; time
+    * spent waiting for the caller does not count.
+    */
+   public static final String PROPERTY_ZONE_TIMEOUT = "jclouds.opennebula-compute-ec2.zone-timeout";
+
+   /**
+    * Whether node listings leave out a zone that fails or times out, with a warning, instead of
+    * failing. Listings made to change nodes, such as {@code destroyNodesMatching}, always fail.
+    * Defaults to false.
+    */
+   public static final String PROPERTY_ZONE_PARTIAL_RESULTS = "jclouds.opennebula-compute-ec2.zones.partial-results";
+
+   /**
+    * Maximum number of idle connections to econe-server kept open for reuse by
+    * {@link PooledOkHttpCommandExecutorServiceModule}.
+    */
+   public static final String PROPERTY_HTTP_MAX_IDLE_CONNECTIONS = "jclouds.opennebula-compute-ec2.http.max-idle-connections";
+
+   /**
+    * Milliseconds after which an idle pooled connection is closed by
+    * {@link PooledOkHttpCommandExecutorServiceModule}.
+    */
+   public static final String PROPERTY_HTTP_KEEP_ALIVE = "jclouds.opennebula-compute-ec2.http.keep-alive";
+
+   /**
+    * Maximum number of nodes running a script at the same time.
+    */
+   public static final String PROPERTY_SCRIPT_PARALLELISM = "jclouds.opennebula-compute-ec2.script.parallelism";
+
+   /**
+    * Maximum number of idle SSH connections kept open per node for the next script.
+    */
+   public static final String PROPERTY_SSH_POOL_MAX_IDLE = "jclouds.opennebula-compute-ec2.ssh-pool.max-idle";
+
+   /**
+    * Milliseconds after which an idle pooled SSH connection is closed.
+    */
+   public static final String PROPERTY_SSH_POOL_KEEP_ALIVE = "jclouds.opennebula-compute-ec2.ssh-pool.keep-alive";
+
+   /**
+    * Seconds the security groups of a region and their rules are kept after being described,
+    * before being described again. Changes made through the security group extension are recorded
+    * without describing the group.
+    */
+   public static final String PROPERTY_SECURITY_GROUP_TTL = "jclouds.opennebula-compute-ec2.security-group.ttl";
+
+   /**
+    * Tag holding the group a node was created in.
+    */
+   public static final String GROUP_TAG = "jclouds-group";
+
+   private OpenNebulaComputeEC2Constants() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+}
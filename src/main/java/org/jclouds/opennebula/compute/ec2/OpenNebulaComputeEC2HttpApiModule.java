@@ -18,10 +18,46 @@
 
 package org.jclouds.opennebula.compute.ec2;
 
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ASYNC_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PROVISIONING_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SCRIPT_PARALLELISM;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.xml.stream.XMLInputFactory;
+
+import org.jclouds.aws.filters.FormSigner;
 import org.jclouds.ec2.EC2Api;
 import org.jclouds.ec2.config.BaseEC2HttpApiModule;
+import org.jclouds.ec2.suppliers.DescribeAvailabilityZonesInRegion;
+import org.jclouds.http.HttpRetryHandler;
+import org.jclouds.http.annotation.ClientError;
+import org.jclouds.http.annotation.ServerError;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.location.config.LocationModule;
+import org.jclouds.location.suppliers.RegionIdToURISupplier;
+import org.jclouds.location.suppliers.RegionIdToZoneIdsSupplier;
+import org.jclouds.location.suppliers.RegionIdsSupplier;
+import org.jclouds.location.suppliers.ZoneIdToURISupplier;
+import org.jclouds.location.suppliers.ZoneIdsSupplier;
+import org.jclouds.location.suppliers.derived.RegionIdsFromRegionIdToURIKeySet;
+import org.jclouds.location.suppliers.derived.ZoneIdToURIFromJoinOnRegionIdToURI;
+import org.jclouds.location.suppliers.derived.ZoneIdsFromRegionIdToZoneIdsValues;
 
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provides;
+import com.google.inject.Scopes;
 
+/**
+ * Bindings of the generated api. Contexts install it through
+ * {@link OpenNebulaComputeEC2InstrumentedApiModule}.
+ */
 public class OpenNebulaComputeEC2HttpApiModule extends BaseEC2HttpApiModule<OpenNebulaComputeEC2Api>{
   
    public OpenNebulaComputeEC2HttpApiModule() {
@@ -30,7 +66,115 @@ public class OpenNebulaComputeEC2HttpApiModule extends BaseEC2HttpApiModule<Open
     
    @Override
    protected void configure() {
-      bind(EC2Api.class).to(OpenNebulaComputeEC2Api.class);
+      // signs with OpenNebulaFormSigner once a rate limit permit is taken
+      bind(FormSigner.class).to(RateLimitingFormSigner.class);
       super.configure();
    }
+
+   /**
+    * Regions are the configured OpenNebula zones rather than the result of DescribeRegions, as each
+    * zone of a federation has its own econe-server.
+    * 
+    * @see Region
+    */
+   @Override
+   protected void installLocations() {
+      install(new LocationModule());
+      bind(RegionIdToURISupplier.class).to(ZoneEndpointsFromConfiguration.class).in(Scopes.SINGLETON);
+      bind(RegionIdsSupplier.class).to(RegionIdsFromRegionIdToURIKeySet.class).in(Scopes.SINGLETON);
+      bind(RegionIdToZoneIdsSupplier.class).to(DescribeAvailabilityZonesInRegion.class).in(Scopes.SINGLETON);
+      bind(ZoneIdsSupplier.class).to(ZoneIdsFromRegionIdToZoneIdsValues.class).in(Scopes.SINGLETON);
+      bind(ZoneIdToURISupplier.class).to(ZoneIdToURIFromJoinOnRegionIdToURI.class).in(Scopes.SINGLETON);
+   }
+
+   @Override
+   protected void bindRetryHandlers() {
+      bind(HttpRetryHandler.class).annotatedWith(ClientError.class).to(OpenNebulaServerErrorRetryHandler.class);
+      bind(HttpRetryHandler.class).annotatedWith(ServerError.class).to(OpenNebulaServerErrorRetryHandler.class);
+   }
+
+   /**
+    * The same instance as {@link OpenNebulaComputeEC2Api}, which
+    * {@link OpenNebulaComputeEC2InstrumentedApiModule} binds to the instrumented view.
+    */
+   @Provides
+   @Singleton
+   protected EC2Api provideEC2Api(OpenNebulaComputeEC2Api api) {
+      return api;
+   }
+
+   /**
+    * Shared factory for the streaming response parsers. DTDs and external entities are disabled, as
+    * EC2 responses never use them.
+    */
+   @Provides
+   @Singleton
+   protected XMLInputFactory provideXMLInputFactory() {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+      return factory;
+   }
+
+   /**
+    * Runs the calls of the non-blocking api on a bounded pool, shut down when the context is closed.
+    * 
+    * @see AsyncInvocationHandler
+    */
+   @Provides
+   @Singleton
+   protected OpenNebulaComputeEC2AsyncApi provideAsyncApi(OpenNebulaComputeEC2Api api,
+            @Named(PROPERTY_ASYNC_THREADS) int threads, Closer closer) {
+      final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+               .setNameFormat("opennebula-async-%d").setDaemon(true).build());
+      closer.addToClose(new Closeable() {
+         @Override
+         public void close() {
+            executor.shutdownNow();
+         }
+      });
+      return AsyncInvocationHandler.async(OpenNebulaComputeEC2AsyncApi.class, OpenNebulaComputeEC2Api.class, api,
+               MoreExecutors.listeningDecorator(executor));
+   }
+
+   /**
+    * Bounded pool used to name, tag and wait for nodes, so that large provisioning requests cannot
+    * exhaust the user executor. Shut down when the context is closed.
+    */
+   @Provides
+   @Singleton
+   @Named(PROPERTY_PROVISIONING_THREADS)
+   protected ListeningExecutorService provideProvisioningExecutor(@Named(PROPERTY_PROVISIONING_THREADS) int threads,
+            Closer closer) {
+      final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+               .setNameFormat("opennebula-provisioning-%d").setDaemon(true).build());
+      closer.addToClose(new Closeable() {
+         @Override
+         public void close() {
+            executor.shutdownNow();
+         }
+      });
+      return MoreExecutors.listeningDecorator(executor);
+   }
+
+   /**
+    * One thread per node running a script, which bounds how many nodes run scripts at once. Shut
+    * down when the context is closed.
+    */
+   @Provides
+   @Singleton
+   @Named(PROPERTY_SCRIPT_PARALLELISM)
+   protected ListeningExecutorService provideScriptExecutor(@Named(PROPERTY_SCRIPT_PARALLELISM) int parallelism,
+            Closer closer) {
+      final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+               .setNameFormat("opennebula-script-%d").setDaemon(true).build());
+      closer.addToClose(new Closeable() {
+         @Override
+         public void close() {
+            executor.shutdownNow();
+         }
+      });
+      return MoreExecutors.listeningDecorator(executor);
+   }
 }
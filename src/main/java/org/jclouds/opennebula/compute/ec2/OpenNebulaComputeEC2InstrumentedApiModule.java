@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.inject.Qualifier;
+import javax.inject.Singleton;
+
+import org.jclouds.rest.ConfiguresHttpApi;
+import org.jclouds.rest.config.HttpApiProvider;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.TypeLiteral;
+import com.google.inject.util.Modules;
+
+/**
+ * Configures the api: the bindings of {@link OpenNebulaComputeEC2HttpApiModule}, with
+ * {@link OpenNebulaComputeEC2Api}, and so {@link org.jclouds.ec2.EC2Api} and
+ * {@code ApiContext.getApi()}, bound to a view of the generated api whose calls are reported to
+ * {@link OpenNebulaMetrics}, and whose concurrent identical read-only calls share a single request.
+ * <p/>
+ * The http api module binds the generated api to the unqualified key itself, so it is overridden
+ * rather than extended. The generated api remains available to the view only.
+ * 
+ * @see MeteringInvocationHandler
+ * @see SingleFlightInvocationHandler
+ */
+@ConfiguresHttpApi
+public class OpenNebulaComputeEC2InstrumentedApiModule extends AbstractModule {
+
+   @Retention(RUNTIME)
+   @Target({ PARAMETER, METHOD })
+   @Qualifier
+   private @interface Generated {
+   }
+
+   @Override
+   protected void configure() {
+      install(Modules.override(new OpenNebulaComputeEC2HttpApiModule()).with(new AbstractModule() {
+         @Override
+         protected void configure() {
+            bind(OpenNebulaComputeEC2Api.class).annotatedWith(Generated.class).toProvider(
+                     new TypeLiteral<HttpApiProvider<OpenNebulaComputeEC2Api>>() {
+                     });
+         }
+
+         @Provides
+         @Singleton
+         protected OpenNebulaComputeEC2Api provideApi(@Generated OpenNebulaComputeEC2Api api,
+                  OpenNebulaMetrics metrics) {
+            return SingleFlightInvocationHandler.coalescing(OpenNebulaComputeEC2Api.class,
+                     MeteringInvocationHandler.metering(OpenNebulaComputeEC2Api.class, api, metrics));
+         }
+      }));
+   }
+}
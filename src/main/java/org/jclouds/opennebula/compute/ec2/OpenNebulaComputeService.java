@@ -15,11 +15,31 @@
  * limitations under the License.
  */
 package org.jclouds.opennebula.compute.ec2;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.filter;
+import static com.google.common.collect.Iterables.transform;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.compute.RunNodesException;
@@ -29,185 +49,371 @@ import org.jclouds.compute.domain.ExecResponse;
 import org.jclouds.compute.domain.Hardware;
 import org.jclouds.compute.domain.Image;
 import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
 import org.jclouds.compute.domain.Template;
 import org.jclouds.compute.domain.TemplateBuilder;
 import org.jclouds.compute.extensions.ImageExtension;
 import org.jclouds.compute.extensions.SecurityGroupExtension;
 import org.jclouds.compute.options.RunScriptOptions;
 import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.compute.predicates.NodePredicates;
 import org.jclouds.domain.Location;
+import org.jclouds.ec2.compute.functions.RunningInstanceToNodeMetadata;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.opennebula.compute.ec2.OpenNebulaNodePredicates.InstanceFilter;
 import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.Statements;
 
+@Singleton
 public class OpenNebulaComputeService implements ComputeService{
 
+    // a provider, as the context is built around this service
+    private final Provider<ComputeServiceContext> context;
+    private final OpenNebulaCatalogCache catalog;
+    private final OpenNebulaTemplateIndex templateIndex;
+    private final OpenNebulaCreateNodesInGroup createNodesInGroup;
+    private final OpenNebulaComputeServiceAdapter adapter;
+    private final OpenNebulaBatchedNodeActions batchedNodeActions;
+    private final OpenNebulaScriptRunner scriptRunner;
+    private final OpenNebulaSecurityGroupExtension securityGroupExtension;
+    private final RunningInstanceToNodeMetadata runningInstanceToNodeMetadata;
+
+    private final Function<RunningInstance, NodeMetadata> toNodeMetadata = new Function<RunningInstance, NodeMetadata>() {
+        @Override
+        public NodeMetadata apply(RunningInstance instance) {
+            NodeMetadata node = runningInstanceToNodeMetadata.apply(instance);
+            String group = instance.getTags().get(GROUP_TAG);
+            return group == null ? node : NodeMetadataBuilder.fromNodeMetadata(node).group(group).build();
+        }
+    };
+
+    @Inject
+    OpenNebulaComputeService(Provider<ComputeServiceContext> context, OpenNebulaCatalogCache catalog,
+            OpenNebulaTemplateIndex templateIndex,
+            OpenNebulaCreateNodesInGroup createNodesInGroup,
+            OpenNebulaComputeServiceAdapter adapter, OpenNebulaBatchedNodeActions batchedNodeActions,
+            OpenNebulaScriptRunner scriptRunner, OpenNebulaSecurityGroupExtension securityGroupExtension,
+            RunningInstanceToNodeMetadata runningInstanceToNodeMetadata) {
+        this.context = checkNotNull(context, "context");
+        this.catalog = checkNotNull(catalog, "catalog");
+        this.templateIndex = checkNotNull(templateIndex, "templateIndex");
+        this.createNodesInGroup = checkNotNull(createNodesInGroup, "createNodesInGroup");
+        this.adapter = checkNotNull(adapter, "adapter");
+        this.batchedNodeActions = checkNotNull(batchedNodeActions, "batchedNodeActions");
+        this.scriptRunner = checkNotNull(scriptRunner, "scriptRunner");
+        this.securityGroupExtension = checkNotNull(securityGroupExtension, "securityGroupExtension");
+        this.runningInstanceToNodeMetadata = checkNotNull(runningInstanceToNodeMetadata, "runningInstanceToNodeMetadata");
+    }
+
     @Override
     public ComputeServiceContext getContext() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return context.get();
     }
 
     @Override
     public TemplateBuilder templateBuilder() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return templateIndex.templateBuilder();
     }
 
     @Override
     public TemplateOptions templateOptions() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new EC2TemplateOptions();
     }
 
     @Override
     public Set<? extends Hardware> listHardwareProfiles() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return catalog.listHardwareProfiles();
     }
 
     @Override
     public Set<? extends Image> listImages() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return catalog.listImages();
     }
 
     @Override
     public Image getImage(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return catalog.getImage(checkNotNull(id, "id"));
     }
 
     @Override
     public Set<? extends ComputeMetadata> listNodes() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return ImmutableSet.copyOf(transform(adapter.listNodes(), toNodeMetadata));
+    }
+
+    /**
+     * Same as {@link #listNodes()}, but nodes are fetched and mapped while the caller iterates
+     * instead of being collected first, so the first nodes are available before the whole
+     * inventory has been listed. Set
+     * {@link OpenNebulaComputeEC2Constants#PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE} to also bound
+     * the size of each DescribeInstances response.
+     * <p/>
+     * Each call lists the nodes afresh; the returned iterable can be iterated only once. Its
+     * iterator is {@link Closeable}: close it when stopping before the end, so that the responses
+     * still being read are released.
+     */
+    public FluentIterable<NodeMetadata> listNodesLazily() {
+        return lazily(adapter.listNodes(), Predicates.alwaysTrue());
+    }
+
+    /**
+     * Same as {@link #listNodesLazily()}, restricted to the nodes matching {@code filter}, which is
+     * pushed down to econe-server if it is one of the {@link OpenNebulaNodePredicates}.
+     */
+    public FluentIterable<NodeMetadata> listNodesLazily(Predicate<? super NodeMetadata> filter) {
+        checkNotNull(filter, "filter");
+        return lazily(instancesMatching(filter), filter);
+    }
+
+    private FluentIterable<NodeMetadata> lazily(final Iterable<RunningInstance> instances,
+            final Predicate<? super NodeMetadata> filter) {
+        return new FluentIterable<NodeMetadata>() {
+            @Override
+            public Iterator<NodeMetadata> iterator() {
+                return new LazyNodes(instances.iterator(), filter);
+            }
+        };
+    }
+
+    /**
+     * Maps instances to the nodes matching a filter as they are iterated, and closes the
+     * instances' iterator when closed itself.
+     */
+    private final class LazyNodes extends AbstractIterator<NodeMetadata> implements Closeable {
+        private final Iterator<RunningInstance> instances;
+        private final Predicate<? super NodeMetadata> filter;
+
+        private LazyNodes(Iterator<RunningInstance> instances, Predicate<? super NodeMetadata> filter) {
+            this.instances = instances;
+            this.filter = filter;
+        }
+
+        @Override
+        protected NodeMetadata computeNext() {
+            while (instances.hasNext()) {
+                NodeMetadata node = toNodeMetadata.apply(instances.next());
+                if (filter.apply(node))
+                    return node;
+            }
+            return endOfData();
+        }
+
+        @Override
+        public void close() {
+            if (instances instanceof Closeable)
+                closeQuietly((Closeable) instances);
+        }
     }
 
     @Override
     public Set<? extends NodeMetadata> listNodesByIds(Iterable<String> ids) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return ImmutableSet.copyOf(transform(adapter.listNodesByIds(checkNotNull(ids, "ids")), toNodeMetadata));
     }
 
     @Override
     public Set<? extends Location> listAssignableLocations() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return catalog.listLocations();
     }
 
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count, Template template) throws RunNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        checkNotNull(group, "group");
+        checkNotNull(template, "template");
+        return createNodesInGroup.execute(group, count, template);
     }
 
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count, TemplateOptions templateOptions) throws RunNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return createNodesInGroup(group, count, templateBuilder().options(checkNotNull(templateOptions, "templateOptions")).build());
     }
 
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count) throws RunNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return createNodesInGroup(group, count, templateBuilder().build());
     }
 
     @Override
     public void resumeNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        adapter.resumeNode(checkNotNull(id, "id"));
     }
 
+    /**
+     * @throws NodeActionException
+     *            if some of the nodes could not be resumed, with the nodes that were
+     */
     @Override
     public Set<? extends NodeMetadata> resumeNodesMatching(Predicate<NodeMetadata> filter) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return batchedNodeActions.resume(nodesMatching(filter));
     }
 
     @Override
     public void suspendNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        adapter.suspendNode(checkNotNull(id, "id"));
     }
 
+    /**
+     * @throws NodeActionException
+     *            if some of the nodes could not be suspended, with the nodes that were
+     */
     @Override
     public Set<? extends NodeMetadata> suspendNodesMatching(Predicate<NodeMetadata> filter) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return batchedNodeActions.suspend(nodesMatching(filter));
     }
 
     @Override
     public void destroyNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        adapter.destroyNode(checkNotNull(id, "id"));
     }
 
+    /**
+     * @throws NodeActionException
+     *            if some of the nodes could not be destroyed, with the nodes that were
+     */
     @Override
     public Set<? extends NodeMetadata> destroyNodesMatching(Predicate<NodeMetadata> filter) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return batchedNodeActions.destroy(nodesMatching(filter));
     }
 
     @Override
     public void rebootNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        adapter.rebootNode(checkNotNull(id, "id"));
     }
 
+    /**
+     * @throws NodeActionException
+     *            if some of the nodes could not be rebooted, with the nodes that were
+     */
     @Override
     public Set<? extends NodeMetadata> rebootNodesMatching(Predicate<NodeMetadata> filter) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return batchedNodeActions.reboot(nodesMatching(filter));
     }
 
     @Override
     public NodeMetadata getNodeMetadata(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        RunningInstance instance = adapter.getNode(checkNotNull(id, "id"));
+        return instance == null ? null : toNodeMetadata.apply(instance);
     }
 
     @Override
     public Set<? extends NodeMetadata> listNodesDetailsMatching(Predicate<ComputeMetadata> filter) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        checkNotNull(filter, "filter");
+        return ImmutableSet.copyOf(filter(transform(instancesMatching(filter), toNodeMetadata), filter));
     }
 
     @Override
     public Map<? extends NodeMetadata, ExecResponse> runScriptOnNodesMatching(Predicate<NodeMetadata> filter, String runScript) throws RunScriptOnNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNodesMatching(filter, Statements.exec(checkNotNull(runScript, "runScript")), RunScriptOptions.NONE);
     }
 
     @Override
     public Map<? extends NodeMetadata, ExecResponse> runScriptOnNodesMatching(Predicate<NodeMetadata> filter, Statement runScript) throws RunScriptOnNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNodesMatching(filter, runScript, RunScriptOptions.NONE);
     }
 
     @Override
     public Map<? extends NodeMetadata, ExecResponse> runScriptOnNodesMatching(Predicate<NodeMetadata> filter, String runScript, RunScriptOptions options) throws RunScriptOnNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNodesMatching(filter, Statements.exec(checkNotNull(runScript, "runScript")), options);
     }
 
     @Override
     public Map<? extends NodeMetadata, ExecResponse> runScriptOnNodesMatching(Predicate<NodeMetadata> filter, Statement runScript, RunScriptOptions options) throws RunScriptOnNodesException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return scriptRunner.run(runningNodesMatching(filter), checkNotNull(runScript, "runScript"),
+                checkNotNull(options, "options"));
     }
 
     @Override
     public ExecResponse runScriptOnNode(String id, Statement runScript, RunScriptOptions options) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return scriptRunner.run(node(id), checkNotNull(runScript, "runScript"), checkNotNull(options, "options"));
     }
 
     @Override
     public ListenableFuture<ExecResponse> submitScriptOnNode(String id, String runScript, RunScriptOptions options) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return submitScriptOnNode(id, Statements.exec(checkNotNull(runScript, "runScript")), options);
     }
 
     @Override
     public ListenableFuture<ExecResponse> submitScriptOnNode(String id, Statement runScript, RunScriptOptions options) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return scriptRunner.submit(node(id), checkNotNull(runScript, "runScript"), checkNotNull(options, "options"));
     }
 
     @Override
     public ExecResponse runScriptOnNode(String id, Statement runScript) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNode(id, runScript, RunScriptOptions.NONE);
     }
 
     @Override
     public ExecResponse runScriptOnNode(String id, String runScript, RunScriptOptions options) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNode(id, Statements.exec(checkNotNull(runScript, "runScript")), options);
     }
 
     @Override
     public ExecResponse runScriptOnNode(String id, String runScript) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return runScriptOnNode(id, runScript, RunScriptOptions.NONE);
+    }
+
+    /**
+     * Same as {@link #runScriptOnNodesMatching(Predicate, Statement, RunScriptOptions)}, but returns
+     * right away with the futures of the responses in the order the nodes finish, so that each
+     * result can be handled as soon as its node is done instead of after the slowest one. A future
+     * fails if the script could not be run on its node.
+     */
+    public List<ListenableFuture<Map.Entry<NodeMetadata, ExecResponse>>> submitScriptOnNodesMatching(
+            Predicate<NodeMetadata> filter, Statement runScript, RunScriptOptions options) {
+        return scriptRunner.submit(runningNodesMatching(filter), checkNotNull(runScript, "runScript"),
+                checkNotNull(options, "options"));
     }
 
     @Override
     public Optional<ImageExtension> getImageExtension() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return Optional.absent();
     }
 
     @Override
     public Optional<SecurityGroupExtension> getSecurityGroupExtension() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return Optional.<SecurityGroupExtension> of(securityGroupExtension);
+    }
+
+    private NodeMetadata node(String id) {
+        NodeMetadata node = getNodeMetadata(id);
+        if (node == null)
+            throw new NoSuchElementException(id);
+        return node;
+    }
+
+    private Iterable<NodeMetadata> runningNodesMatching(Predicate<NodeMetadata> filter) {
+        return filter(nodesMatching(filter), NodePredicates.RUNNING);
+    }
+
+    /**
+     * Nodes matching {@code filter} that are about to be changed, so listed from every zone or not
+     * at all.
+     */
+    private Iterable<NodeMetadata> nodesMatching(Predicate<NodeMetadata> filter) {
+        checkNotNull(filter, "filter");
+        return filter(transform(instancesMatching(filter, true), toNodeMetadata), filter);
+    }
+
+    private Iterable<RunningInstance> instancesMatching(Predicate<?> filter) {
+        return instancesMatching(filter, false);
+    }
+
+    /**
+     * Lists only the instances matching {@code filter} when it is one of the
+     * {@link OpenNebulaNodePredicates}, and every instance otherwise.
+     * 
+     * @param complete
+     *           whether a zone that cannot be listed fails the listing even with
+     *           {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_PARTIAL_RESULTS}
+     */
+    private Iterable<RunningInstance> instancesMatching(Predicate<?> filter, boolean complete) {
+        Multimap<String, String> instanceFilter = ImmutableMultimap.of();
+        if (filter instanceof InstanceFilter) {
+            InstanceFilter<?> pushedDown = InstanceFilter.class.cast(filter);
+            if (pushedDown.matchesNothing())
+                return ImmutableSet.of();
+            instanceFilter = pushedDown.getFilter();
+        }
+        return complete ? adapter.listAllNodesWithFilter(instanceFilter) : adapter.listNodesWithFilter(instanceFilter);
     }
     
 }
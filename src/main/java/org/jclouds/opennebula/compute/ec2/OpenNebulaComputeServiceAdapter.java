@@ -16,70 +16,242 @@
  */
 package org.jclouds.opennebula.compute.ec2;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.getFirst;
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
 import org.jclouds.compute.ComputeServiceAdapter;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
 import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.compute.reference.ComputeServiceConstants.Timeouts;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.features.TagApi;
+import org.jclouds.location.Region;
+import org.jclouds.logging.Logger;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+
+@Singleton
+public class OpenNebulaComputeServiceAdapter implements ComputeServiceAdapter<RunningInstance, Hardware, Image, Location> {
 
+    @Resource
+    @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+    protected Logger logger = Logger.NULL;
 
-public class OpenNebulaComputeServiceAdapter implements ComputeServiceAdapter{
+    private final OpenNebulaComputeEC2Api api;
+    private final Supplier<Set<String>> regions;
+    private final OpenNebulaCatalogCache catalog;
+    private final DescribeInstancesInChunks describeInstances;
+    private final DescribeInstancesInPages describeInstancesInPages;
+    private final ListInstancesAcrossZones listInstancesAcrossZones;
+    private final OpenNebulaNodeStatePoller poller;
+    private final OpenNebulaZonePlacement placement;
+    private final Timeouts timeouts;
+    private final OpenNebulaMetrics metrics;
+
+    @Inject
+    OpenNebulaComputeServiceAdapter(OpenNebulaComputeEC2Api api, @Region Supplier<Set<String>> regions,
+            OpenNebulaCatalogCache catalog, DescribeInstancesInChunks describeInstances, DescribeInstancesInPages describeInstancesInPages,
+            ListInstancesAcrossZones listInstancesAcrossZones,
+            OpenNebulaNodeStatePoller poller,
+            OpenNebulaZonePlacement placement, Timeouts timeouts, OpenNebulaMetrics metrics) {
+        this.api = checkNotNull(api, "api");
+        this.regions = checkNotNull(regions, "regions");
+        this.catalog = checkNotNull(catalog, "catalog");
+        this.describeInstances = checkNotNull(describeInstances, "describeInstances");
+        this.describeInstancesInPages = checkNotNull(describeInstancesInPages, "describeInstancesInPages");
+        this.listInstancesAcrossZones = checkNotNull(listInstancesAcrossZones, "listInstancesAcrossZones");
+        this.poller = checkNotNull(poller, "poller");
+        this.placement = checkNotNull(placement, "placement");
+        this.timeouts = checkNotNull(timeouts, "timeouts");
+        this.metrics = checkNotNull(metrics, "metrics");
+    }
 
     @Override
-    public NodeAndInitialCredentials createNodeWithGroupEncodedIntoName(String group, String name, Template template) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public NodeAndInitialCredentials<RunningInstance> createNodeWithGroupEncodedIntoName(String group, String name, Template template) {
+        String region = OpenNebulaCreateNodesInGroup.regionOf(template.getLocation());
+        String zone = OpenNebulaCreateNodesInGroup.zoneOf(template.getLocation());
+        if (zone == null && placement.isEnabled())
+            zone = getFirst(placement.rank(region), null);
+        long started = System.currentTimeMillis();
+        RunningInstance instance = getOnlyElement(api.getInstanceApiForRegion(region).get().runInstancesInRegion(region,
+                zone, template.getImage().getProviderId(), 1, 1,
+                OpenNebulaCreateNodesInGroup.runInstancesOptions(template)));
+        String handle = region + "/" + instance.getId();
+        Optional<? extends TagApi> tagApi = api.getTagApiForRegion(region);
+        if (tagApi.isPresent())
+            tagApi.get().applyToResources(ImmutableMap.of("Name", name, GROUP_TAG, group), ImmutableSet.of(instance.getId()));
+        RunningInstance running = timed(OpenNebulaMetrics.CREATE_TO_RUNNING, started,
+                poller.await(handle, timeouts.nodeRunning, InstanceState.RUNNING));
+        placement.recordProvisioningLatency(running.getAvailabilityZone(), System.currentTimeMillis() - started);
+        return new NodeAndInitialCredentials<RunningInstance>(running, handle, null);
     }
 
+    /**
+     * Hardware, images and locations are served from the {@link OpenNebulaCatalogCache}.
+     */
     @Override
-    public Iterable listHardwareProfiles() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Iterable<Hardware> listHardwareProfiles() {
+        return catalog.listHardwareProfiles();
     }
 
     @Override
-    public Iterable listImages() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Iterable<Image> listImages() {
+        return catalog.listImages();
     }
 
     @Override
-    public Object getImage(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Image getImage(String id) {
+        return catalog.getImage(id);
     }
 
     @Override
-    public Iterable listLocations() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Iterable<Location> listLocations() {
+        return catalog.listLocations();
     }
 
     @Override
-    public Object getNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public RunningInstance getNode(String id) {
+        String[] parts = parseHandle(id);
+        try {
+            return getFirst(describeInstances.inRegion(parts[0], ImmutableSet.of(parts[1])), null);
+        } catch (ResourceNotFoundException e) {
+            return null;
+        }
     }
 
     @Override
     public void destroyNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String[] parts = parseHandle(id);
+        long started = System.currentTimeMillis();
+        api.getInstanceApiForRegion(parts[0]).get().terminateInstancesInRegion(parts[0], parts[1]);
+        timed(OpenNebulaMetrics.DESTROY_TO_TERMINATED, started,
+                poller.awaitExisting(id, timeouts.nodeTerminated, InstanceState.TERMINATED));
     }
 
     @Override
     public void rebootNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String[] parts = parseHandle(id);
+        api.getInstanceApiForRegion(parts[0]).get().rebootInstancesInRegion(parts[0], parts[1]);
     }
 
     @Override
     public void resumeNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String[] parts = parseHandle(id);
+        long started = System.currentTimeMillis();
+        api.getInstanceApiForRegion(parts[0]).get().startInstancesInRegion(parts[0], parts[1]);
+        timed(OpenNebulaMetrics.RESUME_TO_RUNNING, started, poller.await(id, timeouts.nodeRunning, InstanceState.RUNNING));
     }
 
     @Override
     public void suspendNode(String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String[] parts = parseHandle(id);
+        long started = System.currentTimeMillis();
+        api.getInstanceApiForRegion(parts[0]).get().stopInstancesInRegion(parts[0], false, parts[1]);
+        timed(OpenNebulaMetrics.SUSPEND_TO_STOPPED, started,
+                poller.await(id, timeouts.nodeSuspended, InstanceState.STOPPED));
     }
 
+    /**
+     * Lists the instances of every configured zone. Zones are requested in parallel and their
+     * instances are parsed as they are consumed, page by page if
+     * {@link OpenNebulaComputeEC2Constants#PROPERTY_DESCRIBE_INSTANCES_PAGE_SIZE} is set, so the
+     * whole inventory is never held in memory at once and a stalled zone fails the listing after
+     * {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_TIMEOUT}. Iterators are
+     * {@link java.io.Closeable}, to release the listing when stopping early.
+     */
     @Override
-    public Iterable listNodes() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Iterable<RunningInstance> listNodes() {
+        return listNodesWithFilter(ImmutableMultimap.<String, String> of());
+    }
+
+    /**
+     * Same as {@link #listNodes()}, but econe-server is asked to return only the instances matching
+     * the DescribeInstances {@code filter}.
+     */
+    public Iterable<RunningInstance> listNodesWithFilter(Multimap<String, String> filter) {
+        return listInstancesAcrossZones.list(regions.get(), inRegion(filter));
     }
 
+    /**
+     * Same as {@link #listNodesWithFilter}, but a zone that cannot be listed always fails the
+     * listing, even with {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONE_PARTIAL_RESULTS}, as
+     * the nodes listed are about to be changed.
+     */
+    public Iterable<RunningInstance> listAllNodesWithFilter(Multimap<String, String> filter) {
+        return listInstancesAcrossZones.listComplete(regions.get(), inRegion(filter));
+    }
+
+    private Function<String, Iterable<RunningInstance>> inRegion(final Multimap<String, String> filter) {
+        return new Function<String, Iterable<RunningInstance>>() {
+            @Override
+            public Iterable<RunningInstance> apply(String region) {
+                logger.trace(">> streaming instances in region(%s) matching %s", region, filter);
+                return describeInstancesInPages.inRegion(region, filter);
+            }
+        };
+    }
+
+    /**
+     * Looks up the given slash-encoded {@code region/instanceId} handles, grouping them by region
+     * and sending at most {@link OpenNebulaComputeEC2Constants#PROPERTY_DESCRIBE_INSTANCES_CHUNK_SIZE}
+     * ids per DescribeInstances call.
+     */
     @Override
-    public Iterable listNodesByIds(Iterable ids) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Iterable<RunningInstance> listNodesByIds(Iterable<String> ids) {
+        return describeInstances.byHandles(ids);
     }
-    
+
+    /**
+     * Awaits a state change and reports the time since {@code started} to {@link OpenNebulaMetrics}.
+     */
+    private <T> T timed(String operation, long started, Future<T> future) {
+        boolean failed = true;
+        try {
+            T result = await(future);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(operation, MILLISECONDS.toNanos(System.currentTimeMillis() - started), failed);
+        }
+    }
+
+    /**
+     * Blocks on a future of the shared poller, which enforces the timeout itself.
+     */
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
 }
@@ -16,8 +16,35 @@
  */
 package org.jclouds.opennebula.compute.ec2;
 
-import org.jclouds.compute.config.BaseComputeServiceContextModule;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceAdapter;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.compute.config.EC2ComputeServiceContextModule;
+import org.jclouds.ec2.domain.RunningInstance;
 
-public class OpenNebulaComputeServiceContextModule  extends BaseComputeServiceContextModule{
-    
+import com.google.inject.AbstractModule;
+import com.google.inject.TypeLiteral;
+import com.google.inject.util.Modules;
+
+/**
+ * Configures the compute view: the stock EC2 bindings, with {@link ComputeService} implemented by
+ * {@link OpenNebulaComputeService} on top of {@link OpenNebulaComputeServiceAdapter}.
+ * <p/>
+ * The EC2 module binds its own compute service, so it is overridden rather than extended.
+ */
+public class OpenNebulaComputeServiceContextModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        install(Modules.override(new EC2ComputeServiceContextModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(ComputeService.class).to(OpenNebulaComputeService.class);
+                bind(new TypeLiteral<ComputeServiceAdapter<RunningInstance, Hardware, Image, Location>>() {
+                }).to(OpenNebulaComputeServiceAdapter.class);
+            }
+        }));
+    }
 }
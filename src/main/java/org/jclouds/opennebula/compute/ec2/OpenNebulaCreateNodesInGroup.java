@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PROVISIONING_THREADS;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RUN_INSTANCES_MAX_COUNT;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.compute.domain.SecurityGroup;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.functions.GroupNamingConvention;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.compute.reference.ComputeServiceConstants.Timeouts;
+import org.jclouds.domain.Credentials;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.ec2.compute.functions.RunningInstanceToNodeMetadata;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.KeyPair;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.features.TagApi;
+import org.jclouds.ec2.options.RunInstancesOptions;
+import org.jclouds.logging.Logger;
+import org.jclouds.net.domain.IpPermission;
+import org.jclouds.net.domain.IpProtocol;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Creates nodes with as few RunInstances calls as possible: the requested count is split into
+ * batches of at most {@link OpenNebulaComputeEC2Constants#PROPERTY_RUN_INSTANCES_MAX_COUNT}
+ * instances, each launched with a single call. Naming and tagging each node then happen
+ * concurrently on the provisioning executor as soon as its batch returns, and the wait for it to
+ * be running is handed to the shared {@link OpenNebulaNodeStatePoller}, so no thread is held per
+ * node while OpenNebula boots it.
+ * <p/>
+ * In {@code capacity} placement mode, nodes requested for a region rather than a specific zone are
+ * first spread across its zones by {@link OpenNebulaZonePlacement}.
+ * <p/>
+ * As the stock EC2 provider does, nodes also join the {@code jclouds#<group>} security group,
+ * created by {@link OpenNebulaSecurityGroupExtension} if needed. Unless the template names groups
+ * of its own, that group opens the template's inbound ports and lets the nodes of the group reach
+ * each other. When the template authorizes a public key but names no key pair, the key is
+ * imported once by {@link OpenNebulaKeyPairManager} and its pair passed to RunInstances; when it
+ * has no key at all, the nodes get the key pair created for their group, whose private key
+ * becomes their login key. User metadata and tags are applied as instance tags.
+ * <p/>
+ * Nodes that fail to be tagged or to be running in time are terminated, and reported as failed in
+ * the {@link RunNodesException}.
+ */
+@Singleton
+public class OpenNebulaCreateNodesInGroup {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaComputeEC2Api api;
+   private final RunningInstanceToNodeMetadata toNodeMetadata;
+   private final GroupNamingConvention.Factory namingConvention;
+   private final OpenNebulaNodeStatePoller poller;
+   private final Timeouts timeouts;
+   private final OpenNebulaZonePlacement placement;
+   private final OpenNebulaMetrics metrics;
+   private final OpenNebulaKeyPairManager keyPairs;
+   private final OpenNebulaSecurityGroupExtension securityGroups;
+   private final OpenNebulaBatchedNodeActions nodeActions;
+   private final Map<String, Credentials> credentialStore;
+   private final ListeningExecutorService provisioningExecutor;
+   private final int maxCountPerCall;
+
+   @Inject
+   OpenNebulaCreateNodesInGroup(OpenNebulaComputeEC2Api api, RunningInstanceToNodeMetadata toNodeMetadata,
+            GroupNamingConvention.Factory namingConvention,
+            OpenNebulaNodeStatePoller poller, Timeouts timeouts, OpenNebulaZonePlacement placement,
+            OpenNebulaMetrics metrics, OpenNebulaKeyPairManager keyPairs,
+            OpenNebulaSecurityGroupExtension securityGroups, OpenNebulaBatchedNodeActions nodeActions,
+            Map<String, Credentials> credentialStore,
+            @Named(PROPERTY_PROVISIONING_THREADS) ListeningExecutorService provisioningExecutor,
+            @Named(PROPERTY_RUN_INSTANCES_MAX_COUNT) int maxCountPerCall) {
+      this.api = checkNotNull(api, "api");
+      this.toNodeMetadata = checkNotNull(toNodeMetadata, "toNodeMetadata");
+      this.namingConvention = checkNotNull(namingConvention, "namingConvention");
+      this.poller = checkNotNull(poller, "poller");
+      this.timeouts = checkNotNull(timeouts, "timeouts");
+      this.placement = checkNotNull(placement, "placement");
+      this.metrics = checkNotNull(metrics, "metrics");
+      this.keyPairs = checkNotNull(keyPairs, "keyPairs");
+      this.securityGroups = checkNotNull(securityGroups, "securityGroups");
+      this.nodeActions = checkNotNull(nodeActions, "nodeActions");
+      this.credentialStore = checkNotNull(credentialStore, "credentialStore");
+      this.provisioningExecutor = checkNotNull(provisioningExecutor, "provisioningExecutor");
+      checkArgument(maxCountPerCall > 0, "%s must be positive", PROPERTY_RUN_INSTANCES_MAX_COUNT);
+      this.maxCountPerCall = maxCountPerCall;
+   }
+
+   /**
+    * Creates {@code count} nodes in {@code group}.
+    * 
+    * @throws RunNodesException
+    *            if any batch or node failed; the nodes that did start are listed as successful,
+    *            and the nodes that did not are terminated
+    */
+   public Set<NodeMetadata> execute(final String group, int count, Template template) throws RunNodesException {
+      checkArgument(count > 0, "count must be positive");
+      final String region = regionOf(template.getLocation());
+      final String imageId = template.getImage().getProviderId();
+      final RunInstancesOptions options = runInstancesOptions(template, securityGroups(group, template));
+      final String importedKeyName = importKeyPair(region, template);
+      final KeyPair groupKeyPair = importedKeyName == null ? groupKeyPair(region, group, template) : null;
+      if (importedKeyName != null)
+         options.withKeyName(importedKeyName);
+      else if (groupKeyPair != null)
+         options.withKeyName(groupKeyPair.getKeyName());
+      final Map<String, String> tags = tags(template);
+      final LoginCredentials login = groupKeyPair != null ? login(template, groupKeyPair) : null;
+
+      List<ListenableFuture<Batch>> batches = Lists.newArrayList();
+      for (Map.Entry<String, Integer> allocation : allocate(template.getLocation(), count).entrySet()) {
+         final String zone = allocation.getKey();
+         for (int launched = 0; launched < allocation.getValue(); launched += maxCountPerCall) {
+            final int size = Math.min(maxCountPerCall, allocation.getValue() - launched);
+            final String label = format("RunInstances(%s, %s x%d) #%d", zone != null ? zone : region, imageId,
+                     size, batches.size());
+            batches.add(provisioningExecutor.submit(new Callable<Batch>() {
+               @Override
+               public Batch call() {
+                  logger.debug(">> running %s", label);
+                  long started = System.currentTimeMillis();
+                  try {
+                     return new Batch(label, size, started, ImmutableList.<RunningInstance> copyOf(api
+                              .getInstanceApiForRegion(region).get()
+                              .runInstancesInRegion(region, zone, imageId, 1, size, options)), null);
+                  } catch (RuntimeException e) {
+                     String keyName = importedKeyName != null ? importedKeyName
+                              : groupKeyPair != null ? groupKeyPair.getKeyName() : null;
+                     if (keyName != null && OpenNebulaKeyPairManager.hasErrorCode(e, "InvalidKeyPair.NotFound"))
+                        keyPairs.invalidate(region, keyName);
+                     return new Batch(label, size, started, ImmutableList.<RunningInstance> of(), e);
+                  }
+               }
+            }));
+         }
+      }
+
+      Map<String, Exception> executionExceptions = Maps.newLinkedHashMap();
+      Map<ListenableFuture<NodeMetadata>, NodeMetadata> pending = Maps.newLinkedHashMap();
+      final GroupNamingConvention naming = namingConvention.createWithoutPrefix();
+      for (ListenableFuture<Batch> future : Futures.inCompletionOrder(batches)) {
+         final Batch batch = Futures.getUnchecked(future);
+         if (batch.exception != null) {
+            logger.warn(batch.exception, "<< %s failed", batch.label);
+            executionExceptions.put(batch.label, batch.exception);
+         } else if (batch.instances.size() < batch.requested) {
+            executionExceptions.put(batch.label, new IllegalStateException(format("requested %d instances, got %d",
+                     batch.requested, batch.instances.size())));
+         }
+         for (final RunningInstance instance : batch.instances) {
+            ListenableFuture<String> named = provisioningExecutor.submit(new Callable<String>() {
+               @Override
+               public String call() {
+                  return tag(instance, group, naming.uniqueNameForGroup(group), tags);
+               }
+            });
+            pending.put(Futures.transform(named, new AsyncFunction<String, NodeMetadata>() {
+               @Override
+               public ListenableFuture<NodeMetadata> apply(String name) {
+                  return awaitRunning(instance, group, name, login, batch.started);
+               }
+            }), toNodeMetadata.apply(instance));
+         }
+      }
+
+      Set<NodeMetadata> good = Sets.newLinkedHashSet();
+      Map<NodeMetadata, Throwable> badNodes = Maps.newLinkedHashMap();
+      for (Map.Entry<ListenableFuture<NodeMetadata>, NodeMetadata> entry : pending.entrySet()) {
+         try {
+            good.add(entry.getKey().get());
+         } catch (ExecutionException e) {
+            badNodes.put(entry.getValue(), e.getCause());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            badNodes.put(entry.getValue(), e);
+         }
+      }
+      if (!badNodes.isEmpty())
+         terminate(badNodes.keySet());
+      if (!executionExceptions.isEmpty() || !badNodes.isEmpty())
+         throw new RunNodesException(group, count, template, good, executionExceptions, badNodes);
+      return good;
+   }
+
+   private String tag(RunningInstance instance, String group, String name, Map<String, String> tags) {
+      Optional<? extends TagApi> tagApi = api.getTagApiForRegion(instance.getRegion());
+      if (tagApi.isPresent())
+         tagApi.get().applyToResources(ImmutableMap.<String, String> builder().putAll(tags).put("Name", name)
+                  .put(GROUP_TAG, group).build(), ImmutableSet.of(instance.getId()));
+      return name;
+   }
+
+   /**
+    * Terminates nodes that did not come up, so that they are not left running unmanaged.
+    */
+   private void terminate(Set<NodeMetadata> nodes) {
+      logger.debug(">> terminating %d nodes that did not start", nodes.size());
+      try {
+         nodeActions.destroy(nodes);
+      } catch (RuntimeException e) {
+         logger.warn(e, "<< could not terminate all nodes that did not start");
+      }
+   }
+
+   /**
+    * Number of nodes to create in each zone, keyed by null when the zone is left to OpenNebula.
+    */
+   private Map<String, Integer> allocate(Location location, int count) {
+      String zone = zoneOf(location);
+      if (zone == null && placement.isEnabled()) {
+         Map<String, Integer> spread = placement.spread(regionOf(location), count);
+         if (!spread.isEmpty())
+            return spread;
+      }
+      Map<String, Integer> single = Maps.newHashMap();
+      single.put(zone, count);
+      return single;
+   }
+
+   private ListenableFuture<NodeMetadata> awaitRunning(RunningInstance instance, final String group,
+            final String name, final LoginCredentials login, final long started) {
+      ListenableFuture<RunningInstance> running = poller.await(instance.getRegion() + "/" + instance.getId(),
+               timeouts.nodeRunning, InstanceState.RUNNING);
+      Futures.addCallback(running, new FutureCallback<RunningInstance>() {
+         @Override
+         public void onSuccess(RunningInstance result) {
+            record(false);
+         }
+
+         @Override
+         public void onFailure(Throwable t) {
+            record(true);
+         }
+
+         private void record(boolean failed) {
+            metrics.record(OpenNebulaMetrics.CREATE_TO_RUNNING,
+                     MILLISECONDS.toNanos(System.currentTimeMillis() - started), failed);
+         }
+      });
+      return Futures.transform(running, new Function<RunningInstance, NodeMetadata>() {
+         @Override
+         public NodeMetadata apply(RunningInstance input) {
+            placement.recordProvisioningLatency(input.getAvailabilityZone(), System.currentTimeMillis() - started);
+            NodeMetadataBuilder node = NodeMetadataBuilder.fromNodeMetadata(toNodeMetadata.apply(input)).name(name)
+                     .group(group);
+            if (login != null) {
+               credentialStore.put("node#" + input.getRegion() + "/" + input.getId(), login);
+               node.credentials(login);
+            }
+            return node.build();
+         }
+      }, provisioningExecutor);
+   }
+
+   /**
+    * Name of the key pair holding the public key authorized by {@code template}, or null if the
+    * template names a key pair itself, opts out of key pairs, or authorizes no key.
+    */
+   private String importKeyPair(String region, Template template) {
+      if (!(template.getOptions() instanceof EC2TemplateOptions))
+         return null;
+      EC2TemplateOptions ec2Options = EC2TemplateOptions.class.cast(template.getOptions());
+      if (ec2Options.getKeyPair() != null || !ec2Options.shouldAutomaticallyCreateKeyPair()
+               || ec2Options.getPublicKey() == null)
+         return null;
+      return keyPairs.keyNameFor(region, ec2Options.getPublicKey());
+   }
+
+   /**
+    * The key pair created for {@code group}, or null if the template names or authorizes a key, or
+    * opts out of key pairs.
+    */
+   private KeyPair groupKeyPair(String region, String group, Template template) {
+      if (!(template.getOptions() instanceof EC2TemplateOptions))
+         return null;
+      EC2TemplateOptions ec2Options = EC2TemplateOptions.class.cast(template.getOptions());
+      if (ec2Options.getKeyPair() != null || !ec2Options.shouldAutomaticallyCreateKeyPair()
+               || ec2Options.getPublicKey() != null)
+         return null;
+      return keyPairs.keyPairFor(region, group);
+   }
+
+   /**
+    * The default login of the image, with the private key of {@code keyPair}.
+    */
+   private static LoginCredentials login(Template template, KeyPair keyPair) {
+      LoginCredentials defaults = template.getImage().getDefaultCredentials();
+      LoginCredentials.Builder login = defaults != null ? defaults.toBuilder()
+               : LoginCredentials.builder().user("root");
+      return login.privateKey(keyPair.getKeyMaterial()).build();
+   }
+
+   /**
+    * Names of the security groups of the nodes of {@code group}: {@code jclouds#<group>}, created
+    * if needed, and the groups of the template. Without template groups, the former is given a
+    * rule per inbound port and rules letting its members reach each other.
+    */
+   private Set<String> securityGroups(String group, Template template) {
+      String name = namingConvention.create().sharedNameForGroup(group);
+      Set<String> groups = template.getOptions() instanceof EC2TemplateOptions ? EC2TemplateOptions.class
+               .cast(template.getOptions()).getGroups() : ImmutableSet.<String> of();
+      SecurityGroup created = securityGroups.createSecurityGroup(name, template.getLocation());
+      if (groups.isEmpty()) {
+         ImmutableList.Builder<IpPermission> rules = ImmutableList.builder();
+         for (int port : template.getOptions().getInboundPorts())
+            rules.add(IpPermission.builder().ipProtocol(IpProtocol.TCP).fromPort(port).toPort(port)
+                     .cidrBlock("0.0.0.0/0").build());
+         for (IpProtocol protocol : ImmutableList.of(IpProtocol.TCP, IpProtocol.UDP))
+            rules.add(IpPermission.builder().ipProtocol(protocol).fromPort(0).toPort(65535)
+                     .tenantIdGroupNamePair(created.getOwnerId(), name).build());
+         rules.add(IpPermission.builder().ipProtocol(IpProtocol.ICMP).fromPort(-1).toPort(-1)
+                  .tenantIdGroupNamePair(created.getOwnerId(), name).build());
+         securityGroups.addIpPermissions(created, rules.build());
+      }
+      return ImmutableSet.<String> builder().add(name).addAll(groups).build();
+   }
+
+   /**
+    * User metadata of the template, and its tags as keys with an empty value, as the stock EC2
+    * provider tags instances.
+    */
+   private static Map<String, String> tags(Template template) {
+      Map<String, String> tags = Maps.newLinkedHashMap();
+      for (String tag : template.getOptions().getTags())
+         tags.put(tag, "");
+      for (Map.Entry<String, String> metadata : template.getOptions().getUserMetadata().entrySet())
+         tags.put(metadata.getKey(), metadata.getValue());
+      tags.remove("Name");
+      tags.remove(GROUP_TAG);
+      return tags;
+   }
+
+   static RunInstancesOptions runInstancesOptions(Template template) {
+      Set<String> groups = template.getOptions() instanceof EC2TemplateOptions ? EC2TemplateOptions.class
+               .cast(template.getOptions()).getGroups() : ImmutableSet.<String> of();
+      return runInstancesOptions(template, groups);
+   }
+
+   /**
+    * Options launching the hardware of {@code template} in {@code securityGroups}, with the key
+    * pair, user data and block device mappings of its options.
+    */
+   static RunInstancesOptions runInstancesOptions(Template template, Set<String> securityGroups) {
+      RunInstancesOptions options = RunInstancesOptions.Builder.asType(template.getHardware().getProviderId());
+      if (!securityGroups.isEmpty())
+         options.withSecurityGroups(securityGroups);
+      if (template.getOptions() instanceof EC2TemplateOptions) {
+         EC2TemplateOptions ec2Options = EC2TemplateOptions.class.cast(template.getOptions());
+         if (ec2Options.getKeyPair() != null)
+            options.withKeyName(ec2Options.getKeyPair());
+         if (ec2Options.getUserData() != null)
+            options.withUserData(ec2Options.getUserData());
+         if (!ec2Options.getBlockDeviceMappings().isEmpty())
+            options.withBlockDeviceMappings(ec2Options.getBlockDeviceMappings());
+      }
+      return options;
+   }
+
+   static String regionOf(Location location) {
+      return location.getScope() == LocationScope.ZONE ? location.getParent().getId() : location.getId();
+   }
+
+   static String zoneOf(Location location) {
+      return location.getScope() == LocationScope.ZONE ? location.getId() : null;
+   }
+
+   private static final class Batch {
+      private final String label;
+      private final int requested;
+      private final long started;
+      private final List<RunningInstance> instances;
+      private final RuntimeException exception;
+
+      private Batch(String label, int requested, long started, List<RunningInstance> instances,
+               RuntimeException exception) {
+         this.label = label;
+         this.requested = requested;
+         this.started = started;
+         this.instances = instances;
+         this.exception = exception;
+      }
+   }
+}
@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.aws.reference.FormParameters.ACTION;
+import static org.jclouds.aws.reference.FormParameters.AWS_ACCESS_KEY_ID;
+import static org.jclouds.aws.reference.FormParameters.SIGNATURE;
+import static org.jclouds.aws.reference.FormParameters.SIGNATURE_METHOD;
+import static org.jclouds.aws.reference.FormParameters.SIGNATURE_VERSION;
+import static org.jclouds.aws.reference.FormParameters.TIMESTAMP;
+import static org.jclouds.aws.reference.FormParameters.VERSION;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.Constants;
+import org.jclouds.aws.domain.SessionCredentials;
+import org.jclouds.aws.filters.FormSigner;
+import org.jclouds.aws.reference.FormParameters;
+import org.jclouds.date.TimeStamp;
+import org.jclouds.domain.Credentials;
+import org.jclouds.http.HttpException;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.logging.Logger;
+import org.jclouds.rest.annotations.ApiVersion;
+import org.jclouds.util.Strings2;
+
+import com.google.common.base.Supplier;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Signature version 2 form signer producing the same signatures as {@link FormSigner.FormSignerV2}
+ * with far less garbage per request.
+ * <p/>
+ * Each thread keeps its own initialised {@link Mac}, parameter slots and character and byte
+ * buffers, and the signing parameters are encoded once per credential and timestamp rather than
+ * once per request. Values are percent-encoded straight into the string to sign, which then also
+ * becomes the form payload, so the sorted parameter map, the query line and the intermediate
+ * strings of the stock signer are never built. Values whose encoding the stock signer leaves to
+ * {@link Strings2#urlEncode} quirks ({@code ~}, {@code *}, spaces and surrogate pairs) are
+ * encoded by {@link Strings2#urlEncode} here too. As in the stock signer, any {@code Version}
+ * parameter is replaced by the api version.
+ */
+@Singleton
+public class OpenNebulaFormSigner implements FormSigner {
+
+   private static final String ALGORITHM = "HmacSHA256";
+
+   /**
+    * Parameters the signer adds to every form: signature method and version, api version,
+    * timestamp, access key and, with session credentials, the security token.
+    */
+   private static final int SIGNING_PARAMETERS = 6;
+
+   @Resource
+   @Named(Constants.LOGGER_SIGNATURE)
+   protected Logger signatureLog = Logger.NULL;
+
+   private final Supplier<Credentials> creds;
+   private final Provider<String> timestamps;
+   private final String apiVersion;
+   private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+      @Override
+      protected Buffers initialValue() {
+         return new Buffers(apiVersion);
+      }
+   };
+
+   @Inject
+   OpenNebulaFormSigner(@org.jclouds.location.Provider Supplier<Credentials> creds,
+            @TimeStamp Provider<String> timestamps, @ApiVersion String apiVersion) {
+      this.creds = checkNotNull(creds, "creds");
+      this.timestamps = checkNotNull(timestamps, "timestamps");
+      this.apiVersion = checkNotNull(apiVersion, "apiVersion");
+   }
+
+   @Override
+   public HttpRequest filter(HttpRequest request) throws HttpException {
+      Credentials credentials = creds.get();
+      Buffers buffers = this.buffers.get();
+      buffers.stringToSign(request, credentials, timestamps.get());
+      if (signatureLog.isDebugEnabled())
+         signatureLog.debug(">> %s", buffers.chars);
+      String signature = buffers.sign(credentials.credential);
+      request.setPayload(buffers.payload(signature));
+      request.getPayload().getContentMetadata().setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+      return request;
+   }
+
+   @Override
+   public String createStringToSign(HttpRequest input) {
+      Buffers buffers = this.buffers.get();
+      buffers.stringToSign(input, creds.get(), timestamps.get());
+      return buffers.chars.toString();
+   }
+
+   @Override
+   public String sign(String toSign) {
+      Buffers buffers = this.buffers.get();
+      try {
+         return BaseEncoding.base64().encode(buffers.mac(creds.get().credential).doFinal(toSign.getBytes(UTF_8)));
+      } catch (GeneralSecurityException e) {
+         throw new HttpException("error signing request", e);
+      }
+   }
+
+   /**
+    * Appends the RFC 3986 encoding of {@code in}, as {@link Strings2#urlEncode} computes it.
+    */
+   static void appendEncoded(StringBuilder out, String in) {
+      for (int i = 0; i < in.length(); i++) {
+         char c = in.charAt(i);
+         if (c == '~' || c == '*' || c == ' ' || Character.isSurrogate(c)) {
+            out.append(Strings2.urlEncode(in));
+            return;
+         }
+      }
+      for (int i = 0; i < in.length(); i++) {
+         char c = in.charAt(i);
+         if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+                  || c == '.') {
+            out.append(c);
+         } else if (c < 0x80) {
+            appendEscaped(out, c);
+         } else if (c < 0x800) {
+            appendEscaped(out, 0xc0 | c >> 6);
+            appendEscaped(out, 0x80 | c & 0x3f);
+         } else {
+            appendEscaped(out, 0xe0 | c >> 12);
+            appendEscaped(out, 0x80 | c >> 6 & 0x3f);
+            appendEscaped(out, 0x80 | c & 0x3f);
+         }
+      }
+   }
+
+   private static void appendEscaped(StringBuilder out, int b) {
+      out.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+   }
+
+   private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+   private static String decode(String form, int start, int end) {
+      String raw = form.substring(start, end);
+      return raw.indexOf('%') < 0 && raw.indexOf('+') < 0 ? raw : Strings2.urlDecode(raw);
+   }
+
+   private static String encode(String in) {
+      StringBuilder out = new StringBuilder(in.length() + 16);
+      appendEncoded(out, in);
+      return out.toString();
+   }
+
+   /**
+    * A form parameter, remembering its encoding when it is reused across requests.
+    */
+   private static final class Param {
+      String name;
+      String value;
+      String encodedName;
+      String encodedValue;
+
+      Param set(String name, String value) {
+         this.name = name;
+         this.value = value;
+         this.encodedName = null;
+         this.encodedValue = null;
+         return this;
+      }
+
+      Param set(String name, String value, String encodedValue) {
+         if (!name.equals(this.name)) {
+            this.name = name;
+            this.encodedName = encode(name);
+         }
+         this.value = value;
+         this.encodedValue = encodedValue;
+         return this;
+      }
+   }
+
+   /**
+    * Sorts parameters like the {@code TreeMultimap} of the stock signer: by name, then by value.
+    */
+   private static final Comparator<Param> CANONICAL_ORDER = new Comparator<Param>() {
+      @Override
+      public int compare(Param left, Param right) {
+         int byName = left.name.compareTo(right.name);
+         return byName != 0 ? byName : left.value.compareTo(right.value);
+      }
+   };
+
+   private static final class Buffers {
+      final StringBuilder chars = new StringBuilder(1024);
+      byte[] bytes = new byte[1024];
+      final byte[] digest = new byte[32];
+      Param[] params = new Param[16];
+      Param[] sorted = new Param[params.length + SIGNING_PARAMETERS];
+      int size;
+      int queryStart;
+
+      final Param signatureMethod = new Param().set(SIGNATURE_METHOD, ALGORITHM, ALGORITHM);
+      final Param signatureVersion = new Param().set(SIGNATURE_VERSION, "2", "2");
+      final Param version;
+      final Param accessKeyId = new Param();
+      final Param timestamp = new Param();
+      final Param securityToken = new Param();
+
+      Mac mac;
+      String macSecret;
+      String host;
+      String lowerCaseHost;
+
+      Buffers(String apiVersion) {
+         this.version = new Param().set(VERSION, apiVersion, encode(apiVersion));
+      }
+
+      /**
+       * Leaves the string to sign in {@link #chars}, with the canonical query from
+       * {@link #queryStart} on.
+       */
+      void stringToSign(HttpRequest request, Credentials credentials, String now) {
+         String hostHeader = checkNotNull(request.getFirstHeaderOrNull(HttpHeaders.HOST),
+                  "request is not ready to sign; host not present");
+         boolean session = credentials instanceof SessionCredentials;
+         parse(request.getPayload().getRawContent().toString(), session);
+         if (sorted.length < size + SIGNING_PARAMETERS)
+            sorted = new Param[params.length + SIGNING_PARAMETERS];
+         System.arraycopy(params, 0, sorted, 0, size);
+
+         if (!now.equals(timestamp.value))
+            timestamp.set(TIMESTAMP, now, encode(now));
+         if (!credentials.identity.equals(accessKeyId.value))
+            accessKeyId.set(AWS_ACCESS_KEY_ID, credentials.identity, encode(credentials.identity));
+         add(signatureMethod);
+         add(signatureVersion);
+         add(version);
+         add(timestamp);
+         add(accessKeyId);
+         if (session) {
+            String token = SessionCredentials.class.cast(credentials).getSessionToken();
+            if (!token.equals(securityToken.value))
+               securityToken.set(FormParameters.SECURITY_TOKEN, token, encode(token));
+            add(securityToken);
+         }
+         Arrays.sort(sorted, 0, size, CANONICAL_ORDER);
+         removeDuplicates();
+         checkState(contains(ACTION), "parameter " + ACTION + " is required for signature");
+
+         if (!hostHeader.equals(host)) {
+            host = hostHeader;
+            lowerCaseHost = hostHeader.toLowerCase();
+         }
+         chars.setLength(0);
+         chars.append(request.getMethod()).append('\n');
+         chars.append(lowerCaseHost).append('\n');
+         chars.append(request.getEndpoint().getPath()).append('\n');
+         queryStart = chars.length();
+         for (int i = 0; i < size; i++) {
+            Param param = sorted[i];
+            if (i > 0)
+               chars.append('&');
+            if (param.encodedName != null)
+               chars.append(param.encodedName);
+            else
+               appendEncoded(chars, param.name);
+            chars.append('=');
+            if (param.encodedValue != null)
+               chars.append(param.encodedValue);
+            else
+               appendEncoded(chars, param.value);
+         }
+      }
+
+      /**
+       * Fills the parameter slots from the form, leaving out the parameters the signer sets itself,
+       * including the api version.
+       */
+      private void parse(String form, boolean session) {
+         size = 0;
+         for (int start = 0, end; start < form.length(); start = end + 1) {
+            end = form.indexOf('&', start);
+            if (end < 0)
+               end = form.length();
+            if (end == start)
+               continue;
+            int equals = form.indexOf('=', start);
+            String name;
+            String value;
+            if (equals < 0 || equals > end) {
+               name = decode(form, start, end);
+               value = "";
+            } else {
+               name = decode(form, start, equals);
+               value = decode(form, equals + 1, end);
+            }
+            if (isSigningParameter(name, session))
+               continue;
+            if (size == params.length)
+               params = Arrays.copyOf(params, size * 2);
+            if (params[size] == null)
+               params[size] = new Param();
+            params[size++].set(name, value);
+         }
+      }
+
+      private static boolean isSigningParameter(String name, boolean session) {
+         return SIGNATURE.equals(name) || VERSION.equals(name) || SIGNATURE_METHOD.equals(name) || SIGNATURE_VERSION.equals(name)
+                  || TIMESTAMP.equals(name) || AWS_ACCESS_KEY_ID.equals(name)
+                  || session && FormParameters.SECURITY_TOKEN.equals(name);
+      }
+
+      /**
+       * Repeated name and value pairs are signed once, as the stock signer collects the
+       * parameters in a set multimap.
+       */
+      private void removeDuplicates() {
+         int unique = Math.min(size, 1);
+         for (int i = 1; i < size; i++)
+            if (CANONICAL_ORDER.compare(sorted[unique - 1], sorted[i]) != 0)
+               sorted[unique++] = sorted[i];
+         size = unique;
+      }
+
+      private void add(Param signingParameter) {
+         sorted[size++] = signingParameter;
+      }
+
+      private boolean contains(String name) {
+         for (int i = 0; i < size; i++)
+            if (sorted[i].name.equals(name))
+               return true;
+         return false;
+      }
+
+      String sign(String secret) {
+         int length = chars.length();
+         if (bytes.length < length)
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+         byte[] input = bytes;
+         for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c >= 0x80) {
+               // only a non-ASCII path gets here; the canonical query is percent-encoded
+               input = chars.toString().getBytes(UTF_8);
+               length = input.length;
+               break;
+            }
+            input[i] = (byte) c;
+         }
+         try {
+            Mac mac = mac(secret);
+            mac.update(input, 0, length);
+            mac.doFinal(digest, 0);
+         } catch (GeneralSecurityException e) {
+            throw new HttpException("error signing request", e);
+         }
+         return BaseEncoding.base64().encode(digest);
+      }
+
+      /**
+       * The canonical query followed by the signature, in the buffer the string to sign was in.
+       */
+      String payload(String signature) {
+         chars.append('&').append(SIGNATURE).append('=');
+         appendEncoded(chars, signature);
+         return chars.substring(queryStart);
+      }
+
+      Mac mac(String secret) throws GeneralSecurityException {
+         if (mac == null || !secret.equals(macSecret)) {
+            Mac fresh = Mac.getInstance(ALGORITHM);
+            fresh.init(new SecretKeySpec(secret.getBytes(UTF_8), ALGORITHM));
+            mac = fresh;
+            macSecret = secret;
+         }
+         return mac;
+      }
+   }
+}
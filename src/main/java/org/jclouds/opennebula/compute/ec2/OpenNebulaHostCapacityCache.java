@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HOST_CAPACITY_REFRESH;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.logging.Logger;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+/**
+ * In-memory snapshot of the capacity of every OpenNebula host, refreshed every
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_HOST_CAPACITY_REFRESH} seconds with a single
+ * {@link HostApi#list()} call.
+ * <p/>
+ * Readers only dereference the current immutable snapshot, so placement decisions never wait on
+ * OpenNebula. The first read loads the snapshot and starts the refresh loop; a failed refresh
+ * keeps the previous snapshot.
+ */
+@Singleton
+public class OpenNebulaHostCapacityCache {
+
+   private static final Comparator<Host> BY_FREE_MEMORY = new Comparator<Host>() {
+      @Override
+      public int compare(Host left, Host right) {
+         return Longs.compare(right.getShare().getFreeMem(), left.getShare().getFreeMem());
+      }
+   };
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final HostApi hostApi;
+   private final ScheduledExecutorService scheduler;
+   private final long refreshSeconds;
+   private final AtomicBoolean started = new AtomicBoolean();
+
+   private volatile Snapshot snapshot = new Snapshot(ImmutableList.<Host> of());
+
+   @Inject
+   OpenNebulaHostCapacityCache(OpenNebulaComputeEC2Api api,
+            @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler,
+            @Named(PROPERTY_HOST_CAPACITY_REFRESH) long refreshSeconds) {
+      this.hostApi = checkNotNull(api, "api").getHostApi();
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+      this.refreshSeconds = refreshSeconds;
+   }
+
+   /**
+    * Hosts keyed by id.
+    */
+   public Map<Integer, Host> hosts() {
+      return current().byId;
+   }
+
+   /**
+    * Schedulable hosts, the one with the most free memory first.
+    */
+   public List<Host> byFreeCapacity() {
+      return current().byFreeCapacity;
+   }
+
+   /**
+    * The schedulable host with the most free memory that fits the given requirements.
+    */
+   public Optional<Host> bestFit(long memoryKb, long cpu) {
+      for (Host host : current().byFreeCapacity) {
+         if (host.getShare().getFreeMem() >= memoryKb && host.getShare().getFreeCpu() >= cpu)
+            return Optional.of(host);
+      }
+      return Optional.absent();
+   }
+
+   /**
+    * Free memory, in kilobytes, of the schedulable hosts of each cluster.
+    */
+   public Map<String, Long> freeMemoryByCluster() {
+      return current().freeMemoryByCluster;
+   }
+
+   /**
+    * Reloads the snapshot now.
+    */
+   public void refresh() {
+      try {
+         List<Host> hosts = hostApi.list();
+         snapshot = new Snapshot(hosts);
+         logger.trace("<< refreshed capacity of %d hosts", hosts.size());
+      } catch (RuntimeException e) {
+         logger.warn(e, "<< error refreshing host capacity; keeping snapshot of %d hosts", snapshot.byId.size());
+      }
+   }
+
+   private Snapshot current() {
+      if (started.compareAndSet(false, true)) {
+         refresh();
+         scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+               refresh();
+            }
+         }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+      }
+      return snapshot;
+   }
+
+   private static final class Snapshot {
+      private final Map<Integer, Host> byId;
+      private final List<Host> byFreeCapacity;
+      private final Map<String, Long> freeMemoryByCluster;
+
+      private Snapshot(List<Host> hosts) {
+         ImmutableMap.Builder<Integer, Host> byId = ImmutableMap.builder();
+         List<Host> schedulable = Lists.newArrayList();
+         Map<String, Long> freeMemoryByCluster = Maps.newHashMap();
+         for (Host host : hosts) {
+            byId.put(host.getId(), host);
+            if (!host.getState().isSchedulable())
+               continue;
+            schedulable.add(host);
+            if (host.getCluster() != null) {
+               Long free = freeMemoryByCluster.get(host.getCluster());
+               freeMemoryByCluster.put(host.getCluster(), (free != null ? free : 0L) + host.getShare().getFreeMem());
+            }
+         }
+         Collections.sort(schedulable, BY_FREE_MEMORY);
+         this.byId = byId.build();
+         this.byFreeCapacity = ImmutableList.copyOf(schedulable);
+         this.freeMemoryByCluster = ImmutableMap.copyOf(freeMemoryByCluster);
+      }
+   }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.aws.reference.FormParameters.ACTION;
+
+import javax.inject.Named;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+
+import org.jclouds.aws.filters.FormSigner;
+import org.jclouds.ec2.binders.BindFiltersToIndexedFormParams;
+import org.jclouds.ec2.binders.BindInstanceIdsToIndexedFormParams;
+import org.jclouds.ec2.features.InstanceApi;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.location.functions.RegionToEndpointOrProviderIfNull;
+import org.jclouds.rest.annotations.BinderParam;
+import org.jclouds.rest.annotations.EndpointParam;
+import org.jclouds.rest.annotations.FormParams;
+import org.jclouds.rest.annotations.RequestFilters;
+import org.jclouds.rest.annotations.ResponseParser;
+import org.jclouds.rest.annotations.VirtualHost;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * Provides access to OpenNebula instance operations beyond the stock EC2 {@link InstanceApi}.
+ */
+@RequestFilters(FormSigner.class)
+@VirtualHost
+public interface OpenNebulaInstanceApi extends InstanceApi {
+
+   /**
+    * Same as {@link #describeInstancesInRegion}, but the instances are parsed one at a time while
+    * the caller iterates, so memory use does not grow with the size of the response.
+    * <p/>
+    * The returned iterable is backed by the open response stream: it can be iterated only once,
+    * and the stream is released once the last instance has been read. Callers that may stop
+    * earlier must close it.
+    */
+   @Named("DescribeInstances")
+   @POST
+   @Path("/")
+   @FormParams(keys = ACTION, values = "DescribeInstances")
+   @ResponseParser(ParseRunningInstancesStreaming.class)
+   StreamedInstances streamInstancesInRegion(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region,
+            @BinderParam(BindInstanceIdsToIndexedFormParams.class) String... instanceIds);
+
+   /**
+    * Same as {@link #streamInstancesInRegion}, but only the instances matching every
+    * {@code Filter.N} in {@code filter} are returned. Values of the same filter name are
+    * alternatives.
+    */
+   @Named("DescribeInstances")
+   @POST
+   @Path("/")
+   @FormParams(keys = ACTION, values = "DescribeInstances")
+   @ResponseParser(ParseRunningInstancesStreaming.class)
+   StreamedInstances streamInstancesInRegionWithFilter(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region,
+            @BinderParam(BindFiltersToIndexedFormParams.class) Multimap<String, String> filter);
+
+   /**
+    * Same as {@link #streamInstancesInRegion}, but returns only the page of instances selected by
+    * {@code options}. The token of the next page is available from
+    * {@link StreamedInstances#getNextToken()} once the page has been iterated.
+    */
+   @Named("DescribeInstances")
+   @POST
+   @Path("/")
+   @FormParams(keys = ACTION, values = "DescribeInstances")
+   @ResponseParser(ParseRunningInstancesStreaming.class)
+   StreamedInstances streamInstancesPageInRegion(
+            @EndpointParam(parser = RegionToEndpointOrProviderIfNull.class) @Nullable String region,
+            DescribeInstancesPageOptions options);
+
+}
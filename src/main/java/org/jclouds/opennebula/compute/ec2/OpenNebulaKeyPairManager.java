@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.util.Throwables2.getFirstThrowableOfType;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.aws.AWSResponseException;
+import org.jclouds.compute.functions.GroupNamingConvention;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.domain.KeyPair;
+import org.jclouds.logging.Logger;
+import org.jclouds.rest.ResourceNotFoundException;
+import org.jclouds.ssh.SshKeys;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Resolves public keys to the names of key pairs holding them, importing each key at most once
+ * per region.
+ * <p/>
+ * A key is imported under a name derived from its fingerprint, so the same pair serves every
+ * group and every context using that key. The first request for a key in a region checks with
+ * DescribeKeyPairs whether the pair already exists and imports it otherwise; later requests are
+ * answered from memory without any call. Concurrent requests for the same key wait for the first
+ * one, so a burst of provisioning requests makes at most one DescribeKeyPairs and one
+ * ImportKeyPair call per key and region.
+ * <p/>
+ * Groups created without any key are given a key pair of their own, created once per group and
+ * region and kept in memory, as only its creation returns the private key.
+ */
+@Singleton
+public class OpenNebulaKeyPairManager {
+
+   /**
+    * Prefix of the names of the imported key pairs, followed by the hex MD5 fingerprint of the key.
+    */
+   public static final String KEY_NAME_PREFIX = "jclouds-";
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaComputeEC2Api api;
+   private final GroupNamingConvention.Factory namingConvention;
+   // region/fingerprint -> key name, only once the pair is known to exist
+   private final Cache<String, String> keyNames = CacheBuilder.newBuilder().build();
+   // region/group -> key pair created for the group
+   private final Cache<String, KeyPair> groupKeyPairs = CacheBuilder.newBuilder().build();
+
+   @Inject
+   OpenNebulaKeyPairManager(OpenNebulaComputeEC2Api api, GroupNamingConvention.Factory namingConvention) {
+      this.api = checkNotNull(api, "api");
+      this.namingConvention = checkNotNull(namingConvention, "namingConvention");
+   }
+
+   /**
+    * Returns the name of a key pair of {@code region} holding {@code publicKey}, importing it if
+    * it does not exist yet.
+    * 
+    * @param publicKey
+    *           OpenSSH public key, as in {@code ssh-rsa AAAA... comment}
+    */
+   public String keyNameFor(final String region, final String publicKey) {
+      checkNotNull(publicKey, "publicKey");
+      final String fingerprint = SshKeys.fingerprintPublicKey(publicKey);
+      try {
+         return keyNames.get(region + "/" + fingerprint, new Callable<String>() {
+            @Override
+            public String call() {
+               return verifyOrImport(region, keyName(fingerprint), publicKey);
+            }
+         });
+      } catch (ExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      } catch (UncheckedExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   /**
+    * Returns the key pair created for {@code group} in {@code region}, including its private key,
+    * creating it under a unique name on the first request.
+    */
+   public KeyPair keyPairFor(final String region, final String group) {
+      checkNotNull(group, "group");
+      try {
+         return groupKeyPairs.get(region + "/" + group, new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() {
+               String keyName = namingConvention.create().uniqueNameForGroup(group);
+               logger.debug(">> creating key pair(%s) in region(%s)", keyName, region);
+               return api.getKeyPairApiForRegion(region).get().createKeyPairInRegion(region, keyName);
+            }
+         });
+      } catch (ExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      } catch (UncheckedExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   /**
+    * Forgets that the key pair {@code keyName} exists in {@code region}, for instance after
+    * RunInstances reported it missing. The next request for its key checks again, and the next one
+    * for its group creates a new pair.
+    */
+   public void invalidate(String region, String keyName) {
+      for (Map.Entry<String, String> entry : keyNames.asMap().entrySet()) {
+         if (entry.getValue().equals(keyName) && entry.getKey().startsWith(region + "/"))
+            keyNames.invalidate(entry.getKey());
+      }
+      for (Map.Entry<String, KeyPair> entry : groupKeyPairs.asMap().entrySet()) {
+         if (entry.getValue().getKeyName().equals(keyName) && entry.getKey().startsWith(region + "/"))
+            groupKeyPairs.invalidate(entry.getKey());
+      }
+   }
+
+   private String verifyOrImport(String region, String keyName, String publicKey) {
+      OpenNebulaKeyPairApi keyPairApi = api.getKeyPairApiForRegion(region).get();
+      if (exists(keyPairApi, region, keyName)) {
+         logger.debug("<< reusing key pair(%s) in region(%s)", keyName, region);
+         return keyName;
+      }
+      logger.debug(">> importing key pair(%s) in region(%s)", keyName, region);
+      try {
+         keyPairApi.importKeyPairInRegion(region, keyName,
+                  BaseEncoding.base64().encode(publicKey.trim().getBytes(UTF_8)));
+      } catch (IllegalStateException e) {
+         // imported in the meantime by another client
+         if (!hasErrorCode(e, "InvalidKeyPair.Duplicate"))
+            throw e;
+         logger.debug("<< key pair(%s) already imported in region(%s)", keyName, region);
+      }
+      return keyName;
+   }
+
+   private static boolean exists(OpenNebulaKeyPairApi keyPairApi, String region, String keyName) {
+      try {
+         return !keyPairApi.describeKeyPairsInRegion(region, keyName).isEmpty();
+      } catch (ResourceNotFoundException e) {
+         return false;
+      }
+   }
+
+   static String keyName(String fingerprint) {
+      return KEY_NAME_PREFIX + fingerprint.replace(":", "");
+   }
+
+   static boolean hasErrorCode(Throwable t, String code) {
+      AWSResponseException error = getFirstThrowableOfType(t, AWSResponseException.class);
+      return error != null && error.getError() != null && code.equals(error.getError().getCode());
+   }
+}
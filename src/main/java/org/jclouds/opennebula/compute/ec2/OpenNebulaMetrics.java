@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Receives the duration of every call made through {@link OpenNebulaComputeEC2Api} and
+ * {@link HostApi}, keyed by action name (such as {@code DescribeInstances} or
+ * {@code onehost:list}), and of the node lifecycle operations of the compute service, keyed by the
+ * names below.
+ * <p>
+ * Bind another implementation in a module passed to the context builder to export to an existing
+ * metrics system. Implementations are called on the request path from many threads at once, so
+ * they must be thread-safe and cheap.
+ */
+@ImplementedBy(InMemoryOpenNebulaMetrics.class)
+public interface OpenNebulaMetrics {
+
+   /**
+    * From the RunInstances call to the node being reported running.
+    */
+   String CREATE_TO_RUNNING = "compute:create-to-running";
+
+   /**
+    * From the TerminateInstances call to the node being reported terminated.
+    */
+   String DESTROY_TO_TERMINATED = "compute:destroy-to-terminated";
+
+   /**
+    * From the StopInstances call to the node being reported stopped.
+    */
+   String SUSPEND_TO_STOPPED = "compute:suspend-to-stopped";
+
+   /**
+    * From the StartInstances call to the node being reported running.
+    */
+   String RESUME_TO_RUNNING = "compute:resume-to-running";
+
+   /**
+    * Records one occurrence of {@code name} that took {@code nanos} nanoseconds.
+    * 
+    * @param failed
+    *           whether it ended with an exception
+    */
+   void record(String name, long nanos, boolean failed);
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.compute.domain.ComputeMetadata;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.domain.InstanceState;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * Node predicates that {@link OpenNebulaComputeService} can push down to econe-server as
+ * {@code Filter.N} parameters of DescribeInstances, so that only the matching instances are
+ * transferred. They are still evaluated on every node returned, so they give the same result
+ * against servers that ignore a filter. Any other predicate is evaluated on the client after
+ * listing every node.
+ * <p/>
+ * The factories are generic so that the same predicate can be passed to
+ * {@code listNodesDetailsMatching} and to the {@code *NodesMatching} operations; with Java 7, give
+ * the type explicitly, as in {@code OpenNebulaNodePredicates.<NodeMetadata> inGroup("web")}.
+ */
+public final class OpenNebulaNodePredicates {
+
+   private OpenNebulaNodePredicates() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+
+   /**
+    * Matches the nodes of {@code group}, as tagged by {@link OpenNebulaCreateNodesInGroup}.
+    */
+   public static <T extends ComputeMetadata> InstanceFilter<T> inGroup(String group) {
+      return withTag(GROUP_TAG, checkNotNull(group, "group"));
+   }
+
+   /**
+    * Matches the nodes tagged with {@code key} set to {@code value}.
+    */
+   public static <T extends ComputeMetadata> InstanceFilter<T> withTag(String key, String value) {
+      checkNotNull(key, "key");
+      checkNotNull(value, "value");
+      return new InstanceFilter<T>(ImmutableSetMultimap.of("tag:" + key, value));
+   }
+
+   /**
+    * Matches the nodes whose instance is in any of {@code states}.
+    */
+   public static <T extends ComputeMetadata> InstanceFilter<T> inState(InstanceState... states) {
+      checkArgument(states.length > 0, "no state to match");
+      ImmutableSetMultimap.Builder<String, String> filter = ImmutableSetMultimap.builder();
+      for (InstanceState state : states)
+         filter.put("instance-state-name", state.value());
+      return new InstanceFilter<T>(filter.build());
+   }
+
+   /**
+    * Matches the nodes placed in availability zone {@code zone}.
+    */
+   public static <T extends ComputeMetadata> InstanceFilter<T> inZone(String zone) {
+      return new InstanceFilter<T>(ImmutableSetMultimap.of("availability-zone", checkNotNull(zone, "zone")));
+   }
+
+   /**
+    * Matches the nodes launched from image {@code imageId}, the id known to econe-server, such
+    * as {@code ami-00000001}.
+    */
+   public static <T extends ComputeMetadata> InstanceFilter<T> withImage(String imageId) {
+      return new InstanceFilter<T>(ImmutableSetMultimap.of("image-id", checkNotNull(imageId, "imageId")));
+   }
+
+   /**
+    * Matches the nodes matched by all of {@code filters}.
+    */
+   @SafeVarargs
+   public static <T extends ComputeMetadata> InstanceFilter<T> allOf(InstanceFilter<? super T>... filters) {
+      checkArgument(filters.length > 0, "no filter to combine");
+      ImmutableSetMultimap<String, String> combined = filters[0].getFilter();
+      for (InstanceFilter<?> filter : Arrays.asList(filters)) {
+         combined = filter.matchesNothing() ? null : intersect(combined, filter.getFilter());
+         if (combined == null)
+            return new InstanceFilter<T>(ImmutableSetMultimap.<String, String> of(), true);
+      }
+      return new InstanceFilter<T>(combined);
+   }
+
+   /**
+    * Filters that match only when both do: values of a name present in both are intersected.
+    * 
+    * @return null if no instance can match both
+    */
+   private static ImmutableSetMultimap<String, String> intersect(ImmutableSetMultimap<String, String> a,
+            ImmutableSetMultimap<String, String> b) {
+      ImmutableSetMultimap.Builder<String, String> combined = ImmutableSetMultimap.builder();
+      for (Map.Entry<String, Collection<String>> entry : a.asMap().entrySet()) {
+         Set<String> values = ImmutableSet.copyOf(entry.getValue());
+         if (b.containsKey(entry.getKey())) {
+            values = Sets.intersection(values, b.get(entry.getKey()));
+            if (values.isEmpty())
+               return null;
+         }
+         combined.putAll(entry.getKey(), values);
+      }
+      for (Map.Entry<String, Collection<String>> entry : b.asMap().entrySet()) {
+         if (!a.containsKey(entry.getKey()))
+            combined.putAll(entry.getKey(), entry.getValue());
+      }
+      return combined.build();
+   }
+
+   /**
+    * A predicate equivalent to a set of DescribeInstances filters.
+    */
+   public static final class InstanceFilter<T extends ComputeMetadata> implements Predicate<T> {
+
+      private final ImmutableSetMultimap<String, String> filter;
+      private final boolean matchesNothing;
+
+      private InstanceFilter(ImmutableSetMultimap<String, String> filter) {
+         this(filter, false);
+      }
+
+      private InstanceFilter(ImmutableSetMultimap<String, String> filter, boolean matchesNothing) {
+         this.filter = filter;
+         this.matchesNothing = matchesNothing;
+      }
+
+      /**
+       * Filters to send as {@code Filter.N}; values of the same name are alternatives.
+       */
+      public ImmutableSetMultimap<String, String> getFilter() {
+         return filter;
+      }
+
+      /**
+       * True if combined filters exclude each other, so that listing can be skipped.
+       */
+      public boolean matchesNothing() {
+         return matchesNothing;
+      }
+
+      @Override
+      public boolean apply(T input) {
+         if (matchesNothing() || !(input instanceof NodeMetadata))
+            return false;
+         NodeMetadata node = NodeMetadata.class.cast(input);
+         for (Map.Entry<String, Collection<String>> entry : filter.asMap().entrySet()) {
+            if (!Iterables.any(entry.getValue(), matches(node, entry.getKey())))
+               return false;
+         }
+         return true;
+      }
+
+      private static Predicate<String> matches(final NodeMetadata node, final String name) {
+         return new Predicate<String>() {
+            @Override
+            public boolean apply(String value) {
+               if (name.startsWith("tag:")) {
+                  String key = name.substring("tag:".length());
+                  return GROUP_TAG.equals(key) ? value.equals(node.getGroup()) : value.equals(node.getUserMetadata()
+                           .get(key));
+               } else if ("instance-state-name".equals(name)) {
+                  return value.equals(node.getBackendStatus());
+               } else if ("availability-zone".equals(name)) {
+                  return Iterables.contains(locationIds(node.getLocation()), value);
+               } else if ("image-id".equals(name)) {
+                  return node.getImageId() != null
+                           && (value.equals(node.getImageId()) || node.getImageId().endsWith("/" + value));
+               }
+               throw new IllegalStateException("unsupported filter " + name);
+            }
+         };
+      }
+
+      private static Set<String> locationIds(Location location) {
+         ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+         for (Location current = location; current != null; current = current.getParent())
+            ids.add(current.getId());
+         return ids.build();
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(filter, matchesNothing);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof InstanceFilter))
+            return false;
+         InstanceFilter<?> that = InstanceFilter.class.cast(obj);
+         return matchesNothing == that.matchesNothing && Objects.equal(filter, that.filter);
+      }
+
+      @Override
+      public String toString() {
+         return matchesNothing ? "instanceFilter(nothing)" : "instanceFilter("
+                  + Joiner.on(", ").withKeyValueSeparator("=").join(filter.asMap()) + ")";
+      }
+   }
+}
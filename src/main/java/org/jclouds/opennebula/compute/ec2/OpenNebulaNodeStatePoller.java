@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MAX_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MIN_INTERVAL;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.logging.Logger;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits for instances to reach a state with a single shared poll loop.
+ * <p/>
+ * Every outstanding waiter is checked by one batched DescribeInstances per region and tick, so the
+ * polling load depends on the tick rate, not on the number of nodes awaited. Ticks run every
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_POLLER_MIN_INTERVAL} milliseconds while nodes are
+ * changing state, and back off towards
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_POLLER_MAX_INTERVAL} while none does. The loop only
+ * runs while there are waiters.
+ */
+@Singleton
+public class OpenNebulaNodeStatePoller {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final DescribeInstancesInChunks describeInstances;
+   private final ScheduledExecutorService scheduler;
+   private final long minIntervalMillis;
+   private final long maxIntervalMillis;
+
+   private final Set<Waiter> waiters = Sets.newConcurrentHashSet();
+   private final Object lock = new Object();
+   private ScheduledFuture<?> nextTick;
+   private long intervalMillis;
+
+   @Inject
+   OpenNebulaNodeStatePoller(DescribeInstancesInChunks describeInstances,
+            @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler,
+            @Named(PROPERTY_POLLER_MIN_INTERVAL) long minIntervalMillis,
+            @Named(PROPERTY_POLLER_MAX_INTERVAL) long maxIntervalMillis) {
+      this.describeInstances = checkNotNull(describeInstances, "describeInstances");
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+      checkArgument(minIntervalMillis > 0 && maxIntervalMillis >= minIntervalMillis,
+               "poller intervals must be positive, with max >= min");
+      this.minIntervalMillis = minIntervalMillis;
+      this.maxIntervalMillis = maxIntervalMillis;
+      this.intervalMillis = minIntervalMillis;
+   }
+
+   /**
+    * Returns a future completed with the instance once it is in one of {@code targets}.
+    * <p/>
+    * An instance missing from DescribeInstances may be gone or not visible yet, so its state is
+    * unknown until the deadline. Only when awaiting {@link InstanceState#TERMINATED} does it count
+    * as gone, once it has been seen before, and the future is then completed with null. The future
+    * fails with a {@link TimeoutException} after {@code timeoutMillis}, or with an
+    * {@link IllegalStateException} if the instance is terminated while awaiting another state.
+    * 
+    * @param handle
+    *           slash-encoded {@code region/instanceId}
+    */
+   public ListenableFuture<RunningInstance> await(String handle, long timeoutMillis, InstanceState... targets) {
+      return await(handle, timeoutMillis, false, targets);
+   }
+
+   /**
+    * Same as {@link #await}, for an instance known to exist because an action was just applied to
+    * it, for example TerminateInstances: it counts as seen, so that it may disappear before the
+    * first poll.
+    */
+   public ListenableFuture<RunningInstance> awaitExisting(String handle, long timeoutMillis,
+            InstanceState... targets) {
+      return await(handle, timeoutMillis, true, targets);
+   }
+
+   private ListenableFuture<RunningInstance> await(String handle, long timeoutMillis, boolean seen,
+            InstanceState... targets) {
+      checkArgument(targets.length > 0, "no target state to await for %s", handle);
+      Waiter waiter = new Waiter(handle, EnumSet.copyOf(Arrays.asList(targets)), System.currentTimeMillis()
+               + timeoutMillis, seen);
+      waiters.add(waiter);
+      synchronized (lock) {
+         intervalMillis = minIntervalMillis;
+         if (nextTick == null)
+            scheduleTick();
+      }
+      return waiter.future;
+   }
+
+   /**
+    * Number of waiters not yet completed.
+    */
+   public int pending() {
+      return waiters.size();
+   }
+
+   private void scheduleTick() {
+      nextTick = scheduler.schedule(new Runnable() {
+         @Override
+         public void run() {
+            tick();
+         }
+      }, intervalMillis, TimeUnit.MILLISECONDS);
+   }
+
+   void tick() {
+      boolean progress = false;
+      try {
+         progress = poll();
+      } catch (RuntimeException e) {
+         logger.warn(e, "<< error polling %d waiters", waiters.size());
+      } finally {
+         synchronized (lock) {
+            intervalMillis = progress ? minIntervalMillis : Math.min(maxIntervalMillis, intervalMillis * 3 / 2);
+            if (waiters.isEmpty())
+               nextTick = null;
+            else
+               scheduleTick();
+         }
+      }
+   }
+
+   /**
+    * Polls every outstanding waiter once.
+    * 
+    * @return true if any waiter was completed
+    */
+   private boolean poll() {
+      Multimap<String, String> idsByRegion = LinkedHashMultimap.create();
+      for (Waiter waiter : waiters) {
+         String[] parts = parseHandle(waiter.handle);
+         idsByRegion.put(parts[0], parts[1]);
+      }
+      Map<String, RunningInstance> found = Maps.newHashMap();
+      Set<String> failedRegions = Sets.newHashSet();
+      for (Map.Entry<String, Collection<String>> entry : idsByRegion.asMap().entrySet()) {
+         String region = entry.getKey();
+         try {
+            for (RunningInstance instance : describeInstances.inRegion(region, entry.getValue()))
+               found.put(region + "/" + instance.getId(), instance);
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< error polling %d instances in region(%s)", entry.getValue().size(), region);
+            failedRegions.add(region);
+         }
+      }
+      logger.trace("<< polled %d waiters, found %d instances", waiters.size(), found.size());
+
+      boolean progress = false;
+      long now = System.currentTimeMillis();
+      for (Waiter waiter : waiters) {
+         if (waiter.future.isDone()) {
+            waiters.remove(waiter);
+            continue;
+         }
+         RunningInstance instance = found.get(waiter.handle);
+         boolean gone = false;
+         if (instance != null)
+            waiter.seen = true;
+         else
+            gone = waiter.seen && !failedRegions.contains(parseHandle(waiter.handle)[0]);
+         InstanceState state = instance != null ? instance.getInstanceState() : null;
+         if (instance != null && waiter.targets.contains(state)) {
+            waiter.future.set(instance);
+         } else if (gone && waiter.targets.contains(InstanceState.TERMINATED)) {
+            waiter.future.set(null);
+         } else if (state == InstanceState.TERMINATED) {
+            waiter.future.setException(new IllegalStateException(format("%s terminated while awaiting %s",
+                     waiter.handle, waiter.targets)));
+         } else if (now >= waiter.deadline) {
+            waiter.future.setException(new TimeoutException(format("%s not %s after timeout; last state %s",
+                     waiter.handle, waiter.targets, state != null ? state : "unknown")));
+         } else {
+            continue;
+         }
+         waiters.remove(waiter);
+         progress = true;
+      }
+      return progress;
+   }
+
+   private static final class Waiter {
+      private final String handle;
+      private final Set<InstanceState> targets;
+      private final long deadline;
+      private final SettableFuture<RunningInstance> future = SettableFuture.create();
+      // only accessed by the poll loop once the waiter is added
+      private boolean seen;
+
+      private Waiter(String handle, Set<InstanceState> targets, long deadline, boolean seen) {
+         this.handle = handle;
+         this.targets = targets;
+         this.deadline = deadline;
+         this.seen = seen;
+      }
+   }
+}
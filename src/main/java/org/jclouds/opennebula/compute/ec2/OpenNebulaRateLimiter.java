@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT_FLOOR;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.config.ValueOfConfigurationKeyOrNull;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.logging.Logger;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Client-side token buckets, one per EC2 action, that keep the request rate below what
+ * econe-server can sustain.
+ * <p>
+ * Each bucket starts at the configured rate, which is also its ceiling. Every time a server
+ * error reports overload the rate is halved, at most once per second and never below the
+ * configured floor. After each second's worth of requests at the current rate without such an
+ * error it grows back by one request per second.
+ */
+@Singleton
+public class OpenNebulaRateLimiter {
+
+   /**
+    * Bucket shared by requests whose action cannot be determined.
+    */
+   static final String UNKNOWN_ACTION = "";
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final ValueOfConfigurationKeyOrNull config;
+   private final double defaultRate;
+   private final double floor;
+   private final LoadingCache<String, Optional<Bucket>> buckets;
+
+   @Inject
+   OpenNebulaRateLimiter(ValueOfConfigurationKeyOrNull config, @Named(PROPERTY_RATE_LIMIT) double defaultRate,
+            @Named(PROPERTY_RATE_LIMIT_FLOOR) double floor) {
+      checkArgument(defaultRate >= 0, "%s must not be negative", PROPERTY_RATE_LIMIT);
+      checkArgument(floor > 0, "%s must be positive", PROPERTY_RATE_LIMIT_FLOOR);
+      this.config = checkNotNull(config, "config");
+      this.defaultRate = defaultRate;
+      this.floor = floor;
+      this.buckets = CacheBuilder.newBuilder().build(new CacheLoader<String, Optional<Bucket>>() {
+         @Override
+         public Optional<Bucket> load(String action) {
+            double rate = configuredRate(action);
+            return rate > 0 ? Optional.of(new Bucket(rate, Math.min(floor, rate))) : Optional.<Bucket> absent();
+         }
+      });
+   }
+
+   /**
+    * Blocks until the bucket of the given action grants a request.
+    */
+   public void acquire(String action) {
+      Optional<Bucket> bucket = buckets.getUnchecked(action);
+      if (bucket.isPresent())
+         bucket.get().acquire();
+   }
+
+   /**
+    * Records that a request of the given action was rejected because the server is overloaded.
+    */
+   public void onThrottled(String action) {
+      Optional<Bucket> bucket = buckets.getUnchecked(action);
+      if (bucket.isPresent() && bucket.get().decrease())
+         logger.debug(">> lowered rate of %s to %.1f requests/s", action, bucket.get().getRate());
+   }
+
+   /**
+    * Current rate of the given action, in requests per second, or 0 if it is not limited.
+    */
+   public double getRate(String action) {
+      Optional<Bucket> bucket = buckets.getUnchecked(action);
+      return bucket.isPresent() ? bucket.get().getRate() : 0;
+   }
+
+   /**
+    * Name of the EC2 action a request was generated for, as declared by the {@link Named}
+    * annotation of the api method.
+    */
+   static String actionOf(HttpRequest request) {
+      if (request instanceof GeneratedHttpRequest) {
+         Named action = ((GeneratedHttpRequest) request).getInvocation().getInvokable().getAnnotation(Named.class);
+         if (action != null)
+            return action.value();
+      }
+      return UNKNOWN_ACTION;
+   }
+
+   private double configuredRate(String action) {
+      String rate = UNKNOWN_ACTION.equals(action) ? null : config.apply(PROPERTY_RATE_LIMIT + "." + action);
+      return rate != null ? Double.parseDouble(rate) : defaultRate;
+   }
+
+   private static final class Bucket {
+      private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+      private final RateLimiter limiter;
+      private final double ceiling;
+      private final double floor;
+      private double rate;
+      private double granted;
+      private long lastDecrease;
+
+      Bucket(double ceiling, double floor) {
+         this.limiter = RateLimiter.create(ceiling);
+         this.ceiling = ceiling;
+         this.floor = floor;
+         this.rate = ceiling;
+         this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+      }
+
+      void acquire() {
+         limiter.acquire();
+         synchronized (this) {
+            if (rate < ceiling && ++granted >= rate) {
+               rate = Math.min(ceiling, rate + 1);
+               limiter.setRate(rate);
+               granted = 0;
+            }
+         }
+      }
+
+      synchronized boolean decrease() {
+         long now = System.nanoTime();
+         // errors of requests already in flight when the rate was lowered do not lower it again
+         if (now - lastDecrease < DECREASE_INTERVAL || rate == floor)
+            return false;
+         rate = Math.max(floor, rate / 2);
+         limiter.setRate(rate);
+         granted = 0;
+         lastDecrease = now;
+         return true;
+      }
+
+      synchronized double getRate() {
+         return rate;
+      }
+   }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SCRIPT_PARALLELISM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.domain.ExecChannel;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.Credentials;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.logging.Logger;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.ssh.SshClient;
+import org.jclouds.ssh.SshException;
+import org.jclouds.util.Strings2;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Runs scripts on nodes over SSH, on at most
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_SCRIPT_PARALLELISM} nodes at a time and with
+ * connections from the {@link OpenNebulaSshClientPool}.
+ * <p/>
+ * Login credentials are those stored for the node when it was created, overridden by the login
+ * options of {@link RunScriptOptions}. Scripts are rendered for UNIX and run in the foreground,
+ * through {@code sudo} unless the login user is root or the options ask not to run as root. When
+ * sudo needs the login password, it is written to the standard input of {@code sudo -S} rather
+ * than put on the command line.
+ * <p/>
+ * Scripts are run as they are, never wrapped in an init script, so
+ * {@link RunScriptOptions#shouldWrapInInitScript()} has no effect; as they are always waited for,
+ * {@link RunScriptOptions#blockOnComplete(boolean) blockOnComplete(false)} is rejected.
+ */
+@Singleton
+public class OpenNebulaScriptRunner {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaSshClientPool pool;
+   private final Map<String, Credentials> credentialStore;
+   private final ListeningExecutorService scriptExecutor;
+
+   @Inject
+   OpenNebulaScriptRunner(OpenNebulaSshClientPool pool, Map<String, Credentials> credentialStore,
+            @Named(PROPERTY_SCRIPT_PARALLELISM) ListeningExecutorService scriptExecutor) {
+      this.pool = checkNotNull(pool, "pool");
+      this.credentialStore = checkNotNull(credentialStore, "credentialStore");
+      this.scriptExecutor = checkNotNull(scriptExecutor, "scriptExecutor");
+   }
+
+   /**
+    * Runs {@code script} on every node and waits for all of them.
+    * 
+    * @throws RunScriptOnNodesException
+    *            if the script could not be run on some of the nodes, with the responses of the
+    *            others
+    */
+   public Map<NodeMetadata, ExecResponse> run(Iterable<? extends NodeMetadata> nodes, Statement script,
+            RunScriptOptions options) throws RunScriptOnNodesException {
+      final ConcurrentMap<NodeMetadata, ExecResponse> responses = Maps.newConcurrentMap();
+      final ConcurrentMap<NodeMetadata, Exception> failures = Maps.newConcurrentMap();
+      List<ListenableFuture<ExecResponse>> futures = Lists.newArrayList();
+      for (final NodeMetadata node : nodes) {
+         ListenableFuture<ExecResponse> future = submit(node, script, options);
+         // registered before successfulAsList below, so recorded before it completes
+         Futures.addCallback(future, new FutureCallback<ExecResponse>() {
+            @Override
+            public void onSuccess(ExecResponse response) {
+               responses.put(node, response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+               failures.put(node, t instanceof Exception ? Exception.class.cast(t) : new ExecutionException(t));
+            }
+         });
+         futures.add(future);
+      }
+      try {
+         Futures.successfulAsList(futures).get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("interrupted running script on " + futures.size() + " nodes", e);
+      } catch (ExecutionException e) {
+         throw new IllegalStateException(e.getCause());
+      }
+      if (!failures.isEmpty())
+         throw new RunScriptOnNodesException(script, options, responses, ImmutableMap.<Object, Exception> of(),
+                  failures);
+      return responses;
+   }
+
+   /**
+    * Runs {@code script} on every node, and returns the futures of their responses in the order
+    * the nodes finish, so that results can be handled as they come. A future fails if the script
+    * could not be run on its node.
+    */
+   public List<ListenableFuture<Map.Entry<NodeMetadata, ExecResponse>>> submit(Iterable<? extends NodeMetadata> nodes,
+            Statement script, RunScriptOptions options) {
+      List<ListenableFuture<Map.Entry<NodeMetadata, ExecResponse>>> futures = Lists.newArrayList();
+      for (final NodeMetadata node : nodes) {
+         futures.add(Futures.transform(submit(node, script, options),
+                  new Function<ExecResponse, Map.Entry<NodeMetadata, ExecResponse>>() {
+                     @Override
+                     public Map.Entry<NodeMetadata, ExecResponse> apply(ExecResponse response) {
+                        return Maps.immutableEntry(node, response);
+                     }
+                  }));
+      }
+      return Futures.inCompletionOrder(futures);
+   }
+
+   /**
+    * Runs {@code script} on {@code node} on the script executor.
+    * 
+    * @throws IllegalArgumentException
+    *            if {@code options} do not block on completion
+    */
+   public ListenableFuture<ExecResponse> submit(final NodeMetadata node, final Statement script,
+            final RunScriptOptions options) {
+      checkNotNull(node, "node");
+      checkNotNull(script, "script");
+      checkNotNull(options, "options");
+      checkBlocksOnComplete(options);
+      return scriptExecutor.submit(new Callable<ExecResponse>() {
+         @Override
+         public ExecResponse call() {
+            try {
+               return run(node, script, options);
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< error running script on node(%s)", node.getId());
+               throw e;
+            }
+         }
+      });
+   }
+
+   /**
+    * Runs {@code script} on {@code node} in the calling thread.
+    * 
+    * @throws IllegalArgumentException
+    *            if {@code options} do not block on completion
+    */
+   public ExecResponse run(NodeMetadata node, Statement script, RunScriptOptions options) {
+      checkNotNull(node, "node");
+      checkBlocksOnComplete(checkNotNull(options, "options"));
+      LoginCredentials credentials = credentials(node, options);
+      checkState(credentials.getUser() != null, "no login user for node(%s)", node.getId());
+      String address = Iterables.getFirst(Iterables.concat(node.getPublicAddresses(), node.getPrivateAddresses()),
+               null);
+      checkState(address != null, "node(%s) has no address", node.getId());
+      HostAndPort socket = HostAndPort.fromParts(address, options.getPort() > 0 ? options.getPort()
+               : node.getLoginPort());
+      String command = script.render(OsFamily.UNIX);
+      boolean sudo = options.shouldRunAsRoot() && !"root".equals(credentials.getUser());
+      String password = sudo && credentials.shouldAuthenticateSudo() ? credentials.getOptionalPassword().or("")
+               : null;
+
+      OpenNebulaSshClientPool.Lease lease = pool.lease(node.getId(), socket, credentials);
+      boolean reusable = false;
+      try {
+         logger.debug(">> running script on node(%s) as %s", node.getId(), credentials.getUser());
+         ExecResponse response;
+         if (password != null)
+            response = execWithSudoPassword(lease.getClient(), command, password);
+         else
+            response = lease.getClient().exec(sudo ? "sudo sh -c " + quote(command) : command);
+         logger.debug("<< script on node(%s) exited with %d", node.getId(), response.getExitStatus());
+         reusable = true;
+         return response;
+      } finally {
+         if (reusable)
+            lease.release();
+         else
+            lease.discard();
+      }
+   }
+
+   /**
+    * The node's stored login, with the overrides of {@code options} applied as
+    * {@code BaseComputeService} applies them.
+    */
+   private LoginCredentials credentials(NodeMetadata node, RunScriptOptions options) {
+      LoginCredentials stored = node.getCredentials();
+      if (stored == null) {
+         Credentials fromStore = credentialStore.get("node#" + node.getId());
+         if (fromStore != null)
+            stored = LoginCredentials.fromCredentials(fromStore);
+      }
+      LoginCredentials.Builder builder = stored != null ? stored.toBuilder() : LoginCredentials.builder();
+      if (options.getLoginUser() != null)
+         builder.user(options.getLoginUser());
+      if (options.hasLoginPasswordOption()) {
+         if (options.hasLoginPassword())
+            builder.password(options.getLoginPassword());
+         else
+            builder.noPassword();
+      }
+      if (options.hasLoginPrivateKeyOption()) {
+         if (options.hasLoginPrivateKey())
+            builder.privateKey(options.getLoginPrivateKey());
+         else
+            builder.noPrivateKey();
+      }
+      if (options.shouldAuthenticateSudo() != null)
+         builder.authenticateSudo(options.shouldAuthenticateSudo());
+      return builder.build();
+   }
+
+   /**
+    * Runs {@code command} through {@code sudo -S}, which reads {@code password} from its standard
+    * input. The error stream is drained by a thread of its own, so that neither stream can fill up
+    * and stall the command.
+    */
+   private static ExecResponse execWithSudoPassword(SshClient client, String command, String password) {
+      ExecChannel channel = client.execChannel("sudo -S -p '' sh -c " + quote(command));
+      try {
+         OutputStream input = channel.getInput();
+         input.write((password + "\n").getBytes(UTF_8));
+         input.close();
+         final InputStream errorStream = channel.getError();
+         FutureTask<String> error = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+               return Strings2.toStringAndClose(errorStream);
+            }
+         });
+         Thread drain = new Thread(error, "opennebula-script-stderr");
+         drain.setDaemon(true);
+         drain.start();
+         String output = Strings2.toStringAndClose(channel.getOutput());
+         Integer exitStatus = channel.getExitStatus().get();
+         return new ExecResponse(output, error.get(), exitStatus != null ? exitStatus : -1);
+      } catch (IOException e) {
+         throw new SshException(format("error running sudo on %s", client.getHostAddress()), e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SshException(format("interrupted running sudo on %s", client.getHostAddress()), e);
+      } catch (ExecutionException e) {
+         throw new SshException(format("error reading sudo errors on %s", client.getHostAddress()), e.getCause());
+      } finally {
+         try {
+            Closeables.close(channel, true);
+         } catch (IOException e) {
+            // swallowed
+         }
+      }
+   }
+
+   private static void checkBlocksOnComplete(RunScriptOptions options) {
+      checkArgument(options.shouldBlockOnComplete(), "scripts always run in the foreground; "
+               + "blockOnComplete(false) is not supported");
+   }
+
+   private static String quote(String value) {
+      return "'" + value.replace("'", "'\\''") + "'";
+   }
+}
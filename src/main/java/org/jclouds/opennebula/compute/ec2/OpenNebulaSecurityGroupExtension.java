@@ -0,0 +1,422 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.getFirst;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.IpPermissionsOptions.Builder.ipPermissions;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SECURITY_GROUP_TTL;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.domain.SecurityGroup;
+import org.jclouds.compute.extensions.SecurityGroupExtension;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.compute.functions.EC2SecurityGroupToSecurityGroup;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.location.Region;
+import org.jclouds.logging.Logger;
+import org.jclouds.net.domain.IpPermission;
+import org.jclouds.net.domain.IpProtocol;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * {@link SecurityGroupExtension} that changes rules by difference with the last known state of
+ * each group, in at most one RevokeSecurityGroupIngress and one AuthorizeSecurityGroupIngress
+ * call per change, each carrying every affected rule.
+ * <p/>
+ * Rules are compared source by source, so a rule already authorized for some of its CIDR blocks
+ * or groups only authorizes the others, and adding or setting rules that are all in place makes
+ * no call at all. The groups of a region are described once and kept for
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_SECURITY_GROUP_TTL} seconds, updated in place by
+ * every change made through this extension. Should the known state be stale, the change fails
+ * with a duplicate or missing rule; the group is then described again and the change retried
+ * once.
+ * <p/>
+ * Changes to the same group are serialized; changes to different groups run concurrently.
+ */
+@Singleton
+public class OpenNebulaSecurityGroupExtension implements SecurityGroupExtension {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaComputeEC2Api api;
+   private final Supplier<Set<String>> regions;
+   private final OpenNebulaComputeServiceAdapter adapter;
+   private final EC2SecurityGroupToSecurityGroup toSecurityGroup;
+   // region -> group name -> last known state
+   private final LoadingCache<String, ConcurrentMap<String, org.jclouds.ec2.domain.SecurityGroup>> groups;
+   private final Striped<Lock> locks = Striped.lock(64);
+
+   @Inject
+   OpenNebulaSecurityGroupExtension(final OpenNebulaComputeEC2Api api,
+            @Region Supplier<Set<String>> regions, OpenNebulaComputeServiceAdapter adapter,
+            EC2SecurityGroupToSecurityGroup toSecurityGroup, @Named(PROPERTY_SECURITY_GROUP_TTL) long ttlSeconds) {
+      this.api = checkNotNull(api, "api");
+      this.regions = checkNotNull(regions, "regions");
+      this.adapter = checkNotNull(adapter, "adapter");
+      this.toSecurityGroup = checkNotNull(toSecurityGroup, "toSecurityGroup");
+      this.groups = CacheBuilder.newBuilder()
+               .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+               .build(new CacheLoader<String, ConcurrentMap<String, org.jclouds.ec2.domain.SecurityGroup>>() {
+                  @Override
+                  public ConcurrentMap<String, org.jclouds.ec2.domain.SecurityGroup> load(String region) {
+                     logger.debug(">> describing security groups of region(%s)", region);
+                     ConcurrentMap<String, org.jclouds.ec2.domain.SecurityGroup> loaded = Maps.newConcurrentMap();
+                     for (org.jclouds.ec2.domain.SecurityGroup group : securityGroupApi(region)
+                              .describeSecurityGroupsInRegion(region))
+                        loaded.put(group.getName(), group);
+                     logger.debug("<< described %d security groups of region(%s)", loaded.size(), region);
+                     return loaded;
+                  }
+               });
+   }
+
+   @Override
+   public Set<SecurityGroup> listSecurityGroups() {
+      ImmutableSet.Builder<SecurityGroup> listed = ImmutableSet.builder();
+      for (String region : regions.get())
+         listed.addAll(listSecurityGroupsInRegion(region));
+      return listed.build();
+   }
+
+   @Override
+   public Set<SecurityGroup> listSecurityGroupsInLocation(Location location) {
+      return listSecurityGroupsInRegion(OpenNebulaCreateNodesInGroup.regionOf(checkNotNull(location, "location")));
+   }
+
+   private Set<SecurityGroup> listSecurityGroupsInRegion(String region) {
+      ImmutableSet.Builder<SecurityGroup> listed = ImmutableSet.builder();
+      for (org.jclouds.ec2.domain.SecurityGroup group : groups.getUnchecked(region).values())
+         listed.add(toSecurityGroup.apply(group));
+      return listed.build();
+   }
+
+   @Override
+   public Set<SecurityGroup> listSecurityGroupsForNode(String id) {
+      RunningInstance instance = adapter.getNode(checkNotNull(id, "id"));
+      if (instance == null)
+         return ImmutableSet.of();
+      ImmutableSet.Builder<SecurityGroup> listed = ImmutableSet.builder();
+      for (String name : instance.getGroupNames()) {
+         org.jclouds.ec2.domain.SecurityGroup group = known(instance.getRegion(), name);
+         if (group != null)
+            listed.add(toSecurityGroup.apply(group));
+      }
+      return listed.build();
+   }
+
+   @Override
+   public SecurityGroup getSecurityGroupById(String id) {
+      String[] parts = parseHandle(checkNotNull(id, "id"));
+      org.jclouds.ec2.domain.SecurityGroup group = known(parts[0], parts[1]);
+      return group == null ? null : toSecurityGroup.apply(group);
+   }
+
+   /**
+    * Returns the group named {@code name} in the region of {@code location}, creating it only if it
+    * does not exist yet.
+    */
+   @Override
+   public SecurityGroup createSecurityGroup(String name, Location location) {
+      checkNotNull(name, "name");
+      String region = OpenNebulaCreateNodesInGroup.regionOf(checkNotNull(location, "location"));
+      Lock lock = locks.get(region + "/" + name);
+      lock.lock();
+      try {
+         org.jclouds.ec2.domain.SecurityGroup group = known(region, name);
+         if (group == null) {
+            logger.debug(">> creating security group(%s) in region(%s)", name, region);
+            try {
+               securityGroupApi(region).createSecurityGroupInRegion(region, name, name);
+            } catch (IllegalStateException e) {
+               // created in the meantime by another client
+               if (!OpenNebulaKeyPairManager.hasErrorCode(e, "InvalidGroup.Duplicate"))
+                  throw e;
+            }
+            group = describe(region, name);
+            if (group == null)
+               throw new IllegalStateException("security group " + region + "/" + name + " not found after creation");
+         }
+         return toSecurityGroup.apply(group);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public boolean removeSecurityGroup(String id) {
+      String[] parts = parseHandle(checkNotNull(id, "id"));
+      Lock lock = locks.get(id);
+      lock.lock();
+      try {
+         if (known(parts[0], parts[1]) == null)
+            return false;
+         logger.debug(">> deleting security group(%s)", id);
+         try {
+            securityGroupApi(parts[0]).deleteSecurityGroupInRegion(parts[0], parts[1]);
+            return true;
+         } catch (ResourceNotFoundException e) {
+            return false;
+         } finally {
+            groups.getUnchecked(parts[0]).remove(parts[1]);
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Authorizes the sources of {@code ipPermission} that {@code group} does not authorize yet.
+    */
+   @Override
+   public SecurityGroup addIpPermission(IpPermission ipPermission, SecurityGroup group) {
+      return change(group, sources(ImmutableSet.of(checkNotNull(ipPermission, "ipPermission"))),
+               ImmutableSet.<IpPermission> of(), false);
+   }
+
+   @Override
+   public SecurityGroup addIpPermission(IpProtocol protocol, int startPort, int endPort,
+            Multimap<String, String> tenantIdGroupNamePairs, Iterable<String> ipRanges, Iterable<String> groupIds,
+            SecurityGroup group) {
+      return addIpPermission(permission(protocol, startPort, endPort, tenantIdGroupNamePairs, ipRanges, groupIds),
+               group);
+   }
+
+   /**
+    * Revokes the sources of {@code ipPermission} that {@code group} authorizes.
+    */
+   @Override
+   public SecurityGroup removeIpPermission(IpPermission ipPermission, SecurityGroup group) {
+      return change(group, ImmutableSet.<IpPermission> of(),
+               sources(ImmutableSet.of(checkNotNull(ipPermission, "ipPermission"))), false);
+   }
+
+   @Override
+   public SecurityGroup removeIpPermission(IpProtocol protocol, int startPort, int endPort,
+            Multimap<String, String> tenantIdGroupNamePairs, Iterable<String> ipRanges, Iterable<String> groupIds,
+            SecurityGroup group) {
+      return removeIpPermission(permission(protocol, startPort, endPort, tenantIdGroupNamePairs, ipRanges, groupIds),
+               group);
+   }
+
+   /**
+    * Authorizes, with at most one call, the sources of {@code ipPermissions} that {@code group} does
+    * not authorize yet.
+    */
+   public SecurityGroup addIpPermissions(SecurityGroup group, Iterable<IpPermission> ipPermissions) {
+      return change(group, sources(checkNotNull(ipPermissions, "ipPermissions")), ImmutableSet.<IpPermission> of(),
+               false);
+   }
+
+   /**
+    * Makes {@code ipPermissions} the only rules of {@code group}: rules it lacks are authorized
+    * with one call, and rules it has beyond them are revoked with another. Setting the rules the
+    * group already has makes no call.
+    */
+   public SecurityGroup setIpPermissions(SecurityGroup group, Iterable<IpPermission> ipPermissions) {
+      return change(group, sources(checkNotNull(ipPermissions, "ipPermissions")), ImmutableSet.<IpPermission> of(),
+               true);
+   }
+
+   @Override
+   public boolean supportsTenantIdGroupNamePairs() {
+      return true;
+   }
+
+   @Override
+   public boolean supportsTenantIdGroupIdPairs() {
+      return false;
+   }
+
+   @Override
+   public boolean supportsGroupIds() {
+      return false;
+   }
+
+   @Override
+   public boolean supportsPortRangesForGroups() {
+      return true;
+   }
+
+   @Override
+   public boolean supportsExclusionCidrBlocks() {
+      return false;
+   }
+
+   /**
+    * Applies the difference between the known rules of {@code group} and {@code add} and
+    * {@code remove}, both split into single-source rules. With {@code replace}, every known rule
+    * not in {@code add} is removed instead.
+    */
+   private SecurityGroup change(SecurityGroup group, Set<IpPermission> add, Set<IpPermission> remove,
+            boolean replace) {
+      String[] parts = parseHandle(checkNotNull(group, "group").getId());
+      String region = parts[0];
+      String name = parts[1];
+      Lock lock = locks.get(group.getId());
+      lock.lock();
+      try {
+         for (boolean retried = false;; retried = true) {
+            org.jclouds.ec2.domain.SecurityGroup current = known(region, name);
+            if (current == null)
+               throw new NoSuchElementException("security group " + group.getId() + " not found");
+            Set<IpPermission> rules = sources(current);
+            Set<IpPermission> revoked = ImmutableSet.copyOf(replace ? Sets.difference(rules, add)
+                     : Sets.intersection(remove, rules));
+            Set<IpPermission> authorized = ImmutableSet.copyOf(Sets.difference(add, rules));
+            try {
+               if (!revoked.isEmpty()) {
+                  logger.debug(">> revoking %d rules of security group(%s)", revoked.size(), group.getId());
+                  securityGroupApi(region).revokeIpPermissionsInRegion(region, name, ipPermissions(merge(revoked)));
+                  current = record(current, Sets.difference(rules, revoked));
+                  rules = sources(current);
+               }
+               if (!authorized.isEmpty()) {
+                  logger.debug(">> authorizing %d rules of security group(%s)", authorized.size(), group.getId());
+                  securityGroupApi(region).authorizeIpPermissionsInRegion(region, name,
+                           ipPermissions(merge(authorized)));
+                  current = record(current, Sets.union(rules, authorized));
+               }
+               return toSecurityGroup.apply(current);
+            } catch (RuntimeException e) {
+               if (retried || !(OpenNebulaKeyPairManager.hasErrorCode(e, "InvalidPermission.Duplicate")
+                        || OpenNebulaKeyPairManager.hasErrorCode(e, "InvalidPermission.NotFound")))
+                  throw e;
+               logger.debug("<< rules of security group(%s) changed elsewhere; describing it again", group.getId());
+               describe(region, name);
+            }
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * The last known state of a group, described if the region has no such group yet.
+    */
+   private org.jclouds.ec2.domain.SecurityGroup known(String region, String name) {
+      org.jclouds.ec2.domain.SecurityGroup group = groups.getUnchecked(region).get(name);
+      return group != null ? group : describe(region, name);
+   }
+
+   /**
+    * Describes a group and records its state, or forgets it if it does not exist.
+    */
+   private org.jclouds.ec2.domain.SecurityGroup describe(String region, String name) {
+      org.jclouds.ec2.domain.SecurityGroup group;
+      try {
+         group = getFirst(securityGroupApi(region).describeSecurityGroupsInRegion(region, name), null);
+      } catch (ResourceNotFoundException e) {
+         group = null;
+      }
+      ConcurrentMap<String, org.jclouds.ec2.domain.SecurityGroup> known = groups.getUnchecked(region);
+      if (group == null)
+         known.remove(name);
+      else
+         known.put(name, group);
+      return group;
+   }
+
+   private org.jclouds.ec2.domain.SecurityGroup record(org.jclouds.ec2.domain.SecurityGroup current,
+            Set<IpPermission> rules) {
+      org.jclouds.ec2.domain.SecurityGroup changed = new org.jclouds.ec2.domain.SecurityGroup(current.getRegion(),
+               current.getId(), current.getName(), current.getOwnerId(), current.getDescription(), merge(rules));
+      groups.getUnchecked(current.getRegion()).put(current.getName(), changed);
+      return changed;
+   }
+
+   private OpenNebulaSecurityGroupApi securityGroupApi(String region) {
+      return api.getSecurityGroupApiForRegion(region).get();
+   }
+
+   private static IpPermission permission(IpProtocol protocol, int startPort, int endPort,
+            Multimap<String, String> tenantIdGroupNamePairs, Iterable<String> ipRanges, Iterable<String> groupIds) {
+      return IpPermission.builder().ipProtocol(protocol).fromPort(startPort).toPort(endPort)
+               .tenantIdGroupNamePairs(tenantIdGroupNamePairs).cidrBlocks(ipRanges).groupIds(groupIds).build();
+   }
+
+   /**
+    * Splits rules into rules with a single CIDR block, group or group id each, so that rules
+    * grouped differently can be compared.
+    */
+   static Set<IpPermission> sources(Iterable<IpPermission> permissions) {
+      ImmutableSet.Builder<IpPermission> sources = ImmutableSet.builder();
+      for (IpPermission permission : permissions) {
+         for (String cidrBlock : permission.getCidrBlocks())
+            sources.add(rule(permission).cidrBlock(cidrBlock).build());
+         for (Map.Entry<String, String> pair : permission.getTenantIdGroupNamePairs().entries())
+            sources.add(rule(permission).tenantIdGroupNamePair(pair.getKey(), pair.getValue()).build());
+         for (String groupId : permission.getGroupIds())
+            sources.add(rule(permission).groupId(groupId).build());
+      }
+      return sources.build();
+   }
+
+   /**
+    * Joins single-source rules sharing protocol and ports, the inverse of {@link #sources}.
+    */
+   static List<IpPermission> merge(Iterable<IpPermission> sources) {
+      Map<List<Object>, IpPermission.Builder> merged = Maps.newLinkedHashMap();
+      for (IpPermission source : sources) {
+         List<Object> key = ImmutableList.<Object> of(source.getIpProtocol(), source.getFromPort(),
+                  source.getToPort(), source.getExclusionCidrBlocks());
+         IpPermission.Builder builder = merged.get(key);
+         if (builder == null) {
+            builder = rule(source);
+            merged.put(key, builder);
+         }
+         builder.cidrBlocks(source.getCidrBlocks()).tenantIdGroupNamePairs(source.getTenantIdGroupNamePairs())
+                  .groupIds(source.getGroupIds());
+      }
+      ImmutableList.Builder<IpPermission> permissions = ImmutableList.builder();
+      for (IpPermission.Builder builder : merged.values())
+         permissions.add(builder.build());
+      return permissions.build();
+   }
+
+   private static IpPermission.Builder rule(IpPermission permission) {
+      return IpPermission.builder().ipProtocol(permission.getIpProtocol()).fromPort(permission.getFromPort())
+               .toPort(permission.getToPort()).exclusionCidrBlocks(permission.getExclusionCidrBlocks());
+   }
+}
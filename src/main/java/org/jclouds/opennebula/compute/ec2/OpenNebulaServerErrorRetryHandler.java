@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.http.HttpUtils.closeClientButKeepContentStream;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RETRY_MAX_DELAY;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.aws.domain.AWSError;
+import org.jclouds.aws.handlers.AWSClientErrorRetryHandler;
+import org.jclouds.aws.util.AWSUtils;
+import org.jclouds.http.HttpCommand;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpRetryHandler;
+import org.jclouds.logging.Logger;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Retries 500 and 503 responses, and 400 responses reporting throttling, after a randomised
+ * exponential delay, and lowers the rate of the failed action in the {@link OpenNebulaRateLimiter}.
+ * Other client errors are left to the {@link AWSClientErrorRetryHandler}.
+ * <p>
+ * The delay is drawn uniformly between zero and {@code delayStart * 2^(failures - 1)}, capped by
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_RETRY_MAX_DELAY}, so that threads failing together
+ * do not retry together.
+ */
+@Singleton
+public class OpenNebulaServerErrorRetryHandler implements HttpRetryHandler {
+
+   /**
+    * Error codes of a 500 response worth retrying. 503 responses are always retried, as
+    * econe-server sends them without a body when it is overloaded.
+    */
+   static final Set<String> RETRYABLE_CODES = ImmutableSet.of("InternalError", "RequestLimitExceeded", "Throttling",
+            "ServiceUnavailable", "Unavailable");
+
+   /**
+    * Error codes of a 400 response reporting that the request rate is too high.
+    */
+   static final Set<String> THROTTLING_CODES = ImmutableSet.of("RequestLimitExceeded", "Throttling");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final AWSUtils utils;
+   private final AWSClientErrorRetryHandler clientErrors;
+   private final OpenNebulaRateLimiter limiter;
+   private final int retryCountLimit;
+   private final long delayStart;
+   private final long maxDelay;
+
+   @Inject
+   OpenNebulaServerErrorRetryHandler(AWSUtils utils, AWSClientErrorRetryHandler clientErrors,
+            OpenNebulaRateLimiter limiter,
+            @Named(Constants.PROPERTY_MAX_RETRIES) int retryCountLimit,
+            @Named(Constants.PROPERTY_RETRY_DELAY_START) long delayStart,
+            @Named(PROPERTY_RETRY_MAX_DELAY) long maxDelay) {
+      this.utils = checkNotNull(utils, "utils");
+      this.clientErrors = checkNotNull(clientErrors, "clientErrors");
+      this.limiter = checkNotNull(limiter, "limiter");
+      this.retryCountLimit = retryCountLimit;
+      this.delayStart = delayStart;
+      this.maxDelay = maxDelay;
+   }
+
+   @Override
+   public boolean shouldRetryRequest(HttpCommand command, HttpResponse response) {
+      if (!isRetryable(command, response))
+         return isClientError(response) ? clientErrors.shouldRetryRequest(command, response) : false;
+      limiter.onThrottled(OpenNebulaRateLimiter.actionOf(command.getCurrentRequest()));
+      command.incrementFailureCount();
+      if (!command.isReplayable()) {
+         logger.error("Cannot retry after error, command is not replayable: %1$s", command);
+         return false;
+      }
+      if (command.getFailureCount() > retryCountLimit) {
+         logger.error("Cannot retry after error, command has exceeded retry limit %1$d: %2$s",
+                  retryCountLimit, command);
+         return false;
+      }
+      long delay = delay(command.getFailureCount());
+      logger.debug("Retry %d/%d: delaying for %d ms: %s", command.getFailureCount(), retryCountLimit,
+               delay, command);
+      try {
+         Thread.sleep(delay);
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
+   private boolean isRetryable(HttpCommand command, HttpResponse response) {
+      switch (response.getStatusCode()) {
+         case 503:
+            return true;
+         case 500:
+            return hasErrorCode(command, response, RETRYABLE_CODES);
+         case 400:
+            return hasErrorCode(command, response, THROTTLING_CODES);
+         default:
+            return false;
+      }
+   }
+
+   private boolean hasErrorCode(HttpCommand command, HttpResponse response, Set<String> codes) {
+      // HEAD requests have no payload to parse
+      if (response.getPayload() == null)
+         return false;
+      closeClientButKeepContentStream(response);
+      AWSError error = utils.parseAWSErrorFromContent(command.getCurrentRequest(), response);
+      return error != null && codes.contains(error.getCode());
+   }
+
+   private static boolean isClientError(HttpResponse response) {
+      return response.getStatusCode() >= 400 && response.getStatusCode() < 500;
+   }
+
+   long delay(int failureCount) {
+      long ceiling = delayStart << Math.min(failureCount - 1, 30);
+      if (ceiling <= 0 || ceiling > maxDelay)
+         ceiling = maxDelay;
+      return ThreadLocalRandom.current().nextLong(ceiling + 1);
+   }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_KEEP_ALIVE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_MAX_IDLE;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.logging.Logger;
+import org.jclouds.ssh.SshClient;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Keeps SSH connections to nodes open between scripts, so that running several scripts on a group
+ * only pays for each handshake once.
+ * <p/>
+ * Connections are keyed by node, address and login, and leased exclusively: a node running two
+ * scripts at once gets two connections. At most
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_SSH_POOL_MAX_IDLE} connections per node are kept
+ * once released, and those idle for longer than
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_SSH_POOL_KEEP_ALIVE} milliseconds are closed by a
+ * sweep that only runs while there are idle connections. A connection whose script failed is
+ * closed rather than reused.
+ */
+@Singleton
+public class OpenNebulaSshClientPool implements Closeable {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   @com.google.inject.Inject(optional = true)
+   SshClient.Factory sshFactory;
+
+   private final ScheduledExecutorService scheduler;
+   private final int maxIdlePerNode;
+   private final long keepAliveMillis;
+
+   private final ListMultimap<Key, Idle> idle = LinkedListMultimap.create();
+   private ScheduledFuture<?> sweep;
+   private boolean closed;
+
+   @Inject
+   OpenNebulaSshClientPool(@Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler,
+            @Named(PROPERTY_SSH_POOL_MAX_IDLE) int maxIdlePerNode,
+            @Named(PROPERTY_SSH_POOL_KEEP_ALIVE) long keepAliveMillis, Closer closer) {
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+      checkArgument(maxIdlePerNode >= 0, "%s must not be negative", PROPERTY_SSH_POOL_MAX_IDLE);
+      checkArgument(keepAliveMillis > 0, "%s must be positive", PROPERTY_SSH_POOL_KEEP_ALIVE);
+      this.maxIdlePerNode = maxIdlePerNode;
+      this.keepAliveMillis = keepAliveMillis;
+      closer.addToClose(this);
+   }
+
+   /**
+    * Takes an idle connection to {@code socket} on {@code nodeId} logged in with
+    * {@code credentials}, or opens a new one.
+    */
+   public Lease lease(String nodeId, HostAndPort socket, LoginCredentials credentials) {
+      Key key = new Key(checkNotNull(nodeId, "nodeId"), checkNotNull(socket, "socket"),
+               checkNotNull(credentials, "credentials"));
+      long now = System.currentTimeMillis();
+      List<SshClient> expired = Lists.newArrayList();
+      SshClient client = null;
+      synchronized (idle) {
+         checkState(!closed, "pool is closed");
+         for (Iterator<Idle> it = idle.get(key).iterator(); it.hasNext() && client == null;) {
+            Idle candidate = it.next();
+            it.remove();
+            if (now - candidate.since < keepAliveMillis)
+               client = candidate.client;
+            else
+               expired.add(candidate.client);
+         }
+      }
+      disconnect(expired);
+      if (client == null) {
+         checkState(sshFactory != null, "ssh requested, but no SshModule configured");
+         client = sshFactory.create(socket, credentials);
+         logger.debug(">> opening ssh connection to node(%s) at %s", nodeId, socket);
+         try {
+            client.connect();
+         } catch (RuntimeException e) {
+            // a client may hold a socket or threads even when its connection failed
+            disconnect(ImmutableList.of(client));
+            throw e;
+         }
+      }
+      return new Lease(key, client);
+   }
+
+   /**
+    * Closes every idle connection; connections leased at the time are closed when released.
+    */
+   @Override
+   public void close() {
+      List<SshClient> clients = Lists.newArrayList();
+      synchronized (idle) {
+         closed = true;
+         for (Idle each : idle.values())
+            clients.add(each.client);
+         idle.clear();
+         if (sweep != null)
+            sweep.cancel(false);
+      }
+      disconnect(clients);
+   }
+
+   private void release(Key key, SshClient client) {
+      synchronized (idle) {
+         if (!closed && idle.get(key).size() < maxIdlePerNode) {
+            // most recently used first, so that surplus connections expire
+            idle.get(key).add(0, new Idle(client, System.currentTimeMillis()));
+            if (sweep == null)
+               sweep = scheduler.scheduleWithFixedDelay(new Runnable() {
+                  @Override
+                  public void run() {
+                     sweep();
+                  }
+               }, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+            return;
+         }
+      }
+      disconnect(Lists.newArrayList(client));
+   }
+
+   private void sweep() {
+      long now = System.currentTimeMillis();
+      List<SshClient> expired = Lists.newArrayList();
+      synchronized (idle) {
+         for (Iterator<Map.Entry<Key, Idle>> it = idle.entries().iterator(); it.hasNext();) {
+            Idle each = it.next().getValue();
+            if (now - each.since >= keepAliveMillis) {
+               expired.add(each.client);
+               it.remove();
+            }
+         }
+         if (idle.isEmpty() && sweep != null) {
+            sweep.cancel(false);
+            sweep = null;
+         }
+      }
+      disconnect(expired);
+   }
+
+   private void disconnect(List<SshClient> clients) {
+      for (SshClient client : clients) {
+         try {
+            client.disconnect();
+         } catch (RuntimeException e) {
+            logger.debug("<< error closing ssh connection to %s: %s", client.getHostAddress(), e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * An SSH connection leased from the pool, to be given back with either {@link #release()} or
+    * {@link #discard()}.
+    */
+   public final class Lease {
+      private final Key key;
+      private final SshClient client;
+
+      private Lease(Key key, SshClient client) {
+         this.key = key;
+         this.client = client;
+      }
+
+      public SshClient getClient() {
+         return client;
+      }
+
+      /**
+       * Returns the connection to the pool for the next script on the same node.
+       */
+      public void release() {
+         OpenNebulaSshClientPool.this.release(key, client);
+      }
+
+      /**
+       * Closes the connection, after a failure that may have left it unusable.
+       */
+      public void discard() {
+         disconnect(Lists.newArrayList(client));
+      }
+   }
+
+   private static final class Idle {
+      private final SshClient client;
+      private final long since;
+
+      private Idle(SshClient client, long since) {
+         this.client = client;
+         this.since = since;
+      }
+   }
+
+   private static final class Key {
+      private final String nodeId;
+      private final HostAndPort socket;
+      private final LoginCredentials credentials;
+
+      private Key(String nodeId, HostAndPort socket, LoginCredentials credentials) {
+         this.nodeId = nodeId;
+         this.socket = socket;
+         this.credentials = credentials;
+      }
+
+      @Override
+      public boolean equals(Object object) {
+         if (!(object instanceof Key))
+            return false;
+         Key that = Key.class.cast(object);
+         return nodeId.equals(that.nodeId) && socket.equals(that.socket)
+                  && Objects.equal(credentials, that.credentials);
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hashCode(nodeId, socket, credentials);
+      }
+   }
+}
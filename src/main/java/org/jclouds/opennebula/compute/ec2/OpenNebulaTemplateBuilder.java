@@ -0,0 +1,448 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.aws.util.AWSUtils.parseHandle;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaTemplateIndex.coresAndSpeed;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaTemplateIndex.cores;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaTemplateIndex.disk;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.OperatingSystem;
+import org.jclouds.compute.domain.OsFamily;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.TemplateBuilder;
+import org.jclouds.compute.domain.TemplateBuilderSpec;
+import org.jclouds.compute.domain.internal.TemplateImpl;
+import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.domain.Location;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.jclouds.opennebula.compute.ec2.OpenNebulaTemplateIndex.Candidates;
+
+import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+/**
+ * {@link TemplateBuilder} resolving templates through the {@link OpenNebulaTemplateIndex} rather
+ * than by sorting every image and hardware combination of the catalog.
+ * <p/>
+ * Candidate images are taken from the narrowest index bucket matching the OS family, OS version,
+ * architecture or 64-bit criteria, already in preference order (newest OS version first), and
+ * candidate hardware from the cores and RAM ranges. The template uses the first hardware, in
+ * {@link #smallest()}, {@link #fastest()} or {@link #biggest()} order, that supports a candidate
+ * image, with the most preferred image it supports; candidates are only checked against the
+ * remaining criteria until that image is found. Without a location, the image's region or else
+ * the context's default location is used.
+ * <p/>
+ * Like the stock template builder, a builder given no criterion other than options builds the
+ * template of the {@code jclouds.template} spec, if one is configured.
+ */
+public class OpenNebulaTemplateBuilder implements TemplateBuilder {
+
+   private static final Ordering<Hardware> SMALLEST = new Ordering<Hardware>() {
+      @Override
+      public int compare(Hardware left, Hardware right) {
+         return ComparisonChain.start().compare(cores(left), cores(right)).compare(left.getRam(), right.getRam())
+                  .compare(disk(left), disk(right)).compare(left.getId(), right.getId()).result();
+      }
+   };
+
+   private static final Ordering<Hardware> FASTEST = new Ordering<Hardware>() {
+      @Override
+      public int compare(Hardware left, Hardware right) {
+         return ComparisonChain.start().compare(coresAndSpeed(right), coresAndSpeed(left)).result();
+      }
+   }.compound(SMALLEST);
+
+   private static final Ordering<Hardware> BIGGEST = new Ordering<Hardware>() {
+      @Override
+      public int compare(Hardware left, Hardware right) {
+         return ComparisonChain.start().compare(cores(right), cores(left)).compare(right.getRam(), left.getRam())
+                  .compare(disk(right), disk(left)).compare(left.getId(), right.getId()).result();
+      }
+   };
+
+   private final OpenNebulaTemplateIndex index;
+   private final OpenNebulaCatalogCache catalog;
+   private final Supplier<Location> defaultLocation;
+   private final String defaultTemplate;
+
+   private String locationId;
+   private String imageId;
+   private String hardwareId;
+   private OsFamily osFamily;
+   private Boolean os64Bit;
+   private Pattern osName;
+   private Pattern osDescription;
+   private Pattern osVersion;
+   private Pattern osArch;
+   private Pattern imageName;
+   private Pattern imageVersion;
+   private Pattern imageDescription;
+   private Pattern hypervisor;
+   private Predicate<Image> imageCondition = Predicates.alwaysTrue();
+   private Function<Iterable<? extends Image>, Image> imageChooser;
+   private double minCores;
+   private int minRam;
+   private double minDisk;
+   private Ordering<Hardware> hardwareOrder = SMALLEST;
+   private TemplateOptions options;
+
+   OpenNebulaTemplateBuilder(OpenNebulaTemplateIndex index, OpenNebulaCatalogCache catalog,
+            Supplier<Location> defaultLocation, String defaultTemplate) {
+      this.index = checkNotNull(index, "index");
+      this.catalog = checkNotNull(catalog, "catalog");
+      this.defaultLocation = checkNotNull(defaultLocation, "defaultLocation");
+      this.defaultTemplate = defaultTemplate;
+   }
+
+   @Override
+   public TemplateBuilder from(TemplateBuilderSpec spec) {
+      return spec.copyTo(this, new EC2TemplateOptions());
+   }
+
+   @Override
+   public TemplateBuilder from(String spec) {
+      return from(TemplateBuilderSpec.parse(spec));
+   }
+
+   /**
+    * No criteria are set by default, so this changes nothing.
+    */
+   @Override
+   public TemplateBuilder any() {
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder fromTemplate(Template template) {
+      fromImage(template.getImage());
+      fromHardware(template.getHardware());
+      if (template.getLocation() != null)
+         locationId = template.getLocation().getId();
+      return options(template.getOptions());
+   }
+
+   @Override
+   public TemplateBuilder fromHardware(Hardware hardware) {
+      hardwareId = hardware.getId();
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder fromImage(Image image) {
+      imageId = image.getId();
+      if (image.getLocation() != null)
+         locationId = image.getLocation().getId();
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder smallest() {
+      hardwareOrder = SMALLEST;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder fastest() {
+      hardwareOrder = FASTEST;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder biggest() {
+      hardwareOrder = BIGGEST;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder osFamily(OsFamily os) {
+      osFamily = os;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder locationId(String locationId) {
+      this.locationId = locationId;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageId(String imageId) {
+      this.imageId = imageId;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder hardwareId(String hardwareId) {
+      this.hardwareId = hardwareId;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder osNameMatches(String osNameRegex) {
+      osName = compile(osNameRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder osDescriptionMatches(String osDescriptionRegex) {
+      osDescription = compile(osDescriptionRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder osVersionMatches(String osVersionRegex) {
+      osVersion = compile(osVersionRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder os64Bit(boolean is64bit) {
+      os64Bit = is64bit;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder osArchMatches(String architecture) {
+      osArch = compile(architecture);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageNameMatches(String imageNameRegex) {
+      imageName = compile(imageNameRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageVersionMatches(String imageVersionRegex) {
+      imageVersion = compile(imageVersionRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageDescriptionMatches(String imageDescriptionRegex) {
+      imageDescription = compile(imageDescriptionRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageMatches(Predicate<Image> condition) {
+      imageCondition = checkNotNull(condition, "condition");
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder imageChooser(Function<Iterable<? extends Image>, Image> imageChooser) {
+      this.imageChooser = imageChooser;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder hypervisorMatches(String hypervisorRegex) {
+      hypervisor = compile(hypervisorRegex);
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder minCores(double minCores) {
+      this.minCores = minCores;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder minRam(int megabytes) {
+      minRam = megabytes;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder minDisk(double gigabytes) {
+      minDisk = gigabytes;
+      return this;
+   }
+
+   @Override
+   public TemplateBuilder options(TemplateOptions options) {
+      TemplateOptions copy = new EC2TemplateOptions();
+      checkNotNull(options, "options").copyTo(copy);
+      this.options = copy;
+      return this;
+   }
+
+   /**
+    * Discards the cached catalogs; the indexes follow once they are reloaded.
+    */
+   @Override
+   public TemplateBuilder forceCacheReload() {
+      catalog.invalidateAll();
+      return this;
+   }
+
+   @Override
+   public Template build() {
+      if (defaultTemplate != null && nothingChangedExceptOptions()) {
+         TemplateBuilder defaults = new OpenNebulaTemplateBuilder(index, catalog, defaultLocation, null)
+                  .from(defaultTemplate);
+         if (options != null)
+            defaults.options(options);
+         return defaults.build();
+      }
+      Location location = location();
+      Iterable<Image> images = images(OpenNebulaCreateNodesInGroup.regionOf(location));
+      if (Iterables.isEmpty(images))
+         throw new NoSuchElementException("no image matched " + this);
+      TemplateOptions options = this.options != null ? this.options : new EC2TemplateOptions();
+      for (Hardware hardware : hardwareOrder.sortedCopy(hardware(location))) {
+         Image image;
+         if (imageChooser != null) {
+            Iterable<Image> supported = Iterables.filter(images, hardware.supportsImage());
+            image = Iterables.isEmpty(supported) ? null : imageChooser.apply(supported);
+         } else {
+            image = Iterables.tryFind(images, hardware.supportsImage()).orNull();
+         }
+         if (image != null)
+            return new TemplateImpl(image, hardware, location, options);
+      }
+      throw new NoSuchElementException("no hardware matched " + this + " for any of " + Iterables.size(images)
+               + " images");
+   }
+
+   /**
+    * Whether no criterion was given, in which case the stock template builder applies its defaults.
+    */
+   private boolean nothingChangedExceptOptions() {
+      return locationId == null && imageId == null && hardwareId == null && osFamily == null && os64Bit == null
+               && osName == null && osDescription == null && osVersion == null && osArch == null
+               && imageName == null && imageVersion == null && imageDescription == null && hypervisor == null
+               && imageCondition == Predicates.<Image> alwaysTrue() && imageChooser == null && minCores == 0
+               && minRam == 0 && minDisk == 0 && hardwareOrder == SMALLEST;
+   }
+
+   private Location location() {
+      String id = locationId != null ? locationId : imageId != null ? parseHandle(imageId)[0] : null;
+      if (id == null)
+         return defaultLocation.get();
+      for (Location location : catalog.listLocations())
+         if (location.getId().equals(id))
+            return location;
+      throw new NoSuchElementException("location " + id + " not found");
+   }
+
+   /**
+    * The images of {@code region} matching every image criterion, in preference order. Candidates
+    * are checked as the result is iterated.
+    */
+   private Iterable<Image> images(String region) {
+      if (imageId != null) {
+         Image image = catalog.getImage(imageId);
+         return image != null && matches(image) ? ImmutableList.of(image) : ImmutableList.<Image> of();
+      }
+      OpenNebulaTemplateIndex.ImageIndex images = index.images(region);
+      Candidates candidates = Candidates.of(images.all);
+      if (osFamily != null)
+         candidates = narrowest(candidates, Candidates.of(images.byOsFamily.get(osFamily)));
+      if (os64Bit != null)
+         candidates = narrowest(candidates, Candidates.of(images.by64Bit.get(os64Bit)));
+      if (osVersion != null)
+         candidates = narrowest(candidates, images.matching(images.byOsVersion, osVersion));
+      if (osArch != null)
+         candidates = narrowest(candidates, images.matching(images.byArch, osArch));
+      return Iterables.filter(candidates.images, new Predicate<Image>() {
+         @Override
+         public boolean apply(Image image) {
+            return matches(image);
+         }
+      });
+   }
+
+   private boolean matches(Image image) {
+      OperatingSystem os = image.getOperatingSystem();
+      return (osFamily == null || osFamily == os.getFamily())
+               && (os64Bit == null || os64Bit == os.is64Bit())
+               && matches(osName, os.getName())
+               && matches(osDescription, os.getDescription())
+               && matches(osVersion, os.getVersion())
+               && matches(osArch, os.getArch())
+               && matches(imageName, image.getName())
+               && matches(imageVersion, image.getVersion())
+               && matches(imageDescription, image.getDescription())
+               && imageCondition.apply(image);
+   }
+
+   /**
+    * Hardware of {@code location} matching every hardware criterion.
+    */
+   private List<Hardware> hardware(Location location) {
+      OpenNebulaTemplateIndex.HardwareIndex hardware = index.hardware();
+      Iterable<Hardware> candidates;
+      if (hardwareId != null) {
+         Hardware byId = hardware.byId.get(hardwareId);
+         if (byId == null)
+            throw new NoSuchElementException("hardware " + hardwareId + " not found");
+         candidates = OpenNebulaTemplateIndex.HardwareIndex.isAvailableIn(byId, location) ? ImmutableList.of(byId)
+                  : ImmutableList.<Hardware> of();
+      } else {
+         candidates = hardware.atLeast(minCores, minRam, location);
+      }
+      List<Hardware> matching = Lists.newArrayList();
+      for (Hardware each : candidates) {
+         if (matches(hypervisor, each.getHypervisor()) && disk(each) >= minDisk)
+            matching.add(each);
+      }
+      return matching;
+   }
+
+   private static Candidates narrowest(Candidates current, Candidates bucket) {
+      return bucket.size < current.size ? bucket : current;
+   }
+
+   private static boolean matches(Pattern pattern, String value) {
+      return pattern == null || value != null && pattern.matcher(value).matches();
+   }
+
+   private static Pattern compile(String regex) {
+      return regex != null ? Pattern.compile(regex) : null;
+   }
+
+   @Override
+   public String toString() {
+      return MoreObjects.toStringHelper("").omitNullValues().add("location", locationId).add("image", imageId)
+               .add("hardware", hardwareId).add("osFamily", osFamily).add("os64Bit", os64Bit)
+               .add("osName", osName).add("osDescription", osDescription).add("osVersion", osVersion)
+               .add("osArch", osArch).add("imageName", imageName).add("imageVersion", imageVersion)
+               .add("imageDescription", imageDescription).add("hypervisor", hypervisor)
+               .add("minCores", minCores > 0 ? minCores : null).add("minRam", minRam > 0 ? minRam : null)
+               .add("minDisk", minDisk > 0 ? minDisk : null).toString();
+   }
+}
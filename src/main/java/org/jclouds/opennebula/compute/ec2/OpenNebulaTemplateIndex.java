@@ -0,0 +1,368 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.compute.config.ComputeServiceProperties.TEMPLATE;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.OperatingSystem;
+import org.jclouds.compute.domain.OsFamily;
+import org.jclouds.compute.domain.Processor;
+import org.jclouds.compute.domain.Volume;
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.domain.Location;
+import org.jclouds.logging.Logger;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+
+/**
+ * Lookup indexes over the image and hardware catalogs of {@link OpenNebulaCatalogCache}, used by
+ * {@link OpenNebulaTemplateBuilder} instead of scanning every image and hardware combination.
+ * <p/>
+ * Images are indexed per region by OS family, OS version, architecture and 64-bit flag, and each
+ * bucket is kept in preference order, so that the first image of the narrowest bucket passing
+ * the remaining criteria is the one to use. Hardware is indexed by id, by location and in ranges
+ * of cores and RAM. An index is rebuilt when the catalog it was built from has been reloaded, which the cache
+ * does one region at a time, so a refresh only re-indexes the regions whose catalog changed.
+ * <p/>
+ * Builders default to the {@code jclouds.template} spec and the context's default location, as
+ * the stock template builder does.
+ */
+@Singleton
+public class OpenNebulaTemplateIndex {
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   @com.google.inject.Inject(optional = true)
+   @Named(TEMPLATE)
+   String defaultTemplate;
+
+   private final OpenNebulaCatalogCache catalog;
+   private final Supplier<Location> defaultLocation;
+   private final ConcurrentMap<String, ImageIndex> imageIndexes = Maps.newConcurrentMap();
+   private volatile HardwareIndex hardwareIndex;
+
+   @Inject
+   OpenNebulaTemplateIndex(OpenNebulaCatalogCache catalog, Supplier<Location> defaultLocation) {
+      this.catalog = checkNotNull(catalog, "catalog");
+      this.defaultLocation = checkNotNull(defaultLocation, "defaultLocation");
+   }
+
+   /**
+    * A new template builder resolving against these indexes.
+    */
+   public OpenNebulaTemplateBuilder templateBuilder() {
+      return new OpenNebulaTemplateBuilder(this, catalog, defaultLocation, defaultTemplate);
+   }
+
+   ImageIndex images(String region) {
+      Map<String, Image> images = catalog.imagesOf(region);
+      ImageIndex index = imageIndexes.get(region);
+      if (index == null || index.source != images) {
+         // a concurrent rebuild of the same catalog is harmless, both produce the same index
+         logger.debug(">> indexing %d images of region(%s)", images.size(), region);
+         index = new ImageIndex(images);
+         imageIndexes.put(region, index);
+      }
+      return index;
+   }
+
+   HardwareIndex hardware() {
+      Set<Hardware> hardware = catalog.listHardwareProfiles();
+      HardwareIndex index = hardwareIndex;
+      if (index == null || index.source != hardware) {
+         index = new HardwareIndex(hardware);
+         hardwareIndex = index;
+      }
+      return index;
+   }
+
+   /**
+    * Most preferred first: newest OS version, then newest image version, then name.
+    */
+   static final Ordering<Image> IMAGE_PREFERENCE = new Ordering<Image>() {
+      @Override
+      public int compare(Image left, Image right) {
+         return ComparisonChain.start()
+                  .compare(right.getOperatingSystem().getVersion(), left.getOperatingSystem().getVersion(),
+                           VERSION_ORDER)
+                  .compare(right.getVersion(), left.getVersion(), VERSION_ORDER)
+                  .compare(Strings.nullToEmpty(left.getName()), Strings.nullToEmpty(right.getName()))
+                  .compare(left.getId(), right.getId())
+                  .result();
+      }
+   };
+
+   /**
+    * Compares dotted versions numerically where both sides are numbers, so that 10.04 is newer than
+    * 9.10; nulls are oldest.
+    */
+   static final Ordering<String> VERSION_ORDER = new Ordering<String>() {
+      private final Pattern separator = Pattern.compile("[^0-9A-Za-z]+");
+
+      @Override
+      public int compare(String left, String right) {
+         String[] l = separator.split(left);
+         String[] r = separator.split(right);
+         for (int i = 0; i < Math.min(l.length, r.length); i++) {
+            Integer ln = Ints.tryParse(l[i]);
+            Integer rn = Ints.tryParse(r[i]);
+            int result = ln != null && rn != null ? ln.compareTo(rn) : l[i].compareTo(r[i]);
+            if (result != 0)
+               return result;
+         }
+         return Ints.compare(l.length, r.length);
+      }
+   }.nullsFirst();
+
+   static double cores(Hardware hardware) {
+      double cores = 0;
+      for (Processor processor : hardware.getProcessors())
+         cores += processor.getCores();
+      return cores;
+   }
+
+   static double coresAndSpeed(Hardware hardware) {
+      double total = 0;
+      for (Processor processor : hardware.getProcessors())
+         total += processor.getCores() * processor.getSpeed();
+      return total;
+   }
+
+   static double disk(Hardware hardware) {
+      double total = 0;
+      for (Volume volume : hardware.getVolumes())
+         total += volume.getSize() != null ? volume.getSize() : 0;
+      return total;
+   }
+
+   /**
+    * Images in preference order, and how many there are, known without iterating them.
+    */
+   static final class Candidates {
+      final Iterable<Image> images;
+      final int size;
+
+      Candidates(Iterable<Image> images, int size) {
+         this.images = images;
+         this.size = size;
+      }
+
+      static Candidates of(List<Image> images) {
+         return new Candidates(images, images.size());
+      }
+   }
+
+   /**
+    * The images of one region, bucketed by each indexed attribute in {@link #IMAGE_PREFERENCE}
+    * order.
+    */
+   static final class ImageIndex {
+      final Map<String, Image> source;
+      final ImmutableList<Image> all;
+      final ImmutableListMultimap<OsFamily, Image> byOsFamily;
+      final ImmutableListMultimap<String, Image> byOsVersion;
+      final ImmutableListMultimap<String, Image> byArch;
+      final ImmutableListMultimap<Boolean, Image> by64Bit;
+      private final Ordering<Image> preference;
+
+      ImageIndex(Map<String, Image> source) {
+         this.source = source;
+         this.all = IMAGE_PREFERENCE.immutableSortedCopy(source.values());
+         ImmutableListMultimap.Builder<OsFamily, Image> byOsFamily = ImmutableListMultimap.builder();
+         ImmutableListMultimap.Builder<String, Image> byOsVersion = ImmutableListMultimap.builder();
+         ImmutableListMultimap.Builder<String, Image> byArch = ImmutableListMultimap.builder();
+         ImmutableListMultimap.Builder<Boolean, Image> by64Bit = ImmutableListMultimap.builder();
+         Map<Image, Integer> rank = Maps.newIdentityHashMap();
+         for (Image image : all) {
+            OperatingSystem os = image.getOperatingSystem();
+            byOsFamily.put(os.getFamily() != null ? os.getFamily() : OsFamily.UNRECOGNIZED, image);
+            byOsVersion.put(Strings.nullToEmpty(os.getVersion()), image);
+            byArch.put(Strings.nullToEmpty(os.getArch()), image);
+            by64Bit.put(os.is64Bit(), image);
+            rank.put(image, rank.size());
+         }
+         this.byOsFamily = byOsFamily.build();
+         this.byOsVersion = byOsVersion.build();
+         this.byArch = byArch.build();
+         this.by64Bit = by64Bit.build();
+         final Map<Image, Integer> ranks = rank;
+         this.preference = new Ordering<Image>() {
+            @Override
+            public int compare(Image left, Image right) {
+               return Ints.compare(ranks.get(left), ranks.get(right));
+            }
+         };
+      }
+
+      /**
+       * The images of every bucket whose key matches {@code pattern}. The buckets, each already in
+       * preference order, are merged as the result is iterated rather than copied and sorted.
+       */
+      Candidates matching(ImmutableListMultimap<String, Image> index, Pattern pattern) {
+         List<ImmutableList<Image>> buckets = Lists.newArrayList();
+         int size = 0;
+         for (String key : index.keySet()) {
+            if (pattern.matcher(key).matches()) {
+               ImmutableList<Image> bucket = index.get(key);
+               buckets.add(bucket);
+               size += bucket.size();
+            }
+         }
+         if (buckets.size() == 1)
+            return Candidates.of(buckets.get(0));
+         return new Candidates(Iterables.mergeSorted(buckets, preference), size);
+      }
+   }
+
+   /**
+    * Hardware by id, by location and by minimum cores and RAM.
+    */
+   static final class HardwareIndex {
+      final Set<Hardware> source;
+      final ImmutableMap<String, Hardware> byId;
+      final ImmutableListMultimap<String, Hardware> byLocation;
+      final ImmutableSortedMap<Double, ImmutableList<Hardware>> byCores;
+      final ImmutableSortedMap<Integer, ImmutableList<Hardware>> byRam;
+      // how much hardware has at least as many cores, or as much RAM, as the key
+      private final ImmutableSortedMap<Double, Integer> withCores;
+      private final ImmutableSortedMap<Integer, Integer> withRam;
+
+      HardwareIndex(Set<Hardware> source) {
+         this.source = source;
+         ImmutableMap.Builder<String, Hardware> byId = ImmutableMap.builder();
+         ImmutableListMultimap.Builder<String, Hardware> byLocation = ImmutableListMultimap.builder();
+         Map<Double, List<Hardware>> byCores = Maps.newTreeMap();
+         Map<Integer, List<Hardware>> byRam = Maps.newTreeMap();
+         for (Hardware hardware : source) {
+            byId.put(hardware.getId(), hardware);
+            byLocation.put(locationId(hardware.getLocation()), hardware);
+            add(byCores, cores(hardware), hardware);
+            add(byRam, hardware.getRam(), hardware);
+         }
+         this.byId = byId.build();
+         this.byLocation = byLocation.build();
+         this.byCores = copyOf(byCores);
+         this.byRam = copyOf(byRam);
+         this.withCores = countsAtLeast(this.byCores);
+         this.withRam = countsAtLeast(this.byRam);
+      }
+
+      /**
+       * Hardware of {@code location}, its parent or no location, with at least {@code minCores}
+       * cores and {@code minRam} megabytes of RAM. The narrowest of the location buckets and the
+       * cores and RAM ranges is filtered by the other criteria as the result is iterated; nothing
+       * is copied.
+       */
+      Iterable<Hardware> atLeast(final double minCores, final int minRam, final Location location) {
+         List<ImmutableList<Hardware>> located = Lists.newArrayList(byLocation.get(""),
+                  byLocation.get(location.getId()));
+         if (location.getParent() != null)
+            located.add(byLocation.get(location.getParent().getId()));
+         int inLocation = 0;
+         for (ImmutableList<Hardware> bucket : located)
+            inLocation += bucket.size();
+         int enoughCores = count(withCores.ceilingEntry(minCores));
+         int enoughRam = count(withRam.ceilingEntry(minRam));
+
+         Iterable<Hardware> narrowest;
+         if (inLocation <= enoughCores && inLocation <= enoughRam)
+            narrowest = Iterables.concat(located);
+         else if (enoughCores <= enoughRam)
+            narrowest = Iterables.concat(byCores.tailMap(minCores, true).values());
+         else
+            narrowest = Iterables.concat(byRam.tailMap(minRam, true).values());
+         return Iterables.filter(narrowest, new Predicate<Hardware>() {
+            @Override
+            public boolean apply(Hardware hardware) {
+               return cores(hardware) >= minCores && hardware.getRam() >= minRam
+                        && isAvailableIn(hardware, location);
+            }
+         });
+      }
+
+      /**
+       * Whether {@code hardware} has no location, or is that of {@code location} or of its parent.
+       */
+      static boolean isAvailableIn(Hardware hardware, Location location) {
+         Location at = hardware.getLocation();
+         return at == null || at.equals(location) || at.equals(location.getParent());
+      }
+
+      private static String locationId(Location location) {
+         return location != null ? location.getId() : "";
+      }
+
+      private static int count(Map.Entry<?, Integer> atLeast) {
+         return atLeast != null ? atLeast.getValue() : 0;
+      }
+
+      private static <K extends Comparable<K>> ImmutableSortedMap<K, Integer> countsAtLeast(
+               ImmutableSortedMap<K, ImmutableList<Hardware>> index) {
+         ImmutableSortedMap.Builder<K, Integer> counts = ImmutableSortedMap.naturalOrder();
+         int count = 0;
+         for (Map.Entry<K, ImmutableList<Hardware>> bucket : index.descendingMap().entrySet()) {
+            count += bucket.getValue().size();
+            counts.put(bucket.getKey(), count);
+         }
+         return counts.build();
+      }
+
+      private static <K> void add(Map<K, List<Hardware>> index, K key, Hardware hardware) {
+         List<Hardware> bucket = index.get(key);
+         if (bucket == null)
+            index.put(key, bucket = Lists.newArrayList());
+         bucket.add(hardware);
+      }
+
+      private static <K extends Comparable<K>> ImmutableSortedMap<K, ImmutableList<Hardware>> copyOf(
+               Map<K, List<Hardware>> index) {
+         ImmutableSortedMap.Builder<K, ImmutableList<Hardware>> copy = ImmutableSortedMap.naturalOrder();
+         for (Map.Entry<K, List<Hardware>> bucket : index.entrySet())
+            copy.put(bucket.getKey(), ImmutableList.copyOf(bucket.getValue()));
+         return copy.build();
+      }
+   }
+}
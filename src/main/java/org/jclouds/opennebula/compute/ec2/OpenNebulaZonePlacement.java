@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PLACEMENT_LATENCY_WEIGHT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_PLACEMENT_MODE;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.compute.reference.ComputeServiceConstants;
+import org.jclouds.ec2.EC2Api;
+import org.jclouds.ec2.domain.AvailabilityZoneInfo;
+import org.jclouds.logging.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AtomicDouble;
+
+/**
+ * Chooses availability zones for new nodes in {@code capacity} placement mode.
+ * <p/>
+ * The available zones of a region, from DescribeAvailabilityZones, are scored by the free memory of
+ * the OpenNebula cluster of the same name, taken from the {@link OpenNebulaHostCapacityCache}, and
+ * divided by {@code 1 + weight * latency}, where latency is a moving average of recent
+ * create-to-running times in the zone, in seconds. Large requests are then split across zones in
+ * proportion to their scores. When no capacity is known for any zone, zones are weighted equally.
+ */
+@Singleton
+public class OpenNebulaZonePlacement {
+
+   /**
+    * Weight of the newest sample in the provisioning latency moving average.
+    */
+   private static final double LATENCY_SMOOTHING = 0.3;
+
+   @Resource
+   @Named(ComputeServiceConstants.COMPUTE_LOGGER)
+   protected Logger logger = Logger.NULL;
+
+   private final OpenNebulaHostCapacityCache capacity;
+   private final boolean enabled;
+   private final double latencyWeight;
+   private final LoadingCache<String, List<String>> availableZones;
+   private final ConcurrentMap<String, AtomicDouble> latencySeconds = Maps.newConcurrentMap();
+
+   @Inject
+   OpenNebulaZonePlacement(final EC2Api api, OpenNebulaHostCapacityCache capacity,
+            @Named(PROPERTY_PLACEMENT_MODE) String mode, @Named(PROPERTY_PLACEMENT_LATENCY_WEIGHT) double latencyWeight) {
+      this.capacity = checkNotNull(capacity, "capacity");
+      checkArgument("template".equals(mode) || "capacity".equals(mode), "%s must be template or capacity, not %s",
+               PROPERTY_PLACEMENT_MODE, mode);
+      this.enabled = "capacity".equals(mode);
+      checkArgument(latencyWeight >= 0, "%s must not be negative", PROPERTY_PLACEMENT_LATENCY_WEIGHT);
+      this.latencyWeight = latencyWeight;
+      this.availableZones = CacheBuilder.newBuilder()
+               .expireAfterWrite(1, TimeUnit.MINUTES)
+               .build(new CacheLoader<String, List<String>>() {
+                  @Override
+                  public List<String> load(String region) {
+                     ImmutableList.Builder<String> zones = ImmutableList.builder();
+                     for (AvailabilityZoneInfo zone : api.getAvailabilityZoneAndRegionApi().get()
+                              .describeAvailabilityZonesInRegion(region)) {
+                        if (zone.getState() == AvailabilityZoneInfo.State.AVAILABLE)
+                           zones.add(zone.getZone());
+                     }
+                     return zones.build();
+                  }
+               });
+   }
+
+   /**
+    * Whether {@code capacity} placement mode is configured.
+    */
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * The available zones of a region, best first.
+    */
+   public List<String> rank(String region) {
+      final Map<String, Double> scores = scores(region);
+      List<String> zones = Lists.newArrayList(scores.keySet());
+      Collections.sort(zones, new Comparator<String>() {
+         @Override
+         public int compare(String left, String right) {
+            return Double.compare(scores.get(right), scores.get(left));
+         }
+      });
+      return zones;
+   }
+
+   /**
+    * Splits {@code count} nodes across the available zones of a region in proportion to their
+    * scores, using the largest remainder method. Returns an empty map if the region reports no
+    * available zone.
+    */
+   public Map<String, Integer> spread(String region, int count) {
+      Map<String, Double> scores = scores(region);
+      double total = 0;
+      for (double score : scores.values())
+         total += score;
+      if (scores.isEmpty() || total <= 0)
+         return ImmutableMap.of();
+
+      final Map<String, Double> remainders = Maps.newHashMap();
+      Map<String, Integer> counts = Maps.newLinkedHashMap();
+      int assigned = 0;
+      for (Map.Entry<String, Double> entry : scores.entrySet()) {
+         double share = count * entry.getValue() / total;
+         int whole = (int) Math.floor(share);
+         counts.put(entry.getKey(), whole);
+         remainders.put(entry.getKey(), share - whole);
+         assigned += whole;
+      }
+      List<String> byRemainder = Lists.newArrayList(remainders.keySet());
+      Collections.sort(byRemainder, new Comparator<String>() {
+         @Override
+         public int compare(String left, String right) {
+            return Double.compare(remainders.get(right), remainders.get(left));
+         }
+      });
+      for (int i = 0; assigned < count; i++, assigned++) {
+         String zone = byRemainder.get(i % byRemainder.size());
+         counts.put(zone, counts.get(zone) + 1);
+      }
+      Map<String, Integer> nonEmpty = Maps.newLinkedHashMap();
+      for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+         if (entry.getValue() > 0)
+            nonEmpty.put(entry.getKey(), entry.getValue());
+      }
+      logger.debug(">> spreading %d nodes in region(%s) as %s", count, region, nonEmpty);
+      return nonEmpty;
+   }
+
+   /**
+    * Records how long a node created in {@code zone} took to reach RUNNING.
+    */
+   public void recordProvisioningLatency(String zone, long millis) {
+      if (zone == null)
+         return;
+      double seconds = millis / 1000.0;
+      AtomicDouble average = latencySeconds.get(zone);
+      if (average == null) {
+         AtomicDouble existing = latencySeconds.putIfAbsent(zone, average = new AtomicDouble(seconds));
+         if (existing == null)
+            return;
+         average = existing;
+      }
+      while (true) {
+         double current = average.get();
+         if (average.compareAndSet(current, current + LATENCY_SMOOTHING * (seconds - current)))
+            return;
+      }
+   }
+
+   private Map<String, Double> scores(String region) {
+      List<String> zones = availableZones.getUnchecked(region);
+      Map<String, Long> freeMemory = capacity.freeMemoryByCluster();
+      boolean capacityKnown = false;
+      for (String zone : zones)
+         capacityKnown |= freeMemory.containsKey(zone);
+      Map<String, Double> scores = Maps.newLinkedHashMap();
+      for (String zone : zones) {
+         double free = capacityKnown ? (freeMemory.containsKey(zone) ? freeMemory.get(zone) : 0) : 1;
+         AtomicDouble latency = latencySeconds.get(zone);
+         scores.put(zone, free / (1 + latencyWeight * (latency != null ? latency.get() : 0)));
+      }
+      return scores;
+   }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
+import static org.jclouds.aws.util.AWSUtils.findRegionInArgsOrNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.inject.Inject;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.jclouds.date.DateService;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.location.Region;
+import org.jclouds.rest.InvocationContext;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+/**
+ * Parses a DescribeInstancesResponse lazily, emitting one {@link RunningInstance} at a time.
+ * 
+ * @see RunningInstanceStreamReader
+ */
+public class ParseRunningInstancesStreaming implements Function<HttpResponse, StreamedInstances>,
+         InvocationContext<ParseRunningInstancesStreaming> {
+
+   private final XMLInputFactory xmlInputFactory;
+   private final DateService dateService;
+   private final Supplier<String> defaultRegion;
+   private String region;
+
+   @Inject
+   ParseRunningInstancesStreaming(XMLInputFactory xmlInputFactory, DateService dateService,
+            @Region Supplier<String> defaultRegion) {
+      this.xmlInputFactory = xmlInputFactory;
+      this.dateService = dateService;
+      this.defaultRegion = defaultRegion;
+   }
+
+   @Override
+   public StreamedInstances apply(HttpResponse from) {
+      checkNotNull(from.getPayload(), "payload of %s", from);
+      final InputStream in;
+      try {
+         in = from.getPayload().openStream();
+      } catch (IOException e) {
+         throw propagate(e);
+      }
+      return stream(in, region != null ? region : defaultRegion.get());
+   }
+
+   /**
+    * Returns a single-use iterable over the instances of the DescribeInstancesResponse read from
+    * {@code in}.
+    */
+   public StreamedInstances stream(final InputStream in, final String region) {
+      return new StreamedInstances(in) {
+         @Override
+         RunningInstanceStreamReader open() {
+            try {
+               return new RunningInstanceStreamReader(xmlInputFactory.createXMLStreamReader(in), in, region,
+                        dateService);
+            } catch (XMLStreamException e) {
+               throw propagate(e);
+            }
+         }
+      };
+   }
+
+   @Override
+   public ParseRunningInstancesStreaming setContext(HttpRequest request) {
+      if (request instanceof GeneratedHttpRequest)
+         region = findRegionInArgsOrNull(GeneratedHttpRequest.class.cast(request));
+      return this;
+   }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HTTP_KEEP_ALIVE;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_HTTP_MAX_IDLE_CONNECTIONS;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.http.config.ConfiguresHttpCommandExecutorService;
+import org.jclouds.http.okhttp.OkHttpClientSupplier;
+import org.jclouds.http.okhttp.config.OkHttpCommandExecutorServiceModule;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Replaces the default {@code HttpURLConnection} driver with OkHttp sharing one pool of persistent
+ * connections to econe-server. The JDK driver only keeps five idle connections per host, so under
+ * concurrent provisioning most requests pay for a new TCP (and TLS) handshake.
+ * <p>
+ * Opt-in, as jclouds-okhttp is an optional dependency:
+ * 
+ * <pre>
+ * ContextBuilder.newBuilder("opennebula-compute-ec2")
+ *       .modules(ImmutableSet.of(new PooledOkHttpCommandExecutorServiceModule()))
+ * </pre>
+ * 
+ * Pool size and idle eviction are set by {@link OpenNebulaComputeEC2Constants#PROPERTY_HTTP_MAX_IDLE_CONNECTIONS}
+ * and {@link OpenNebulaComputeEC2Constants#PROPERTY_HTTP_KEEP_ALIVE}. Each OpenNebula zone is a
+ * separate route, so the limit applies per econe-server for single-zone setups; requests in flight
+ * are bounded by {@link OpenNebulaComputeEC2Constants#PROPERTY_PROVISIONING_THREADS} and the
+ * {@code jclouds.max-connections-per-host} limit of the caller's executor, not by the pool.
+ */
+@ConfiguresHttpCommandExecutorService
+public class PooledOkHttpCommandExecutorServiceModule extends OkHttpCommandExecutorServiceModule {
+
+   @Override
+   protected void configure() {
+      super.configure();
+      bind(OkHttpClientSupplier.class).to(PooledOkHttpClientSupplier.class);
+   }
+
+   @Singleton
+   static final class PooledOkHttpClientSupplier implements OkHttpClientSupplier {
+      private final ConnectionPool pool;
+
+      @Inject
+      PooledOkHttpClientSupplier(@Named(PROPERTY_HTTP_MAX_IDLE_CONNECTIONS) int maxIdleConnections,
+            @Named(PROPERTY_HTTP_KEEP_ALIVE) long keepAliveMillis) {
+         this.pool = new ConnectionPool(maxIdleConnections, keepAliveMillis);
+      }
+
+      @Override
+      public OkHttpClient get() {
+         OkHttpClient client = new OkHttpClient();
+         client.setConnectionPool(pool);
+         return client;
+      }
+   }
+}
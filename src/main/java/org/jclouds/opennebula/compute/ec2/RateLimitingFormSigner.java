@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.aws.filters.FormSigner;
+import org.jclouds.http.HttpException;
+import org.jclouds.http.HttpRequest;
+
+/**
+ * Takes a permit from the {@link OpenNebulaRateLimiter} before signing. Filters run again on every
+ * retry, so retried requests are rate limited too. Signing itself is left to
+ * {@link OpenNebulaFormSigner}.
+ */
+@Singleton
+public class RateLimitingFormSigner implements FormSigner {
+
+   private final OpenNebulaFormSigner delegate;
+   private final OpenNebulaRateLimiter limiter;
+
+   @Inject
+   RateLimitingFormSigner(OpenNebulaFormSigner delegate, OpenNebulaRateLimiter limiter) {
+      this.delegate = checkNotNull(delegate, "delegate");
+      this.limiter = checkNotNull(limiter, "limiter");
+   }
+
+   @Override
+   public HttpRequest filter(HttpRequest request) throws HttpException {
+      limiter.acquire(OpenNebulaRateLimiter.actionOf(request));
+      return delegate.filter(request);
+   }
+
+   @Override
+   public String createStringToSign(HttpRequest input) {
+      return delegate.createStringToSign(input);
+   }
+
+   @Override
+   public String sign(String toSign) {
+      return delegate.sign(toSign);
+   }
+}
@@ -14,131 +14,61 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.jclouds.opennebula.compute.ec2;
 
-import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableSet;
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONES;
+
+import java.net.URI;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import static org.jclouds.Constants.PROPERTY_ISO3166_CODES;
-import static org.jclouds.location.reference.LocationConstants.ISO3166_CODES;
-import static org.jclouds.location.reference.LocationConstants.PROPERTY_REGION;
-import static org.jclouds.location.reference.LocationConstants.PROPERTY_REGIONS;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
 
 /**
- * 
- * Regions used for all aws commands.
- * 
- * @see <a
- *      href="http://docs.amazonwebservices.com/AmazonS3/latest/dev/index.html?LocationSelection.html"
- *      />
+ * OpenNebula zones addressed by this provider.
+ * <p/>
+ * Every zone of an OpenNebula federation runs its own econe-server and is exposed as a jclouds
+ * region whose endpoint is that server. The zones are configured through
+ * {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONES} as comma-separated names, each optionally
+ * followed by {@code =} and the endpoint of its econe-server, for example
+ * {@code east=http://one-east:4567/,west=http://one-west:4567/}. A zone without an endpoint is
+ * served by the provider endpoint.
  */
-public class Region {
-   /**
-    * EU (Ireland)
-    * <p/>
-    * <h3>S3</h3>
-    * <p/>
-    * In Amazon S3, the EU (Ireland) Region provides read-after-write consistency for PUTS of new
-    * objects in your Amazon S3 bucket and eventual consistency for overwrite PUTS and DELETES.
-    */
-   public static final String EU_WEST_1 = "eu-west-1";
+public final class Region {
 
    /**
-    * EU (Frankfurt)
+    * Zone used when none is configured, served by the provider endpoint.
     */
-   public static final String EU_CENTRAL_1 = "eu-central-1";
+   public static final String DEFAULT = "opennebula";
 
    /**
-    * 
-    * US Standard
-    * <p/>
-    * <h3>S3</h3>
-    * <p/>
-    * This is the default Region. All requests sent to s3.amazonaws.com go to this Region unless you
-    * specify a LocationConstraint on a bucket. The US Standard Region automatically places your
-    * data in either Amazon's east or west coast data centers depending on what will provide you
-    * with the lowest latency. To use this region, do not set the LocationConstraint bucket
-    * parameter. The US Standard Region provides eventual consistency for all requests.
-    */
-   public static final String US_STANDARD = "us-standard";
-
-   /**
-    * 
-    */
-   public static final String US_EAST_1 = "us-east-1";
-
-   /**
-    * US-West (Northern California) <h3>S3</h3> Uses Amazon S3 servers in Northern California
-    * <p/>
-    * Optionally, use the endpoint s3-us-west-1.amazonaws.com on all requests to this bucket to
-    * reduce the latency you might experience after the first hour of creating a bucket in this
-    * Region.
-    * <p/>
-    * In Amazon S3, the US-West (Northern California) Region provides read-after-write consistency
-    * for PUTS of new objects in your Amazon S3 bucket and eventual consistency for overwrite PUTS
-    * and DELETES.
-    */
-   public static final String US_WEST_1 = "us-west-1";
-  
-   /**
-    * US-West-2 (Oregon)
+    * Parses the value of {@link OpenNebulaComputeEC2Constants#PROPERTY_ZONES}, preserving its
+    * order.
     */
-   public static final String US_WEST_2 = "us-west-2";
-   
-   /**
-    * SA-EAST-1 (Sao Paolo)
-    * 
-    */
-   public static final String SA_EAST_1 = "sa-east-1";
-   
-   /**
-    * Asia Pacific (Sydney)
-    */
-   public static final String AP_SOUTHEAST_2 = "ap-southeast-2";
-   
-   /**
-    * Region in Singapore, launched April 28, 2010. This region improves latency for Asia-based
-    * users
-    */
-   public static final String AP_SOUTHEAST_1 = "ap-southeast-1";
+   public static Map<String, URI> parseZones(String zones, URI defaultEndpoint) {
+      ImmutableMap.Builder<String, URI> endpoints = ImmutableMap.builder();
+      for (String zone : Splitter.on(',').trimResults().omitEmptyStrings().split(zones)) {
+         int separator = zone.indexOf('=');
+         String name = separator < 0 ? zone : zone.substring(0, separator).trim();
+         checkArgument(!name.isEmpty(), "zone without a name in %s: %s", PROPERTY_ZONES, zones);
+         endpoints.put(name, separator < 0 ? defaultEndpoint : URI.create(zone.substring(separator + 1).trim()));
+      }
+      return endpoints.build();
+   }
 
    /**
-    * Region in Tokyo, launched March 2, 2011. This region improves latency for Asia-based users
+    * Properties selecting the given zones and endpoints, to be passed as context overrides.
     */
-   public static final String AP_NORTHEAST_1 = "ap-northeast-1";
-
-   public static final Set<String> DEFAULT_S3 = ImmutableSet.of(US_STANDARD, US_WEST_1, US_WEST_2, EU_WEST_1, SA_EAST_1,
-         AP_SOUTHEAST_1, AP_SOUTHEAST_2, AP_NORTHEAST_1);
-
-   public static final Set<String> DEFAULT_REGIONS = ImmutableSet.of(US_EAST_1, US_WEST_1, US_WEST_2, SA_EAST_1,
-         EU_WEST_1, EU_CENTRAL_1, AP_SOUTHEAST_1, AP_SOUTHEAST_2, AP_NORTHEAST_1);
-
-   public static Properties regionPropertiesS3() {
-
-      Properties properties = regionProperties();
-      properties.setProperty(PROPERTY_REGIONS, Joiner.on(',').join(DEFAULT_S3));
-      // note that due to US_STANDARD the codes include US instead of US-VA
-      properties.setProperty(PROPERTY_ISO3166_CODES, "US,US-CA,US-OR,BR-SP,IE,SG,AU-NSW,JP-13");
-      properties.setProperty(PROPERTY_REGION + "." + US_STANDARD + "." + ISO3166_CODES, "US");
-      properties.setProperty(PROPERTY_REGION + "." + EU_WEST_1 + "." + ISO3166_CODES, "IE");
+   public static Properties zoneProperties(Map<String, URI> endpointsByZone) {
+      Properties properties = new Properties();
+      properties.setProperty(PROPERTY_ZONES, Joiner.on(',').withKeyValueSeparator("=").join(endpointsByZone));
       return properties;
    }
 
-   public static Properties regionProperties() {
-      Properties properties = new Properties();
-      properties.setProperty(PROPERTY_REGIONS, Joiner.on(',').join(DEFAULT_REGIONS));
-      properties.setProperty(PROPERTY_ISO3166_CODES, "US-VA,US-CA,US-OR,BR-SP,IE,DE-HE,SG,AU-NSW,JP-13");
-      properties.setProperty(PROPERTY_REGION + "." + US_EAST_1 + "." + ISO3166_CODES, "US-VA");
-      properties.setProperty(PROPERTY_REGION + "." + US_WEST_1 + "." + ISO3166_CODES, "US-CA");
-      properties.setProperty(PROPERTY_REGION + "." + US_WEST_2 + "." + ISO3166_CODES, "US-OR");
-      properties.setProperty(PROPERTY_REGION + "." + SA_EAST_1 + "." + ISO3166_CODES, "BR-SP");
-      properties.setProperty(PROPERTY_REGION + "." + EU_WEST_1 + "." + ISO3166_CODES, "IE");
-      properties.setProperty(PROPERTY_REGION + "." + EU_CENTRAL_1 + "." + ISO3166_CODES, "DE-HE");
-      properties.setProperty(PROPERTY_REGION + "." + AP_SOUTHEAST_1 + "." + ISO3166_CODES, "SG");
-      properties.setProperty(PROPERTY_REGION + "." + AP_SOUTHEAST_2 + "." + ISO3166_CODES, "AU-NSW");
-      properties.setProperty(PROPERTY_REGION + "." + AP_NORTHEAST_1 + "." + ISO3166_CODES, "JP-13");
-      return properties;
+   private Region() {
+      throw new AssertionError("intentionally unimplemented");
    }
 }
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Throwables.propagate;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jclouds.date.DateService;
+import org.jclouds.ec2.domain.Attachment;
+import org.jclouds.ec2.domain.BlockDevice;
+import org.jclouds.ec2.domain.Hypervisor;
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.RootDeviceType;
+import org.jclouds.ec2.domain.RunningInstance;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Pull-parses {@code reservationSet/item/instancesSet/item} entries of a
+ * DescribeInstancesResponse, building each {@link DescribedInstance} only when the iterator is
+ * advanced. Only the state of the current reservation and instance is kept, so memory use stays
+ * flat regardless of the number of instances in the response.
+ * <p/>
+ * Instances carry the same fields as those of {@link org.jclouds.ec2.xml.DescribeInstancesResponseHandler},
+ * block devices and hypervisor included.
+ * <p/>
+ * The underlying stream is closed when the document has been fully read or parsing fails, or
+ * when {@link #close()} is called, possibly from another thread to abort the iteration.
+ */
+class RunningInstanceStreamReader extends AbstractIterator<DescribedInstance> implements Closeable {
+
+   private static final Joiner PATH_JOINER = Joiner.on('/');
+   private static final String BLOCK_DEVICE = "blockDeviceMapping/item";
+
+   private final XMLStreamReader reader;
+   private final InputStream in;
+   private final String region;
+   private final DateService dateService;
+
+   private final List<String> path = Lists.newArrayList();
+   private final Set<String> reservationGroups = Sets.newLinkedHashSet();
+   private final StringBuilder text = new StringBuilder();
+
+   private String reservationId;
+   private String ownerId;
+
+   private Map<String, String> instance;
+   private Set<String> instanceGroups;
+   private Map<String, String> tags;
+   private Map<String, BlockDevice> blockDevices;
+   private final Map<String, String> blockDevice = Maps.newHashMap();
+   private String tagKey;
+   private int instanceDepth = -1;
+   private String nextToken;
+
+   RunningInstanceStreamReader(XMLStreamReader reader, InputStream in, String region, DateService dateService) {
+      this.reader = reader;
+      this.in = in;
+      this.region = region;
+      this.dateService = dateService;
+   }
+
+   /**
+    * The {@code nextToken} of the response, if any. Only known once the iterator is exhausted.
+    */
+   String getNextToken() {
+      return nextToken;
+   }
+
+   @Override
+   protected DescribedInstance computeNext() {
+      try {
+         while (reader.hasNext()) {
+            switch (reader.next()) {
+               case XMLStreamConstants.START_ELEMENT:
+                  startElement(reader.getLocalName());
+                  break;
+               case XMLStreamConstants.CHARACTERS:
+               case XMLStreamConstants.CDATA:
+                  text.append(reader.getText());
+                  break;
+               case XMLStreamConstants.END_ELEMENT:
+                  DescribedInstance completed = endElement(reader.getLocalName());
+                  if (completed != null)
+                     return completed;
+                  break;
+               default:
+                  break;
+            }
+         }
+      } catch (XMLStreamException e) {
+         close();
+         throw propagate(e);
+      } catch (RuntimeException e) {
+         close();
+         throw e;
+      }
+      close();
+      return endOfData();
+   }
+
+   private void startElement(String name) {
+      text.setLength(0);
+      path.add(name);
+      if (instance == null && isInstanceItem()) {
+         instance = Maps.newHashMap();
+         instanceGroups = Sets.newLinkedHashSet();
+         tags = Maps.newLinkedHashMap();
+         blockDevices = Maps.newLinkedHashMap();
+         instanceDepth = path.size();
+      } else if (instance == null && pathEndsWith("reservationSet", "item")) {
+         reservationGroups.clear();
+         reservationId = null;
+         ownerId = null;
+      }
+   }
+
+   private DescribedInstance endElement(String name) {
+      String value = text.toString().trim();
+      text.setLength(0);
+      DescribedInstance completed = null;
+      if (instance != null && path.size() == instanceDepth) {
+         completed = buildInstance();
+         instance = null;
+         instanceDepth = -1;
+      } else if (instance != null) {
+         String relative = relativePath();
+         if ("tagSet/item/key".equals(relative)) {
+            tagKey = value;
+         } else if ("tagSet/item/value".equals(relative)) {
+            tags.put(tagKey, value);
+         } else if ("groupSet/item/groupId".equals(relative) || "groupSet/item/groupName".equals(relative)) {
+            instanceGroups.add(value);
+         } else if (BLOCK_DEVICE.equals(relative)) {
+            addBlockDevice();
+         } else if (relative.startsWith(BLOCK_DEVICE + "/")) {
+            if (!value.isEmpty())
+               blockDevice.put(relative.substring(BLOCK_DEVICE.length() + 1), value);
+         } else if (!value.isEmpty()) {
+            instance.put(relative, value);
+         }
+      } else if (pathEndsWith("groupSet", "item", "groupId")) {
+         reservationGroups.add(value);
+      } else if (pathEndsWith("reservationSet", "item", "reservationId")) {
+         reservationId = Strings.emptyToNull(value);
+      } else if (pathEndsWith("reservationSet", "item", "ownerId")) {
+         ownerId = Strings.emptyToNull(value);
+      } else if ("nextToken".equals(name) && path.size() == 2) {
+         nextToken = Strings.emptyToNull(value);
+      }
+      path.remove(path.size() - 1);
+      return completed;
+   }
+
+   private void addBlockDevice() {
+      String deviceName = blockDevice.get("deviceName");
+      if (deviceName != null) {
+         String status = blockDevice.get("ebs/status");
+         String attachTime = blockDevice.get("ebs/attachTime");
+         blockDevices.put(deviceName, new BlockDevice(blockDevice.get("ebs/volumeId"),
+                  status != null ? Attachment.Status.fromValue(status) : null,
+                  attachTime != null ? parseDate(attachTime) : null,
+                  Boolean.parseBoolean(blockDevice.get("ebs/deleteOnTermination"))));
+      }
+      blockDevice.clear();
+   }
+
+   private DescribedInstance buildInstance() {
+      RunningInstance.Builder<?> builder = RunningInstance.builder()
+               .region(region)
+               .instanceId(instance.get("instanceId"))
+               .imageId(instance.get("imageId"))
+               .rawState(instance.get("instanceState/name"))
+               .instanceState(InstanceState.fromValue(instance.get("instanceState/name")))
+               .instanceType(instance.get("instanceType"))
+               .availabilityZone(instance.get("placement/availabilityZone"))
+               .keyName(instance.get("keyName"))
+               .dnsName(instance.get("dnsName"))
+               .privateDnsName(instance.get("privateDnsName"))
+               .ipAddress(instance.get("ipAddress"))
+               .privateIpAddress(instance.get("privateIpAddress"))
+               .kernelId(instance.get("kernelId"))
+               .ramdiskId(instance.get("ramdiskId"))
+               .amiLaunchIndex(instance.get("amiLaunchIndex"))
+               .reason(instance.get("reason"))
+               .platform(instance.get("platform"))
+               .virtualizationType(instance.get("virtualizationType"))
+               .rootDeviceName(instance.get("rootDeviceName"))
+               .rootDeviceType(RootDeviceType.fromValue(Strings.nullToEmpty(instance.get("rootDeviceType"))))
+               .groupNames(instanceGroups.isEmpty() ? ImmutableSet.copyOf(reservationGroups) : ImmutableSet
+                        .copyOf(instanceGroups))
+               .tags(ImmutableMap.copyOf(tags));
+      for (Map.Entry<String, BlockDevice> device : blockDevices.entrySet())
+         builder.device(device.getKey(), device.getValue());
+      String launchTime = instance.get("launchTime");
+      if (launchTime != null)
+         builder.launchTime(parseDate(launchTime));
+      String hypervisor = instance.get("hypervisor");
+      if (hypervisor != null)
+         builder.hypervisor(Hypervisor.fromValue(hypervisor));
+      return new DescribedInstance(builder.build(), reservationId, ownerId, instance.get("spotInstanceRequestId"),
+               instance.get("iamInstanceProfile/arn"), instance.get("iamInstanceProfile/id"),
+               instance.get("monitoring/state"));
+   }
+
+   private Date parseDate(String date) {
+      try {
+         return dateService.iso8601DateParse(date);
+      } catch (IllegalArgumentException e) {
+         return dateService.iso8601SecondsDateParse(date);
+      }
+   }
+
+   private boolean isInstanceItem() {
+      return pathEndsWith("instancesSet", "item");
+   }
+
+   private boolean pathEndsWith(String... suffix) {
+      int offset = path.size() - suffix.length;
+      if (offset < 0)
+         return false;
+      for (int i = 0; i < suffix.length; i++) {
+         if (!suffix[i].equals(path.get(offset + i)))
+            return false;
+      }
+      return true;
+   }
+
+   private String relativePath() {
+      if (path.size() == instanceDepth + 1)
+         return path.get(instanceDepth);
+      return PATH_JOINER.join(path.subList(instanceDepth, path.size()));
+   }
+
+   @Override
+   public void close() {
+      // the stream first, so that a read blocked in another thread fails right away
+      closeQuietly(in);
+      try {
+         reader.close();
+      } catch (XMLStreamException ignored) {
+      }
+   }
+}
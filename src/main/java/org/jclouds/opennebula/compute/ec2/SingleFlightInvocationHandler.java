@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.ws.rs.GET;
+
+import org.jclouds.rest.annotations.Delegate;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.reflect.AbstractInvocationHandler;
+import com.google.common.reflect.Reflection;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Lets concurrent identical read-only calls share one request. A call is read-only if its method
+ * is a {@code describe*} EC2 action or an HTTP {@link GET}; two calls are identical if they
+ * invoke the same method, with equal arguments, on apis reached through the same
+ * {@link Delegate} methods with equal arguments. Callers arriving while such a call is in flight
+ * wait for it and receive its result or exception; once it completes, the next call makes a new
+ * request. Nothing is cached beyond that. All other calls go straight to the api.
+ * <p>
+ * Results are shared between callers, so this relies on the api returning immutable values, as
+ * jclouds parsers do.
+ */
+public final class SingleFlightInvocationHandler extends AbstractInvocationHandler {
+
+   /**
+    * Returns a view of {@code api} that coalesces identical concurrent read-only calls, including
+    * those made through the apis it delegates to.
+    */
+   public static <A> A coalescing(Class<A> type, A api) {
+      return Reflection.newProxy(type, new SingleFlightInvocationHandler(api, new Object[0],
+               Maps.<Key, SettableFuture<Object>> newConcurrentMap()));
+   }
+
+   private final Object delegate;
+   private final Object[] scope;
+   private final ConcurrentMap<Key, SettableFuture<Object>> inFlight;
+
+   private SingleFlightInvocationHandler(Object delegate, Object[] scope,
+            ConcurrentMap<Key, SettableFuture<Object>> inFlight) {
+      this.delegate = checkNotNull(delegate, "delegate");
+      this.scope = scope;
+      this.inFlight = inFlight;
+   }
+
+   @Override
+   protected Object handleInvocation(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.isAnnotationPresent(Delegate.class))
+         return wrap(invoke(method, args), method, args);
+      if (!isReadOnly(method))
+         return invoke(method, args);
+
+      Key key = new Key(ObjectArrays.concat(scope, new Object[] { method, args }, Object.class));
+      SettableFuture<Object> call = SettableFuture.create();
+      SettableFuture<Object> inProgress = inFlight.putIfAbsent(key, call);
+      if (inProgress != null) {
+         try {
+            return Uninterruptibles.getUninterruptibly(inProgress);
+         } catch (ExecutionException e) {
+            throw e.getCause();
+         }
+      }
+      try {
+         Object result = invoke(method, args);
+         call.set(result);
+         return result;
+      } catch (Throwable t) {
+         call.setException(t);
+         throw t;
+      } finally {
+         inFlight.remove(key, call);
+      }
+   }
+
+   private Object invoke(Method method, Object[] args) throws Throwable {
+      try {
+         return method.invoke(delegate, args);
+      } catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+
+   /**
+    * Wraps the api returned by a {@link Delegate} method, directly or in an {@link Optional}.
+    */
+   private Object wrap(Object api, Method method, Object[] args) {
+      if (api instanceof Optional) {
+         Optional<?> optional = (Optional<?>) api;
+         return optional.isPresent() ? Optional.of(wrap(optional.get(), method, args)) : optional;
+      }
+      if (api == null || !Proxy.isProxyClass(api.getClass()))
+         return api;
+      Object[] delegateScope = ObjectArrays.concat(scope, new Object[] { method, args }, Object.class);
+      return Proxy.newProxyInstance(api.getClass().getClassLoader(), api.getClass().getInterfaces(),
+               new SingleFlightInvocationHandler(api, delegateScope, inFlight));
+   }
+
+   private static boolean isReadOnly(Method method) {
+      return method.getName().startsWith("describe") || method.isAnnotationPresent(GET.class);
+   }
+
+   private static final class Key {
+      private final Object[] parts;
+      private final int hashCode;
+
+      Key(Object[] parts) {
+         this.parts = parts;
+         this.hashCode = Arrays.deepHashCode(parts);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         return obj instanceof Key && Arrays.deepEquals(parts, ((Key) obj).parts);
+      }
+
+      @Override
+      public int hashCode() {
+         return hashCode;
+      }
+   }
+}
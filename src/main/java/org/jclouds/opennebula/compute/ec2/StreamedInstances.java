@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.jclouds.ec2.domain.RunningInstance;
+
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.UnmodifiableIterator;
+
+/**
+ * Instances of a DescribeInstancesResponse, parsed one at a time while the caller iterates.
+ * <p/>
+ * Backed by the open response stream: it can be iterated only once, and the stream is released
+ * once the last instance has been read or parsing fails. A caller that may stop iterating before
+ * then must {@link #close()} it, or the connection is never returned; the iterator is
+ * {@link Closeable} too, for code that is only handed the iterator.
+ * <p/>
+ * {@link #described()} iterates the same response with the reservation, spot, IAM and monitoring
+ * attributes {@link RunningInstance} has no field for.
+ * 
+ * @see ParseRunningInstancesStreaming
+ */
+public abstract class StreamedInstances extends FluentIterable<RunningInstance> implements Closeable {
+
+   private final Closeable stream;
+   private volatile RunningInstanceStreamReader reader;
+   private boolean closed;
+
+   StreamedInstances(Closeable stream) {
+      this.stream = checkNotNull(stream, "stream");
+   }
+
+   @Override
+   public Iterator<RunningInstance> iterator() {
+      return new Instances(read());
+   }
+
+   /**
+    * The instances of the response with the attributes {@link RunningInstance} has no field for.
+    * Shares the single iteration of this response: iterate either this or the instances, once.
+    */
+   public FluentIterable<DescribedInstance> described() {
+      return new FluentIterable<DescribedInstance>() {
+         @Override
+         public Iterator<DescribedInstance> iterator() {
+            return read();
+         }
+      };
+   }
+
+   private synchronized RunningInstanceStreamReader read() {
+      checkState(!closed, "DescribeInstances response was closed");
+      checkState(reader == null, "DescribeInstances response can only be iterated once");
+      reader = open();
+      return reader;
+   }
+
+   /**
+    * Releases the response stream, ending any iteration in progress. Can be called from another
+    * thread than the one iterating, and more than once.
+    */
+   @Override
+   public void close() {
+      RunningInstanceStreamReader current;
+      synchronized (this) {
+         closed = true;
+         current = reader;
+      }
+      if (current != null)
+         current.close();
+      else
+         closeQuietly(stream);
+   }
+
+   /**
+    * The {@code nextToken} of the response, or null if there is no further page. Only known once
+    * every instance has been iterated.
+    */
+   public String getNextToken() {
+      RunningInstanceStreamReader current = reader;
+      return current != null ? current.getNextToken() : null;
+   }
+
+   abstract RunningInstanceStreamReader open();
+
+   private static final class Instances extends UnmodifiableIterator<RunningInstance> implements Closeable {
+
+      private final RunningInstanceStreamReader reader;
+
+      private Instances(RunningInstanceStreamReader reader) {
+         this.reader = reader;
+      }
+
+      @Override
+      public boolean hasNext() {
+         return reader.hasNext();
+      }
+
+      @Override
+      public RunningInstance next() {
+         return reader.next().getInstance();
+      }
+
+      @Override
+      public void close() {
+         reader.close();
+      }
+   }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_ZONES;
+
+import java.net.URI;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.location.Provider;
+import org.jclouds.location.suppliers.RegionIdToURISupplier;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Maps each configured OpenNebula zone to the endpoint of its econe-server.
+ * 
+ * @see Region
+ */
+@Singleton
+public class ZoneEndpointsFromConfiguration implements RegionIdToURISupplier {
+
+   private final String zones;
+   private final Supplier<URI> providerEndpoint;
+
+   @Inject
+   ZoneEndpointsFromConfiguration(@Named(PROPERTY_ZONES) String zones, @Provider Supplier<URI> providerEndpoint) {
+      this.zones = checkNotNull(zones, "zones");
+      this.providerEndpoint = checkNotNull(providerEndpoint, "providerEndpoint");
+   }
+
+   @Override
+   public Map<String, Supplier<URI>> get() {
+      ImmutableMap.Builder<String, Supplier<URI>> endpoints = ImmutableMap.builder();
+      for (Map.Entry<String, URI> zone : Region.parseZones(zones, providerEndpoint.get()).entrySet())
+         endpoints.put(zone.getKey(), Suppliers.ofInstance(zone.getValue()));
+      return endpoints.build();
+   }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.SshServer;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.PasswordAuthenticator;
+import org.apache.sshd.server.SessionAware;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * In-process SSH server that the nodes of a {@link FakeEconeServer} can be pointed at, so that
+ * scripts can be run end to end.
+ * <p/>
+ * Any user logs in with {@link #PASSWORD}. Commands are not executed: {@code work} answers with
+ * the login user after the delay set for it with {@link #delay(String, long, TimeUnit)},
+ * {@code drop} closes the connection without answering, and anything else is echoed back.
+ * Commands starting with {@code sudo -S} first read a line from their input, and fail unless it is
+ * {@link #PASSWORD}, as sudo does. The
+ * connections of each login user are counted, both those opened since the last {@link #reset()}
+ * and those still open.
+ */
+final class FakeSshServer {
+
+   static final String PASSWORD = "harness";
+
+   private final SshServer sshd;
+   private final ExecutorService workers;
+   private final Multiset<String> opened = ConcurrentHashMultiset.create();
+   private final ConcurrentMap<ServerSession, String> sessions = Maps.newConcurrentMap();
+   private final ConcurrentMap<String, Long> delays = Maps.newConcurrentMap();
+
+   FakeSshServer() {
+      this.workers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+               .setNameFormat("fake-sshd-%d").build());
+      this.sshd = SshServer.setUpDefaultServer();
+      sshd.setHost("127.0.0.1");
+      sshd.setPort(0);
+      sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+      sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+         @Override
+         public boolean authenticate(String user, String password, ServerSession session) {
+            if (!PASSWORD.equals(password))
+               return false;
+            if (sessions.putIfAbsent(session, user) == null)
+               opened.add(user);
+            return true;
+         }
+      });
+      sshd.setCommandFactory(new CommandFactory() {
+         @Override
+         public Command createCommand(String command) {
+            return new FakeCommand(command.trim());
+         }
+      });
+   }
+
+   FakeSshServer start() throws IOException {
+      sshd.start();
+      return this;
+   }
+
+   void stop() throws InterruptedException {
+      sshd.stop(true);
+      workers.shutdownNow();
+   }
+
+   int getPort() {
+      return sshd.getPort();
+   }
+
+   /**
+    * Time {@code work} takes for {@code user}.
+    */
+   FakeSshServer delay(String user, long delay, TimeUnit unit) {
+      checkArgument(delay >= 0, "delay must be non-negative");
+      delays.put(user, unit.toMillis(delay));
+      return this;
+   }
+
+   /**
+    * Forgets the connections opened so far; those still open keep being counted by
+    * {@link #open(String)}.
+    */
+   void reset() {
+      opened.clear();
+   }
+
+   /**
+    * Number of connections {@code user} logged in on since the last {@link #reset()}.
+    */
+   int opened(String user) {
+      return opened.count(user);
+   }
+
+   /**
+    * Number of connections of {@code user} that are neither closed nor closing.
+    */
+   int open(String user) {
+      int open = 0;
+      for (Map.Entry<ServerSession, String> session : sessions.entrySet()) {
+         if (session.getKey().isClosing() || session.getKey().isClosed())
+            sessions.remove(session.getKey());
+         else if (session.getValue().equals(user))
+            open++;
+      }
+      return open;
+   }
+
+   private final class FakeCommand implements Command, SessionAware {
+      private final String command;
+      private ServerSession session;
+      private InputStream in;
+      private OutputStream out;
+      private OutputStream err;
+      private ExitCallback exit;
+
+      private FakeCommand(String command) {
+         this.command = command;
+      }
+
+      @Override
+      public void setSession(ServerSession session) {
+         this.session = session;
+      }
+
+      @Override
+      public void setInputStream(InputStream in) {
+         this.in = in;
+      }
+
+      @Override
+      public void setOutputStream(OutputStream out) {
+         this.out = out;
+      }
+
+      @Override
+      public void setErrorStream(OutputStream err) {
+         this.err = err;
+      }
+
+      @Override
+      public void setExitCallback(ExitCallback exit) {
+         this.exit = exit;
+      }
+
+      @Override
+      public void start(Environment env) {
+         workers.execute(new Runnable() {
+            @Override
+            public void run() {
+               if ("drop".equals(command)) {
+                  session.close(true);
+                  return;
+               }
+               try {
+                  if (command.startsWith("sudo -S ") && !PASSWORD.equals(readLine())) {
+                     err.write("Sorry, try again.\n".getBytes(UTF_8));
+                     err.flush();
+                     exit.onExit(1, "incorrect password");
+                     return;
+                  }
+                  String output = command;
+                  if ("work".equals(command)) {
+                     output = sessions.get(session);
+                     Long delay = delays.get(output);
+                     if (delay != null)
+                        Thread.sleep(delay);
+                  }
+                  out.write((output + "\n").getBytes(UTF_8));
+                  out.flush();
+                  exit.onExit(0);
+               } catch (IOException e) {
+                  exit.onExit(1, e.getMessage());
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  exit.onExit(1, "interrupted");
+               }
+            }
+         });
+      }
+
+      @Override
+      public void destroy() {
+      }
+
+      private String readLine() throws IOException {
+         StringBuilder line = new StringBuilder();
+         for (int c = in.read(); c >= 0 && c != '\n'; c = in.read())
+            line.append((char) c);
+         return line.toString();
+      }
+   }
+}
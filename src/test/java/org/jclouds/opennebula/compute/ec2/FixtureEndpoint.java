@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal in-process EC2 endpoint answering each Action with a fixed response body, so that tests
+ * and benchmarks can build a real context without talking to econe-server. Requests without an
+ * Action, such as those of the {@link HostApi}, are answered by path.
+ */
+final class FixtureEndpoint implements HttpHandler {
+
+   private final Map<String, byte[]> responses;
+   private final HttpServer server;
+
+   FixtureEndpoint(Map<String, byte[]> responses) throws IOException {
+      this.responses = ImmutableMap.copyOf(responses);
+      this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      this.server.createContext("/", this);
+   }
+
+   FixtureEndpoint start() {
+      server.start();
+      return this;
+   }
+
+   void stop() {
+      server.stop(0);
+   }
+
+   URI getURI() {
+      return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      String action = action(exchange);
+      if (action == null)
+         action = exchange.getRequestURI().getPath();
+      byte[] body = responses.get(action);
+      int status = 200;
+      if (body == null) {
+         status = 400;
+         body = ("<?xml version=\"1.0\"?><Response><Errors><Error><Code>InvalidAction</Code><Message>" + action
+                  + "</Message></Error></Errors></Response>").getBytes(UTF_8);
+      }
+      exchange.getResponseHeaders().set("Content-Type", "text/xml");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+   }
+
+   static String action(HttpExchange exchange) throws IOException {
+      return form(exchange).get("Action");
+   }
+
+   /**
+    * Parameters of a query or form-encoded request, in the order they were sent.
+    */
+   static Map<String, String> form(HttpExchange exchange) throws IOException {
+      InputStream in = exchange.getRequestBody();
+      String form;
+      try {
+         form = new String(ByteStreams.toByteArray(in), UTF_8);
+      } finally {
+         in.close();
+      }
+      if (exchange.getRequestURI().getRawQuery() != null)
+         form = exchange.getRequestURI().getRawQuery() + "&" + form;
+      Map<String, String> parameters = Maps.newLinkedHashMap();
+      for (String pair : form.split("&")) {
+         if (pair.isEmpty())
+            continue;
+         int equals = pair.indexOf('=');
+         String name = equals < 0 ? pair : pair.substring(0, equals);
+         String value = equals < 0 ? "" : pair.substring(equals + 1);
+         parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+      return parameters;
+   }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_METRICS_JMX;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.aws.domain.SessionCredentials;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.domain.Credentials;
+import org.jclouds.logging.config.NullLoggingModule;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+/**
+ * Loads the EC2 response fixtures in {@code src/test/resources}, replicating the items of their
+ * top-level set to a requested size.
+ */
+final class Fixtures {
+
+   static final String INSTANCES = "nova_ec2_describe_instances.xml";
+   static final String IMAGES = "nova_ec2_images.xml";
+   static final String VOLUMES = "nova_ec2_describe_volumes.xml";
+   static final String AVAILABILITY_ZONES = "nova_ec2_availabilityZones.xml";
+   static final String IMPORT_KEYPAIR = "nova_ec2_import_keypair_response.xml";
+
+   private Fixtures() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+
+   /**
+    * Injector of a context pointed at {@code endpoint}, with logging disabled so that it does not
+    * skew measurements.
+    */
+   static Injector injector(URI endpoint) {
+      return injector(endpoint, new Properties());
+   }
+
+   /**
+    * Overrides for a context talking to an in-process server: the rate limit is lifted, so that it
+    * does not dominate, and no MBean is registered.
+    */
+   static Properties unthrottled() {
+      Properties overrides = new Properties();
+      overrides.setProperty(PROPERTY_RATE_LIMIT, "100000");
+      overrides.setProperty(PROPERTY_METRICS_JMX, "false");
+      return overrides;
+   }
+
+   static Injector injector(URI endpoint, Properties overrides, Module... modules) {
+      return builder(endpoint, overrides, modules).buildInjector();
+   }
+
+   /**
+    * Compute view of a context pointed at {@code endpoint}, built the way applications build it, so
+    * that the {@link OpenNebulaComputeServiceContextModule} bindings are exercised.
+    */
+   static ComputeServiceContext computeContext(URI endpoint, Properties overrides, Module... modules) {
+      return builder(endpoint, overrides, modules).buildView(ComputeServiceContext.class);
+   }
+
+   private static ContextBuilder builder(URI endpoint, Properties overrides, Module... modules) {
+      return ContextBuilder.newBuilder(new OpenNebulaComputeEC2ApiMetadata())
+               .endpoint(endpoint.toString())
+               .credentials("identity", "credential")
+               .overrides(overrides)
+               .modules(ImmutableSet.<Module> builder().add(new NullLoggingModule()).add(modules).build());
+   }
+
+   /**
+    * Same as {@link #injector(URI)}, but signing with temporary credentials carrying
+    * {@code sessionToken}.
+    */
+   static Injector sessionInjector(URI endpoint, String sessionToken) {
+      final SessionCredentials credentials = SessionCredentials.builder().accessKeyId("identity")
+               .secretAccessKey("credential").sessionToken(sessionToken).build();
+      return ContextBuilder.newBuilder(new OpenNebulaComputeEC2ApiMetadata())
+               .endpoint(endpoint.toString())
+               .credentialsSupplier(new Supplier<Credentials>() {
+                  @Override
+                  public Credentials get() {
+                     return credentials;
+                  }
+               })
+               .modules(ImmutableSet.<Module> of(new NullLoggingModule()))
+               .buildInjector();
+   }
+
+   static String load(String resource) throws IOException {
+      return Resources.toString(Resources.getResource(resource), UTF_8);
+   }
+
+   static byte[] bytes(String resource) throws IOException {
+      return load(resource).getBytes(UTF_8);
+   }
+
+   static byte[] scaledInstances(int count) throws IOException {
+      return scale(INSTANCES, "reservationSet", count);
+   }
+
+   /**
+    * Same as {@link #scaledInstances(int)}, but every reservation and instance gets its own id, so
+    * that parsers collecting them into sets keep all of them.
+    */
+   static byte[] distinctInstances(int count) throws IOException {
+      String xml = scaleDocument(load(INSTANCES), "reservationSet", count);
+      xml = renumber(xml, "<reservationId>(r)-[0-9a-z]+</reservationId>", "<reservationId>%s-%08x</reservationId>");
+      xml = renumber(xml, "<instanceId>(i)-[0-9a-f]+</instanceId>", "<instanceId>%s-%08x</instanceId>");
+      return xml.getBytes(UTF_8);
+   }
+
+   static byte[] scaledImages(int count) throws IOException {
+      return scale(IMAGES, "imagesSet", count);
+   }
+
+   /**
+    * Same as {@link #scaledImages(int)}, but every image gets its own id, so that the result can
+    * back an image catalog.
+    */
+   static byte[] distinctImages(int count) throws IOException {
+      return renumber(scaleDocument(load(IMAGES), "imagesSet", count), "<imageId>(a[mkr]i)-[0-9a-f]+</imageId>",
+               "<imageId>%s-%08x</imageId>").getBytes(UTF_8);
+   }
+
+   /**
+    * Replaces each match of {@code regex} with {@code format}, given the first group of the match
+    * and its index.
+    */
+   private static String renumber(String xml, String regex, String format) {
+      Matcher ids = Pattern.compile(regex).matcher(xml);
+      StringBuffer distinct = new StringBuffer();
+      for (int i = 0; ids.find(); i++)
+         ids.appendReplacement(distinct, String.format(format, ids.group(1), i));
+      ids.appendTail(distinct);
+      return distinct.toString();
+   }
+
+   static byte[] scaledVolumes(int count) throws IOException {
+      return scale(VOLUMES, "volumeSet", count);
+   }
+
+   static byte[] scaledAvailabilityZones(int count) throws IOException {
+      return scale(AVAILABILITY_ZONES, "availabilityZoneInfo", count);
+   }
+
+   /**
+    * Returns the fixture with exactly {@code count} entries in {@code setElement}, cycling through
+    * the entries of the original document.
+    */
+   static byte[] scale(String resource, String setElement, int count) throws IOException {
+      return scaleDocument(load(resource), setElement, count).getBytes(UTF_8);
+   }
+
+   static String scaleDocument(String xml, String setElement, int count) {
+      String open = "<" + setElement + ">";
+      String close = "</" + setElement + ">";
+      int start = xml.indexOf(open);
+      int end = xml.lastIndexOf(close);
+      checkArgument(start >= 0 && end > start, "no %s element", setElement);
+      start += open.length();
+      List<String> items = topLevelItems(xml.substring(start, end));
+      checkArgument(!items.isEmpty(), "no items in %s", setElement);
+      StringBuilder scaled = new StringBuilder(xml.length() + count * items.get(0).length());
+      scaled.append(xml, 0, start);
+      for (int i = 0; i < count; i++)
+         scaled.append(items.get(i % items.size()));
+      scaled.append(xml, end, xml.length());
+      return scaled.toString();
+   }
+
+   /**
+    * Returns the top-level {@code <item>} elements of {@code setElement}, markup included.
+    */
+   static List<String> items(String xml, String setElement) {
+      String open = "<" + setElement + ">";
+      int start = xml.indexOf(open);
+      int end = xml.lastIndexOf("</" + setElement + ">");
+      checkArgument(start >= 0 && end > start, "no %s element", setElement);
+      return topLevelItems(xml.substring(start + open.length(), end));
+   }
+
+   private static List<String> topLevelItems(String content) {
+      List<String> items = Lists.newArrayList();
+      int depth = 0;
+      int itemStart = -1;
+      int position = 0;
+      while (true) {
+         int open = content.indexOf("<item>", position);
+         int close = content.indexOf("</item>", position);
+         if (close < 0)
+            break;
+         if (open >= 0 && open < close) {
+            if (depth++ == 0)
+               itemStart = open;
+            position = open + "<item>".length();
+         } else {
+            position = close + "</item>".length();
+            if (--depth == 0)
+               items.add(content.substring(itemStart, position));
+         }
+      }
+      return items;
+   }
+}
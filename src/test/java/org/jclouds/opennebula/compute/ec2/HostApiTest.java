@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.jclouds.lifecycle.Closer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Injector;
+
+/**
+ * Parses {@code onehost} responses as OpenNebula renders them, with every value quoted and with
+ * elements {@link Host} does not map.
+ */
+@Test(groups = "unit", testName = "HostApiTest")
+public class HostApiTest {
+
+   static final Host KVM_01 = Host.create(0, "kvm-01", 2, "production",
+            Host.Share.create(2097152, 16777216, 200, 800, 2));
+   static final Host KVM_02 = Host.create(1, "kvm-02", 4, "", Host.Share.create(0, 8388608, 0, 400, 0));
+
+   private FixtureEndpoint endpoint;
+   private Injector injector;
+   private HostApi hostApi;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      endpoint = new FixtureEndpoint(ImmutableMap.of(
+               "/onehost/list", Fixtures.bytes("onehost_list.json"),
+               "/onehost/info/0", Fixtures.bytes("onehost_info.json"))).start();
+      injector = Fixtures.injector(endpoint.getURI(), Fixtures.unthrottled());
+      hostApi = injector.getInstance(OpenNebulaComputeEC2Api.class).getHostApi();
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+      endpoint.stop();
+   }
+
+   public void testList() {
+      assertEquals(hostApi.list(), ImmutableList.of(KVM_01, KVM_02));
+   }
+
+   public void testInfo() {
+      Host host = hostApi.info(0);
+      assertEquals(host, KVM_01);
+      assertEquals(host.getState(), Host.State.MONITORED);
+      assertEquals(host.getShare().getFreeMem(), 16777216 - 2097152);
+      assertEquals(host.getShare().getFreeCpu(), 600);
+   }
+
+   public void testStates() {
+      assertTrue(Host.State.fromValue(2).isSchedulable());
+      assertEquals(Host.State.fromValue(4), Host.State.DISABLED);
+      assertFalse(Host.State.DISABLED.isSchedulable());
+      assertEquals(Host.State.fromValue(-1), Host.State.UNRECOGNIZED);
+      assertEquals(Host.State.fromValue(42), Host.State.UNRECOGNIZED);
+   }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MAX_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MIN_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_STATE_CHANGE_CHUNK_SIZE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadata.Status;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaBatchedNodeActionsTest")
+public class OpenNebulaBatchedNodeActionsTest {
+
+   static final int CHUNK_SIZE = 4;
+
+   private FakeEconeServer server;
+   private ComputeServiceContext context;
+   private OpenNebulaBatchedNodeActions nodeActions;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      server = new FakeEconeServer().start();
+      Properties overrides = Fixtures.unthrottled();
+      overrides.setProperty(PROPERTY_STATE_CHANGE_CHUNK_SIZE, Integer.toString(CHUNK_SIZE));
+      overrides.setProperty(PROPERTY_POLLER_MIN_INTERVAL, "50");
+      overrides.setProperty(PROPERTY_POLLER_MAX_INTERVAL, "200");
+      context = Fixtures.computeContext(server.getURI(), overrides);
+      nodeActions = context.utils().injector().getInstance(OpenNebulaBatchedNodeActions.class);
+   }
+
+   @BeforeMethod
+   public void reset() {
+      server.reset();
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      context.close();
+      server.stop();
+   }
+
+   public void testDestroySendsOneCallPerChunk() {
+      server.launch(server.imageIds().get(0), 2 * CHUNK_SIZE);
+      Set<NodeMetadata> destroyed = nodeActions.destroy(nodes());
+      assertEquals(destroyed.size(), 2 * CHUNK_SIZE);
+      for (NodeMetadata node : destroyed)
+         assertEquals(node.getStatus(), Status.TERMINATED);
+      assertEquals(server.calls().count("TerminateInstances"), 2);
+   }
+
+   public void testUnknownInstanceOnlyFailsItself() {
+      server.launch(server.imageIds().get(0), 2 * CHUNK_SIZE - 1);
+      List<NodeMetadata> nodes = nodes();
+      NodeMetadata unknown = NodeMetadataBuilder.fromNodeMetadata(nodes.get(0)).id(Region.DEFAULT + "/i-ffffffff")
+               .providerId("i-ffffffff").build();
+      try {
+         // first, so that the chunk it is sent in has to be split
+         nodeActions.destroy(ImmutableList.<NodeMetadata> builder().add(unknown).addAll(nodes).build());
+         fail("destroyed an unknown node");
+      } catch (NodeActionException e) {
+         assertEquals(e.getAction(), "destroy");
+         assertEquals(ids(e.getNodeErrors().keySet()), ImmutableSet.of(unknown.getId()));
+         assertEquals(ids(e.getSuccessfulNodes()), ids(nodes));
+      }
+   }
+
+   public void testSuspendAndResume() {
+      server.launch(server.imageIds().get(0), CHUNK_SIZE);
+      for (NodeMetadata node : nodeActions.suspend(nodes()))
+         assertEquals(node.getStatus(), Status.SUSPENDED);
+      assertEquals(server.calls().count("StopInstances"), 1);
+      for (NodeMetadata node : nodeActions.resume(nodes()))
+         assertEquals(node.getStatus(), Status.RUNNING);
+      assertEquals(server.calls().count("StartInstances"), 1);
+   }
+
+   private List<NodeMetadata> nodes() {
+      return Lists.<NodeMetadata> newArrayList(context.getComputeService().listNodesDetailsMatching(
+               Predicates.alwaysTrue()));
+   }
+
+   private static Set<String> ids(Iterable<? extends NodeMetadata> nodes) {
+      Set<String> ids = Sets.newHashSet();
+      for (NodeMetadata node : nodes)
+         ids.add(node.getId());
+      return ids;
+   }
+}
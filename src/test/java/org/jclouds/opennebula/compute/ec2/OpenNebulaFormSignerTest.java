@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+
+import org.jclouds.aws.filters.FormSigner;
+import org.jclouds.aws.filters.FormSigner.FormSignerV2;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.rest.annotations.ApiVersion;
+import org.jclouds.util.Strings2;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Checks that {@link OpenNebulaFormSigner} signs every form exactly as the stock
+ * {@link FormSignerV2} does.
+ */
+@Test(groups = "unit", testName = "OpenNebulaFormSignerTest")
+public class OpenNebulaFormSignerTest {
+
+   static final URI ENDPOINT = URI.create("http://localhost:4567/");
+
+   static final String DESCRIBE_INSTANCES = "Action=DescribeInstances&InstanceId.1=i-00001000"
+            + "&InstanceId.2=i-00001001";
+
+   static final String RUN_INSTANCES = "Action=RunInstances&ImageId=ami-00000001&MinCount=1&MaxCount=1"
+            + "&InstanceType=m1.small&KeyName=jclouds%23load&Placement.AvailabilityZone=default"
+            + "&SecurityGroup.1=jclouds%23load&TagSpecification.1.Tag.1.Key=jclouds-group"
+            + "&TagSpecification.1.Tag.1.Value=load&UserData="
+            + Strings2.urlEncode(BaseEncoding.base64().encode(Strings.repeat("#!/bin/sh\necho ok\n", 228)
+                     .getBytes(UTF_8)));
+
+   /**
+    * Exactly fills the parameter slots of the signer, which are then followed by every signing
+    * parameter, including the security token of session credentials.
+    */
+   static final String FULL_SLOTS = "Action=DescribeInstances" + instanceIds(15);
+
+   private Injector injector;
+   private String version;
+
+   @BeforeClass
+   public void setup() {
+      injector = Fixtures.injector(ENDPOINT);
+      // forms carry the configured version, as the generated requests do
+      version = "&Version=" + injector.getInstance(Key.get(String.class, ApiVersion.class));
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+   }
+
+   public void testDescribeInstances() {
+      assertSignedAlike(injector, DESCRIBE_INSTANCES + version);
+   }
+
+   public void testRunInstancesWithUserData() {
+      assertSignedAlike(injector, RUN_INSTANCES + version);
+   }
+
+   public void testFullParameterSlots() {
+      assertSignedAlike(injector, FULL_SLOTS + version);
+   }
+
+   public void testStaleVersionIsReplaced() {
+      assertSignedAlike(injector, DESCRIBE_INSTANCES + "&Version=2010-08-31");
+   }
+
+   public void testSessionCredentials() throws IOException {
+      Injector session = Fixtures.sessionInjector(ENDPOINT, "session+token");
+      try {
+         assertSignedAlike(session, FULL_SLOTS + version);
+      } finally {
+         session.getInstance(Closer.class).close();
+      }
+   }
+
+   private static void assertSignedAlike(Injector injector, String form) {
+      FormSigner stock = injector.getInstance(FormSignerV2.class);
+      FormSigner pooled = injector.getInstance(OpenNebulaFormSigner.class);
+      for (int attempt = 0; attempt < 3; attempt++) {
+         Map<String, String> expected = parameters(stock.filter(request(form)));
+         Map<String, String> actual = parameters(pooled.filter(request(form)));
+         // the timestamp may have rolled over between the two
+         if (!expected.get("Timestamp").equals(actual.get("Timestamp")))
+            continue;
+         assertEquals(actual, expected);
+         return;
+      }
+      fail("timestamp kept changing");
+   }
+
+   private static Map<String, String> parameters(HttpRequest signed) {
+      Map<String, String> parameters = Maps.newTreeMap();
+      for (Map.Entry<String, String> entry : Splitter.on('&').withKeyValueSeparator('=')
+               .split(signed.getPayload().getRawContent().toString()).entrySet())
+         parameters.put(Strings2.urlDecode(entry.getKey()), Strings2.urlDecode(entry.getValue()));
+      return parameters;
+   }
+
+   private static String instanceIds(int count) {
+      StringBuilder ids = new StringBuilder();
+      for (int i = 1; i <= count; i++)
+         ids.append("&InstanceId.").append(i).append("=i-").append(0x1000 + i);
+      return ids.toString();
+   }
+
+   static HttpRequest request(String form) {
+      return HttpRequest.builder().method("POST").endpoint(ENDPOINT)
+               .addHeader(HttpHeaders.HOST, ENDPOINT.getHost() + ":" + ENDPOINT.getPort()).payload(form).build();
+   }
+}
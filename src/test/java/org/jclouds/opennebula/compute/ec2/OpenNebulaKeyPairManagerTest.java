@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.functions.GroupNamingConvention;
+import org.jclouds.ec2.domain.KeyPair;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.ssh.SshKeys;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.inject.Injector;
+
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaKeyPairManagerTest")
+public class OpenNebulaKeyPairManagerTest {
+
+   static final int THREADS = 16;
+
+   private FakeEconeServer server;
+   private Injector injector;
+   private String publicKey;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      // requests overlap only if they take some time
+      server = new FakeEconeServer().latency(20, 20, TimeUnit.MILLISECONDS).start();
+      injector = Fixtures.injector(server.getURI(), Fixtures.unthrottled());
+      publicKey = SshKeys.generate().get("public");
+   }
+
+   @BeforeMethod
+   public void reset() {
+      server.reset();
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+      server.stop();
+   }
+
+   public void testConcurrentRequestsImportTheKeyOnce() throws Exception {
+      final OpenNebulaKeyPairManager keyPairs = newManager();
+      ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+      try {
+         List<Future<String>> keyNames = Lists.newArrayList();
+         for (int i = 0; i < THREADS; i++) {
+            keyNames.add(threads.submit(new Callable<String>() {
+               @Override
+               public String call() {
+                  return keyPairs.keyNameFor(Region.DEFAULT, publicKey);
+               }
+            }));
+         }
+         Set<String> distinct = Sets.newHashSet();
+         for (Future<String> keyName : keyNames)
+            distinct.add(keyName.get(10, TimeUnit.SECONDS));
+         assertEquals(distinct.size(), 1);
+         assertTrue(distinct.iterator().next().startsWith(OpenNebulaKeyPairManager.KEY_NAME_PREFIX));
+      } finally {
+         threads.shutdownNow();
+      }
+      Multiset<String> calls = server.calls();
+      assertEquals(calls.count("DescribeKeyPairs"), 1);
+      assertEquals(calls.count("ImportKeyPair"), 1);
+   }
+
+   public void testExistingKeyPairIsReused() {
+      String imported = newManager().keyNameFor(Region.DEFAULT, publicKey);
+      Multiset<String> before = server.calls();
+      // as another context using the same key would
+      OpenNebulaKeyPairManager keyPairs = newManager();
+      assertEquals(keyPairs.keyNameFor(Region.DEFAULT, publicKey), imported);
+      assertEquals(keyPairs.keyNameFor(Region.DEFAULT, publicKey), imported);
+      assertEquals(server.calls().count("DescribeKeyPairs") - before.count("DescribeKeyPairs"), 1);
+      assertEquals(server.calls().count("ImportKeyPair") - before.count("ImportKeyPair"), 0);
+   }
+
+   public void testInvalidatedKeyPairIsCheckedAgain() {
+      OpenNebulaKeyPairManager keyPairs = newManager();
+      String keyName = keyPairs.keyNameFor(Region.DEFAULT, publicKey);
+      keyPairs.invalidate(Region.DEFAULT, keyName);
+      assertEquals(keyPairs.keyNameFor(Region.DEFAULT, publicKey), keyName);
+      assertEquals(server.calls().count("DescribeKeyPairs"), 2);
+   }
+
+   public void testGroupKeyPairIsCreatedOncePerGroup() {
+      OpenNebulaKeyPairManager keyPairs = newManager();
+      KeyPair web = keyPairs.keyPairFor(Region.DEFAULT, "web");
+      assertNotNull(web.getKeyMaterial());
+      assertEquals(keyPairs.keyPairFor(Region.DEFAULT, "web"), web);
+      assertNotEquals(keyPairs.keyPairFor(Region.DEFAULT, "db").getKeyName(), web.getKeyName());
+      assertEquals(server.calls().count("CreateKeyPair"), 2);
+
+      keyPairs.invalidate(Region.DEFAULT, web.getKeyName());
+      assertNotEquals(keyPairs.keyPairFor(Region.DEFAULT, "web").getKeyName(), web.getKeyName());
+      assertEquals(server.calls().count("CreateKeyPair"), 3);
+   }
+
+   private OpenNebulaKeyPairManager newManager() {
+      return new OpenNebulaKeyPairManager(injector.getInstance(OpenNebulaComputeEC2Api.class),
+               injector.getInstance(GroupNamingConvention.Factory.class));
+   }
+}
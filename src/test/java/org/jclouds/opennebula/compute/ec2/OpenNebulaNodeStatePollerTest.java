@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MAX_INTERVAL;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_POLLER_MIN_INTERVAL;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jclouds.ec2.domain.InstanceState;
+import org.jclouds.ec2.domain.Reservation;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.lifecycle.Closer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Injector;
+
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaNodeStatePollerTest")
+public class OpenNebulaNodeStatePollerTest {
+
+   private FakeEconeServer server;
+   private Injector injector;
+   private OpenNebulaInstanceApi instanceApi;
+   private OpenNebulaNodeStatePoller poller;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      server = new FakeEconeServer().start();
+      Properties overrides = Fixtures.unthrottled();
+      overrides.setProperty(PROPERTY_POLLER_MIN_INTERVAL, "50");
+      overrides.setProperty(PROPERTY_POLLER_MAX_INTERVAL, "200");
+      injector = Fixtures.injector(server.getURI(), overrides);
+      instanceApi = injector.getInstance(OpenNebulaComputeEC2Api.class).getInstanceApiForRegion(Region.DEFAULT)
+               .get();
+      poller = injector.getInstance(OpenNebulaNodeStatePoller.class);
+   }
+
+   @BeforeMethod
+   public void reset() {
+      server.reset();
+      server.transition(0, TimeUnit.MILLISECONDS);
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+      server.stop();
+   }
+
+   public void testWaitersShareBatchedDescribeCalls() throws Exception {
+      server.transition(300, TimeUnit.MILLISECONDS);
+      server.launch(server.imageIds().get(0), 40);
+      List<String> ids = instanceIds();
+      instanceApi.terminateInstancesInRegion(Region.DEFAULT, ids.toArray(new String[ids.size()]));
+      int describedBefore = server.calls().count("DescribeInstances");
+
+      List<ListenableFuture<RunningInstance>> terminated = Lists.newArrayList();
+      for (String id : ids)
+         terminated.add(poller.awaitExisting(Region.DEFAULT + "/" + id, 10000, InstanceState.TERMINATED));
+      Futures.allAsList(terminated).get(10, TimeUnit.SECONDS);
+
+      int polls = server.calls().count("DescribeInstances") - describedBefore;
+      assertTrue(polls < ids.size() / 2, polls + " DescribeInstances calls for " + ids.size() + " instances");
+      assertEquals(poller.pending(), 0);
+   }
+
+   public void testInstanceGoneAfterTerminationCompletesWithNull() throws Exception {
+      server.launch(server.imageIds().get(0), 1);
+      String id = instanceIds().get(0);
+      instanceApi.terminateInstancesInRegion(Region.DEFAULT, id);
+      // no retention, so the instance is already purged when polled
+      assertNull(poller.awaitExisting(Region.DEFAULT + "/" + id, 10000, InstanceState.TERMINATED).get(10,
+               TimeUnit.SECONDS));
+   }
+
+   public void testTimesOutWhenTheStateIsNotReached() throws InterruptedException {
+      server.launch(server.imageIds().get(0), 1);
+      String id = instanceIds().get(0);
+      try {
+         poller.await(Region.DEFAULT + "/" + id, 300, InstanceState.STOPPED).get();
+         fail("a running instance was reported stopped");
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof TimeoutException, String.valueOf(e.getCause()));
+      }
+   }
+
+   public void testFailsWhenTerminatedWhileAwaitingAnotherState() throws InterruptedException {
+      server.transition(500, TimeUnit.MILLISECONDS);
+      server.launch(server.imageIds().get(0), 1);
+      String id = instanceIds().get(0);
+      instanceApi.terminateInstancesInRegion(Region.DEFAULT, id);
+      try {
+         poller.await(Region.DEFAULT + "/" + id, 10000, InstanceState.RUNNING).get();
+         fail("a terminated instance was reported running");
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof IllegalStateException, String.valueOf(e.getCause()));
+      }
+   }
+
+   private List<String> instanceIds() {
+      List<String> ids = Lists.newArrayList();
+      for (Reservation<? extends RunningInstance> reservation : instanceApi.describeInstancesInRegion(Region.DEFAULT))
+         for (RunningInstance instance : reservation)
+            ids.add(instance.getId());
+      return ids;
+   }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_METRICS_JMX;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT_FLOOR;
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.lifecycle.Closer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.inject.Injector;
+
+/**
+ * Each test uses an action of its own, as the buckets of an {@link OpenNebulaRateLimiter} are kept
+ * per action.
+ */
+@Test(groups = "unit", testName = "OpenNebulaRateLimiterTest")
+public class OpenNebulaRateLimiterTest {
+
+   private Injector injector;
+   private OpenNebulaRateLimiter limiter;
+
+   @BeforeClass
+   public void setup() {
+      Properties overrides = new Properties();
+      overrides.setProperty(PROPERTY_RATE_LIMIT, "10");
+      overrides.setProperty(PROPERTY_RATE_LIMIT_FLOOR, "1");
+      overrides.setProperty(PROPERTY_RATE_LIMIT + ".RunInstances", "2");
+      overrides.setProperty(PROPERTY_RATE_LIMIT + ".DescribeImages", "0");
+      overrides.setProperty(PROPERTY_METRICS_JMX, "false");
+      injector = Fixtures.injector(OpenNebulaFormSignerTest.ENDPOINT, overrides);
+      limiter = injector.getInstance(OpenNebulaRateLimiter.class);
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+   }
+
+   public void testRatesPerAction() {
+      assertEquals(limiter.getRate("DescribeInstances"), 10.0);
+      assertEquals(limiter.getRate("RunInstances"), 2.0);
+      assertEquals(limiter.getRate("DescribeImages"), 0.0);
+   }
+
+   public void testThrottlingHalvesTheRateOncePerSecond() {
+      limiter.onThrottled("StopInstances");
+      assertEquals(limiter.getRate("StopInstances"), 5.0);
+      // errors of requests that were already in flight
+      limiter.onThrottled("StopInstances");
+      limiter.onThrottled("StopInstances");
+      assertEquals(limiter.getRate("StopInstances"), 5.0);
+   }
+
+   public void testRateNeverDropsBelowTheFloor() throws InterruptedException {
+      limiter.onThrottled("RunInstances");
+      assertEquals(limiter.getRate("RunInstances"), 1.0);
+      TimeUnit.MILLISECONDS.sleep(1100);
+      limiter.onThrottled("RunInstances");
+      assertEquals(limiter.getRate("RunInstances"), 1.0);
+   }
+
+   public void testRateGrowsBackAfterASecondOfRequests() {
+      limiter.onThrottled("StartInstances");
+      assertEquals(limiter.getRate("StartInstances"), 5.0);
+      for (int i = 0; i < 5; i++)
+         limiter.acquire("StartInstances");
+      assertEquals(limiter.getRate("StartInstances"), 6.0);
+   }
+
+   public void testUnlimitedActionStaysUnlimited() {
+      limiter.onThrottled("DescribeImages");
+      limiter.acquire("DescribeImages");
+      assertEquals(limiter.getRate("DescribeImages"), 0.0);
+   }
+
+   public void testRequestsNotGeneratedFromTheApiShareOneBucket() {
+      assertEquals(OpenNebulaRateLimiter.actionOf(OpenNebulaFormSignerTest.request("Action=DescribeInstances")),
+               OpenNebulaRateLimiter.UNKNOWN_ACTION);
+   }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.GROUP_TAG;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_SSH_POOL_KEEP_ALIVE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.ComputeMetadata;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.domain.LoginCredentials;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.Statements;
+import org.jclouds.sshj.config.SshjSshClientModule;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs scripts on the nodes of a {@link FakeEconeServer} over a {@link FakeSshServer}, checking
+ * how the connections of the {@link OpenNebulaSshClientPool} are leased, released, discarded and
+ * swept. Each test works on a group of nodes of its own, each node with a login user of its own,
+ * so that the SSH server can tell their connections apart.
+ */
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaScriptRunnerTest")
+public class OpenNebulaScriptRunnerTest {
+
+   static final int NODES = 4;
+   static final long KEEP_ALIVE = 2000;
+
+   static final Statement HELLO = Statements.exec("hello");
+   static final Statement WORK = Statements.exec("work");
+   static final Statement DROP = Statements.exec("drop");
+
+   private FakeEconeServer econe;
+   private FakeSshServer ssh;
+   private ComputeServiceContext context;
+   private OpenNebulaComputeService compute;
+   private int groups;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      econe = new FakeEconeServer().address("127.0.0.1").start();
+      ssh = new FakeSshServer().start();
+      Properties overrides = Fixtures.unthrottled();
+      overrides.setProperty(PROPERTY_SSH_POOL_KEEP_ALIVE, Long.toString(KEEP_ALIVE));
+      // fail on a dropped connection instead of reconnecting
+      overrides.setProperty("jclouds.ssh.max-retries", "1");
+      context = Fixtures.computeContext(econe.getURI(), overrides, new SshjSshClientModule());
+      compute = OpenNebulaComputeService.class.cast(context.getComputeService());
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws InterruptedException {
+      context.close();
+      ssh.stop();
+      econe.stop();
+   }
+
+   public void testConnectionsAreReleasedForTheNextScript() throws Exception {
+      String group = launch();
+      Map<String, String> users = login(group);
+      for (int run = 0; run < 2; run++) {
+         for (ExecResponse response : compute.runScriptOnNodesMatching(inGroup(group), HELLO, options()).values())
+            assertEquals(response.getOutput().trim(), "hello");
+      }
+      for (String user : users.values())
+         assertEquals(ssh.opened(user), 1, user + " did not reuse its connection");
+   }
+
+   public void testResultsArriveInTheOrderNodesFinish() throws Exception {
+      String group = launch();
+      Map<String, String> users = login(group);
+      List<String> ids = ImmutableList.copyOf(users.keySet());
+      // the first node is the slowest to work
+      for (int i = 0; i < ids.size(); i++)
+         ssh.delay(users.get(ids.get(i)), (ids.size() - i) * 100, TimeUnit.MILLISECONDS);
+      List<String> finished = Lists.newArrayList();
+      for (ListenableFuture<Map.Entry<NodeMetadata, ExecResponse>> response : compute.submitScriptOnNodesMatching(
+               inGroup(group), WORK, options()))
+         finished.add(response.get().getValue().getOutput().trim());
+      assertEquals(finished, Lists.reverse(ImmutableList.copyOf(users.values())));
+   }
+
+   public void testLeasesAreExclusive() throws Exception {
+      String group = launch();
+      Map<String, String> users = login(group);
+      String id = users.keySet().iterator().next();
+      String user = users.get(id);
+      ssh.delay(user, 300, TimeUnit.MILLISECONDS);
+      ListenableFuture<ExecResponse> one = compute.submitScriptOnNode(id, WORK, options());
+      ListenableFuture<ExecResponse> other = compute.submitScriptOnNode(id, WORK, options());
+      one.get();
+      other.get();
+      assertEquals(ssh.opened(user), 2, "concurrent scripts shared a connection");
+      // connections beyond the idle maximum are closed once released
+      awaitOpen(user, 1, KEEP_ALIVE);
+   }
+
+   public void testFailedConnectionIsDiscarded() throws Exception {
+      String group = launch();
+      Map<String, String> users = login(group);
+      String id = users.keySet().iterator().next();
+      String user = users.get(id);
+      try {
+         compute.submitScriptOnNode(id, DROP, options()).get();
+         fail("script on a dropped connection succeeded");
+      } catch (ExecutionException expected) {
+      }
+      int opened = ssh.opened(user);
+      assertEquals(compute.submitScriptOnNode(id, HELLO, options()).get().getOutput().trim(), "hello");
+      assertEquals(ssh.opened(user), opened + 1, "the dropped connection was leased again");
+      awaitOpen(user, 1, KEEP_ALIVE);
+   }
+
+   public void testIdleConnectionsAreSweptAndOpenedAgain() throws Exception {
+      String group = launch();
+      Map<String, String> users = login(group);
+      compute.runScriptOnNodesMatching(inGroup(group), HELLO, options());
+      for (String user : users.values())
+         awaitOpen(user, 0, 3 * KEEP_ALIVE);
+      ssh.reset();
+      compute.runScriptOnNodesMatching(inGroup(group), HELLO, options());
+      for (String user : users.values())
+         assertEquals(ssh.opened(user), 1, user + " opened a connection other than the swept one");
+   }
+
+   public void testSudoPasswordIsWrittenToStandardInput() throws Exception {
+      String group = launch();
+      String id = login(group).keySet().iterator().next();
+      context.utils().credentialStore().put("node#" + id, LoginCredentials.builder().user("sudoer")
+               .password(FakeSshServer.PASSWORD).authenticateSudo(true).build());
+      ExecResponse response = compute.runScriptOnNode(id, HELLO, options().runAsRoot(true));
+      assertEquals(response.getExitStatus(), 0, response.getError());
+      assertTrue(response.getOutput().startsWith("sudo -S "), response.getOutput());
+      assertFalse(response.getOutput().contains(FakeSshServer.PASSWORD), "password on the command line");
+   }
+
+   @Test(expectedExceptions = IllegalArgumentException.class)
+   public void testScriptsInTheBackgroundAreRejected() {
+      String group = launch();
+      String id = login(group).keySet().iterator().next();
+      compute.submitScriptOnNode(id, HELLO, options().blockOnComplete(false));
+   }
+
+   private RunScriptOptions options() {
+      return RunScriptOptions.Builder.runAsRoot(false).blockOnPort(ssh.getPort(), 10);
+   }
+
+   /**
+    * Launches {@link #NODES} running nodes in a new group, and returns the name of the group.
+    */
+   private String launch() {
+      String group = "scripts-" + ++groups;
+      econe.launch(econe.imageIds().get(0), NODES, ImmutableMap.of(GROUP_TAG, group));
+      return group;
+   }
+
+   /**
+    * Stores a login of its own for each node of {@code group}, and returns the login user of each
+    * node id, in id order.
+    */
+   private Map<String, String> login(String group) {
+      Set<String> ids = Sets.newTreeSet();
+      for (ComputeMetadata node : compute.listNodesDetailsMatching(
+               OpenNebulaNodePredicates.<ComputeMetadata> inGroup(group)))
+         ids.add(node.getId());
+      Map<String, String> users = Maps.newLinkedHashMap();
+      for (String id : ids) {
+         String user = group + "-" + users.size();
+         context.utils().credentialStore().put("node#" + id,
+                  LoginCredentials.builder().user(user).password(FakeSshServer.PASSWORD).build());
+         users.put(id, user);
+      }
+      return users;
+   }
+
+   private static Predicate<NodeMetadata> inGroup(String group) {
+      return OpenNebulaNodePredicates.inGroup(group);
+   }
+
+   private void awaitOpen(String user, int open, long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (ssh.open(user) != open) {
+         assertTrue(System.currentTimeMillis() < deadline, user + " still has " + ssh.open(user)
+                  + " connections open instead of " + open);
+         Thread.sleep(50);
+      }
+   }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.jclouds.compute.domain.SecurityGroup;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.net.domain.IpPermission;
+import org.jclouds.net.domain.IpProtocol;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.inject.Injector;
+
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaSecurityGroupExtensionTest")
+public class OpenNebulaSecurityGroupExtensionTest {
+
+   static final List<String> CIDR_BLOCKS = ImmutableList.of("0.0.0.0/0", "10.0.0.0/8");
+
+   private FakeEconeServer server;
+   private Injector injector;
+   private OpenNebulaSecurityGroupApi securityGroupApi;
+   private OpenNebulaSecurityGroupExtension extension;
+   private Location region;
+   private int groups;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      server = new FakeEconeServer().start();
+      injector = Fixtures.injector(server.getURI(), Fixtures.unthrottled());
+      securityGroupApi = injector.getInstance(OpenNebulaComputeEC2Api.class).getSecurityGroupApiForRegion(
+               Region.DEFAULT).get();
+      extension = injector.getInstance(OpenNebulaSecurityGroupExtension.class);
+      region = new LocationBuilder().scope(LocationScope.REGION).id(Region.DEFAULT).description(Region.DEFAULT)
+               .build();
+   }
+
+   @BeforeMethod
+   public void reset() {
+      server.reset();
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+      server.stop();
+   }
+
+   public void testSetIpPermissionsAuthorizesEveryRuleInOneCall() {
+      SecurityGroup group = newGroup();
+      List<IpPermission> rules = rules(8000, 8003, CIDR_BLOCKS);
+      SecurityGroup configured = extension.setIpPermissions(group, rules);
+      assertEquals(server.calls().count("AuthorizeSecurityGroupIngress"), 1);
+      assertEquals(sources(configured.getIpPermissions()), sources(rules));
+      assertEquals(sourcesOnServer(group), sources(rules));
+   }
+
+   public void testSettingTheSameRulesMakesNoCall() {
+      List<IpPermission> rules = rules(8000, 8003, CIDR_BLOCKS);
+      SecurityGroup configured = extension.setIpPermissions(newGroup(), rules);
+      Multiset<String> before = server.calls();
+      extension.setIpPermissions(configured, rules);
+      extension.addIpPermissions(configured, rules);
+      assertEquals(server.calls(), before);
+   }
+
+   public void testSetIpPermissionsRevokesAndAuthorizesTheDifference() {
+      SecurityGroup group = extension.setIpPermissions(newGroup(), rules(8000, 8003, CIDR_BLOCKS));
+      List<IpPermission> changed = Lists.newArrayList(rules(8001, 8002, CIDR_BLOCKS));
+      changed.addAll(rules(9000, 9000, CIDR_BLOCKS));
+      Multiset<String> before = server.calls();
+      SecurityGroup configured = extension.setIpPermissions(group, changed);
+      Multiset<String> calls = server.calls();
+      assertEquals(calls.count("RevokeSecurityGroupIngress") - before.count("RevokeSecurityGroupIngress"), 1);
+      assertEquals(calls.count("AuthorizeSecurityGroupIngress") - before.count("AuthorizeSecurityGroupIngress"), 1);
+      assertEquals(sources(configured.getIpPermissions()), sources(changed));
+      assertEquals(sourcesOnServer(group), sources(changed));
+   }
+
+   public void testAddIpPermissionsOnlyAuthorizesMissingSources() {
+      SecurityGroup group = extension.setIpPermissions(newGroup(), rules(8000, 8000, CIDR_BLOCKS.subList(0, 1)));
+      List<IpPermission> rules = rules(8000, 8000, CIDR_BLOCKS);
+      extension.addIpPermissions(group, rules);
+      // a call also carrying the authorized block would have been rejected, and retried
+      assertEquals(server.calls().count("AuthorizeSecurityGroupIngress"), 2);
+      assertEquals(sourcesOnServer(group), sources(rules));
+   }
+
+   public void testStaleStateIsDescribedAgain() {
+      SecurityGroup group = newGroup();
+      List<IpPermission> rules = rules(8000, 8000, CIDR_BLOCKS.subList(0, 1));
+      // authorized behind the back of the extension
+      securityGroupApi.authorizeSecurityGroupIngressInRegion(Region.DEFAULT, group.getName(), IpProtocol.TCP, 8000,
+               8000, CIDR_BLOCKS.get(0));
+      SecurityGroup configured = extension.addIpPermissions(group, rules);
+      assertEquals(sources(configured.getIpPermissions()), sources(rules));
+      assertEquals(sourcesOnServer(group), sources(rules));
+   }
+
+   private SecurityGroup newGroup() {
+      return extension.createSecurityGroup("group-" + ++groups, region);
+   }
+
+   private static List<IpPermission> rules(int fromPort, int toPort, Iterable<String> cidrBlocks) {
+      List<IpPermission> rules = Lists.newArrayList();
+      for (int port = fromPort; port <= toPort; port++)
+         rules.add(IpPermission.builder().ipProtocol(IpProtocol.TCP).fromPort(port).toPort(port)
+                  .cidrBlocks(cidrBlocks).build());
+      return rules;
+   }
+
+   private Set<String> sourcesOnServer(SecurityGroup group) {
+      return sources(Iterables.getOnlyElement(securityGroupApi.describeSecurityGroupsInRegion(Region.DEFAULT,
+               group.getName())));
+   }
+
+   /**
+    * One entry per protocol, port range and CIDR block, however the rules are grouped.
+    */
+   private static Set<String> sources(Iterable<IpPermission> rules) {
+      Set<String> sources = Sets.newHashSet();
+      for (IpPermission rule : rules) {
+         for (String cidrBlock : rule.getCidrBlocks())
+            sources.add(rule.getIpProtocol() + ":" + rule.getFromPort() + "-" + rule.getToPort() + ":" + cidrBlock);
+      }
+      return sources;
+   }
+}
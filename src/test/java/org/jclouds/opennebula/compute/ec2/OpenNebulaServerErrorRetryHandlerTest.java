@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RATE_LIMIT;
+import static org.jclouds.opennebula.compute.ec2.OpenNebulaComputeEC2Constants.PROPERTY_RETRY_MAX_DELAY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.jclouds.Constants;
+import org.jclouds.ec2.features.SecurityGroupApi;
+import org.jclouds.lifecycle.Closer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.inject.Injector;
+
+@Test(groups = "unit", singleThreaded = true, testName = "OpenNebulaServerErrorRetryHandlerTest")
+public class OpenNebulaServerErrorRetryHandlerTest {
+
+   private FakeEconeServer server;
+   private Injector injector;
+   private OpenNebulaComputeEC2Api api;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      server = new FakeEconeServer().start();
+      Properties overrides = Fixtures.unthrottled();
+      overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, "20");
+      overrides.setProperty(Constants.PROPERTY_RETRY_DELAY_START, "10");
+      overrides.setProperty(PROPERTY_RETRY_MAX_DELAY, "40");
+      injector = Fixtures.injector(server.getURI(), overrides);
+      api = injector.getInstance(OpenNebulaComputeEC2Api.class);
+   }
+
+   @BeforeMethod
+   public void reset() {
+      server.reset();
+      server.errorRate(0);
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+      server.stop();
+   }
+
+   public void testServiceUnavailableIsRetriedAndThrottlesTheAction() {
+      server.errorRate(0.5);
+      for (int i = 0; i < 20; i++)
+         api.getInstanceApiForRegion(Region.DEFAULT).get().describeInstancesInRegion(Region.DEFAULT);
+      assertTrue(server.calls().count("DescribeInstances") > 20, "no request failed: " + server.calls());
+      double configured = Double.parseDouble(Fixtures.unthrottled().getProperty(PROPERTY_RATE_LIMIT));
+      assertTrue(injector.getInstance(OpenNebulaRateLimiter.class).getRate("DescribeInstances") < configured);
+   }
+
+   public void testClientErrorIsNotRetried() {
+      SecurityGroupApi securityGroups = api.getSecurityGroupApiForRegion(Region.DEFAULT).get();
+      securityGroups.createSecurityGroupInRegion(Region.DEFAULT, "duplicate", "duplicate");
+      try {
+         securityGroups.createSecurityGroupInRegion(Region.DEFAULT, "duplicate", "duplicate");
+         fail("created a security group twice");
+      } catch (IllegalStateException expected) {
+      }
+      assertEquals(server.calls().count("CreateSecurityGroup"), 2);
+   }
+
+   public void testDelayIsRandomisedBelowAnExponentialCeiling() {
+      OpenNebulaServerErrorRetryHandler handler = injector.getInstance(OpenNebulaServerErrorRetryHandler.class);
+      long[] ceilings = { 10, 20, 40, 40, 40 };
+      for (int failures = 1; failures <= ceilings.length; failures++) {
+         for (int i = 0; i < 100; i++) {
+            long delay = handler.delay(failures);
+            assertTrue(delay >= 0 && delay <= ceilings[failures - 1], failures + " failures: " + delay);
+         }
+      }
+      // large failure counts must not overflow the shift
+      assertTrue(handler.delay(Integer.MAX_VALUE) <= 40);
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.jclouds.compute.config.ComputeServiceProperties.TEMPLATE;
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.OsFamily;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.internal.TemplateImpl;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.ec2.compute.options.EC2TemplateOptions;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+/**
+ * Checks that {@link OpenNebulaTemplateBuilder} resolves the same template as filtering and
+ * sorting every image and hardware combination of the catalog, and that the {@code jclouds.template}
+ * spec is applied when no criteria are given.
+ */
+@Test(groups = "unit", testName = "OpenNebulaTemplateBuilderTest")
+public class OpenNebulaTemplateBuilderTest {
+
+   static final String SPEC = "osFamily=UBUNTU,os64Bit=true,minRam=1024";
+
+   private static final Ordering<Hardware> SMALLEST = new Ordering<Hardware>() {
+      @Override
+      public int compare(Hardware left, Hardware right) {
+         return ComparisonChain.start()
+                  .compare(OpenNebulaTemplateIndex.cores(left), OpenNebulaTemplateIndex.cores(right))
+                  .compare(left.getRam(), right.getRam())
+                  .compare(OpenNebulaTemplateIndex.disk(left), OpenNebulaTemplateIndex.disk(right))
+                  .compare(left.getId(), right.getId()).result();
+      }
+   };
+
+   private static final Ordering<Template> PREFERRED = new Ordering<Template>() {
+      @Override
+      public int compare(Template left, Template right) {
+         return ComparisonChain.start().compare(left.getHardware(), right.getHardware(), SMALLEST)
+                  .compare(left.getImage(), right.getImage(), OpenNebulaTemplateIndex.IMAGE_PREFERENCE).result();
+      }
+   };
+
+   private FixtureEndpoint endpoint;
+   private ComputeServiceContext context;
+   private OpenNebulaComputeService compute;
+   private OpenNebulaCatalogCache catalog;
+
+   @BeforeClass
+   public void setup() throws IOException {
+      endpoint = new FixtureEndpoint(ImmutableMap.of(
+               "DescribeImages", Fixtures.distinctImages(100),
+               "DescribeAvailabilityZones", Fixtures.bytes(Fixtures.AVAILABILITY_ZONES))).start();
+      Properties overrides = Fixtures.unthrottled();
+      overrides.setProperty(TEMPLATE, SPEC);
+      context = Fixtures.computeContext(endpoint.getURI(), overrides);
+      compute = OpenNebulaComputeService.class.cast(context.getComputeService());
+      catalog = context.utils().injector().getInstance(OpenNebulaCatalogCache.class);
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() {
+      context.close();
+      endpoint.stop();
+   }
+
+   public void testSameAsScanning() {
+      Template indexed = compute.templateBuilder().osFamily(OsFamily.UBUNTU).os64Bit(true).minRam(1024).build();
+      Template scanned = scan(catalog);
+      assertEquals(indexed.getImage().getId(), scanned.getImage().getId());
+      assertEquals(indexed.getHardware().getId(), scanned.getHardware().getId());
+   }
+
+   public void testDefaultTemplateFromSpec() {
+      Template explicit = compute.templateBuilder().osFamily(OsFamily.UBUNTU).os64Bit(true).minRam(1024).build();
+      Template fromSpec = compute.templateBuilder().build();
+      assertEquals(fromSpec.getImage().getId(), explicit.getImage().getId());
+      assertEquals(fromSpec.getHardware().getId(), explicit.getHardware().getId());
+   }
+
+   /**
+    * The template matching {@link #SPEC} in the first zone of {@code catalog}, found by building
+    * every image and hardware combination and keeping the smallest hardware with the preferred
+    * image.
+    */
+   static Template scan(OpenNebulaCatalogCache catalog) {
+      Location location = null;
+      for (Location candidate : catalog.listLocations()) {
+         if (candidate.getScope() == LocationScope.ZONE) {
+            location = candidate;
+            break;
+         }
+      }
+      String region = location.getParent().getId();
+      List<Template> combinations = Lists.newArrayList();
+      for (Hardware hardware : catalog.listHardwareProfiles()) {
+         if (hardware.getRam() < 1024)
+            continue;
+         for (Image image : catalog.listImages()) {
+            if (image.getLocation() != null && image.getLocation().getId().equals(region)
+                     && image.getOperatingSystem().getFamily() == OsFamily.UBUNTU
+                     && image.getOperatingSystem().is64Bit() && hardware.supportsImage().apply(image))
+               combinations.add(new TemplateImpl(image, hardware, location, new EC2TemplateOptions()));
+         }
+      }
+      return PREFERRED.min(combinations);
+   }
+}
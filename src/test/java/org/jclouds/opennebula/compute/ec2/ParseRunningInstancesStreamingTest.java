@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.List;
+
+import org.jclouds.date.DateService;
+import org.jclouds.ec2.domain.Attachment;
+import org.jclouds.ec2.domain.BlockDevice;
+import org.jclouds.ec2.domain.Hypervisor;
+import org.jclouds.ec2.domain.RunningInstance;
+import org.jclouds.ec2.features.InstanceApi;
+import org.jclouds.ec2.xml.DescribeInstancesResponseHandler;
+import org.jclouds.http.functions.ParseSax;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.reflect.Invocation;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.reflect.Invokable;
+import com.google.inject.Injector;
+
+/**
+ * Checks that the streaming parser returns the same instances as the stock SAX handler, and the
+ * attributes only it exposes.
+ */
+@Test(groups = "unit", testName = "ParseRunningInstancesStreamingTest")
+public class ParseRunningInstancesStreamingTest {
+
+   static final String REGION = "opennebula";
+   static final String BLOCK_DEVICES = "ec2_describe_instances_block_devices.xml";
+
+   private Injector injector;
+   private ParseSax.Factory sax;
+   private ParseRunningInstancesStreaming streaming;
+   private DateService dateService;
+
+   @BeforeClass
+   public void setup() {
+      injector = Fixtures.injector(URI.create("http://localhost:4567/"), Fixtures.unthrottled());
+      sax = injector.getInstance(ParseSax.Factory.class);
+      streaming = injector.getInstance(ParseRunningInstancesStreaming.class);
+      dateService = injector.getInstance(DateService.class);
+   }
+
+   @AfterClass(alwaysRun = true)
+   public void tearDown() throws IOException {
+      injector.getInstance(Closer.class).close();
+   }
+
+   public void testSameAsStockHandler() throws Exception {
+      assertSameAsStockHandler(Fixtures.bytes(Fixtures.INSTANCES));
+   }
+
+   public void testSameAsStockHandlerWithBlockDevices() throws Exception {
+      assertSameAsStockHandler(Fixtures.bytes(BLOCK_DEVICES));
+   }
+
+   public void testSameAsStockHandlerWithManyReservations() throws Exception {
+      assertSameAsStockHandler(Fixtures.distinctInstances(1000));
+   }
+
+   public void testBlockDevices() throws IOException {
+      List<RunningInstance> instances = streamed(Fixtures.bytes(BLOCK_DEVICES));
+      assertEquals(instances.get(0).getEbsBlockDevices(), ImmutableMap.of(
+               "/dev/vda", new BlockDevice("vol-00000101", Attachment.Status.ATTACHED,
+                        dateService.iso8601DateParse("2016-03-14T09:26:58.000Z"), true),
+               "/dev/vdb", new BlockDevice("vol-00000102", Attachment.Status.ATTACHED,
+                        dateService.iso8601DateParse("2016-03-14T09:27:04.000Z"), false),
+               "/dev/vdc", new BlockDevice("vol-00000103", Attachment.Status.ATTACHING,
+                        dateService.iso8601DateParse("2016-03-14T09:31:40.000Z"), false)));
+      assertEquals(instances.get(1).getEbsBlockDevices().keySet(), ImmutableSet.of("/dev/vda", "/dev/vdb"));
+      assertEquals(instances.get(2).getEbsBlockDevices(), ImmutableMap.of());
+      assertEquals(instances.get(2).getHypervisor(), Hypervisor.XEN);
+   }
+
+   public void testWithoutBlockDevicesOrHypervisor() throws IOException {
+      RunningInstance instance = streamed(Fixtures.bytes(Fixtures.INSTANCES)).get(0);
+      assertEquals(instance.getEbsBlockDevices(), ImmutableMap.of());
+      assertNull(instance.getHypervisor());
+   }
+
+   public void testDescribedAttributes() throws IOException {
+      StreamedInstances stream = streaming.stream(new ByteArrayInputStream(Fixtures.bytes(BLOCK_DEVICES)), REGION);
+      List<DescribedInstance> described;
+      try {
+         described = Lists.newArrayList(stream.described());
+      } finally {
+         stream.close();
+      }
+      assertEquals(described.size(), 3);
+
+      DescribedInstance web = described.get(0);
+      assertEquals(web.getInstance().getId(), "i-0000001a");
+      assertEquals(web.getReservationId(), "r-7a1d2c3e");
+      assertEquals(web.getOwnerId(), "3f1c0a9e5b2d4c6a8e7f9b1d2c3a4e5f");
+      assertEquals(web.getMonitoringState(), "enabled");
+      assertNull(web.getSpotInstanceRequestId());
+      assertNull(web.getIamInstanceProfileArn());
+      assertEquals(described.get(1).getReservationId(), "r-7a1d2c3e");
+      assertEquals(described.get(1).getMonitoringState(), "disabled");
+
+      DescribedInstance batch = described.get(2);
+      assertEquals(batch.getReservationId(), "r-9b4e6f21");
+      assertEquals(batch.getOwnerId(), "8d2e4f6a1b3c5d7e9f0a2b4c6d8e0f1a");
+      assertEquals(batch.getSpotInstanceRequestId(), "sir-4d2a8b1c");
+      assertEquals(batch.getIamInstanceProfileArn(), "arn:aws:iam::123456789012:instance-profile/batch");
+      assertEquals(batch.getIamInstanceProfileId(), "AIPAJ3XN5Q2LZ7EXAMPLE");
+   }
+
+   @Test(expectedExceptions = IllegalStateException.class)
+   public void testIteratedOnce() throws IOException {
+      StreamedInstances stream = streaming.stream(new ByteArrayInputStream(Fixtures.bytes(BLOCK_DEVICES)), REGION);
+      try {
+         Iterables.size(stream.described());
+         Iterables.size(stream);
+      } finally {
+         stream.close();
+      }
+   }
+
+   private void assertSameAsStockHandler(byte[] fixture) throws Exception {
+      DescribeInstancesResponseHandler handler = injector.getInstance(DescribeInstancesResponseHandler.class);
+      List<RunningInstance> stock = Lists.newArrayList(Iterables.concat(sax.create(
+               handler.setContext(describeInstancesRequest())).parse(new ByteArrayInputStream(fixture))));
+      List<RunningInstance> streamed = streamed(fixture);
+      assertEquals(streamed.size(), stock.size());
+      for (int i = 0; i < stock.size(); i++) {
+         // toString also covers the fields equals leaves out
+         assertEquals(streamed.get(i), stock.get(i));
+         assertEquals(streamed.get(i).toString(), stock.get(i).toString());
+      }
+   }
+
+   private List<RunningInstance> streamed(byte[] fixture) {
+      StreamedInstances stream = streaming.stream(new ByteArrayInputStream(fixture), REGION);
+      try {
+         return Lists.newArrayList(stream);
+      } finally {
+         stream.close();
+      }
+   }
+
+   static GeneratedHttpRequest describeInstancesRequest() throws NoSuchMethodException {
+      return request(InstanceApi.class.getMethod("describeInstancesInRegion", String.class, String[].class));
+   }
+
+   /**
+    * The stock handlers take the region from the request that produced the response.
+    */
+   static GeneratedHttpRequest request(Method method) {
+      return GeneratedHttpRequest.builder()
+               .method("POST")
+               .endpoint("http://localhost:4567/")
+               .invocation(Invocation.create(Invokable.from(method), ImmutableList.<Object> of(REGION)))
+               .build();
+   }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.opennebula.compute.ec2;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+@Test(groups = "unit", testName = "SingleFlightInvocationHandlerTest")
+public class SingleFlightInvocationHandlerTest {
+
+   static final long TIMEOUT_SECONDS = 10;
+
+   interface Things {
+      String describeThing(String id);
+
+      String createThing(String id);
+   }
+
+   public void testConcurrentIdenticalDescribeCallsShareOneRequest() throws Exception {
+      BlockingThings api = new BlockingThings();
+      Things things = SingleFlightInvocationHandler.coalescing(Things.class, api);
+      FutureTask<String> first = start(describe(things, "a"));
+      assertTrue(api.entered.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      List<FutureTask<String>> others = Lists.newArrayList();
+      List<Thread> waiting = Lists.newArrayList();
+      for (int i = 0; i < 7; i++) {
+         FutureTask<String> other = new FutureTask<String>(describe(things, "a"));
+         Thread thread = new Thread(other);
+         thread.start();
+         others.add(other);
+         waiting.add(thread);
+      }
+      awaitWaiting(waiting);
+      api.release.countDown();
+
+      String result = first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      for (FutureTask<String> other : others)
+         assertSame(other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), result);
+      assertEquals(api.calls.get(), 1);
+   }
+
+   public void testCallsWithDifferentArgumentsAreNotShared() throws Exception {
+      BlockingThings api = new BlockingThings();
+      Things things = SingleFlightInvocationHandler.coalescing(Things.class, api);
+      FutureTask<String> a = start(describe(things, "a"));
+      FutureTask<String> b = start(describe(things, "b"));
+      assertTrue(api.entered.tryAcquire(2, TIMEOUT_SECONDS, TimeUnit.SECONDS), "calls were not made concurrently");
+      api.release.countDown();
+      assertTrue(a.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).startsWith("a"));
+      assertTrue(b.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).startsWith("b"));
+   }
+
+   public void testWritesAreNotShared() throws Exception {
+      BlockingThings api = new BlockingThings();
+      final Things things = SingleFlightInvocationHandler.coalescing(Things.class, api);
+      Callable<String> create = new Callable<String>() {
+         @Override
+         public String call() {
+            return things.createThing("a");
+         }
+      };
+      FutureTask<String> one = start(create);
+      FutureTask<String> other = start(create);
+      assertTrue(api.entered.tryAcquire(2, TIMEOUT_SECONDS, TimeUnit.SECONDS), "calls were not made concurrently");
+      api.release.countDown();
+      one.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      assertEquals(api.calls.get(), 2);
+   }
+
+   public void testWaitingCallersReceiveTheException() throws Exception {
+      BlockingThings api = new BlockingThings();
+      api.failure = new IllegalStateException("econe-server is down");
+      Things things = SingleFlightInvocationHandler.coalescing(Things.class, api);
+      FutureTask<String> first = start(describe(things, "a"));
+      assertTrue(api.entered.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      FutureTask<String> other = new FutureTask<String>(describe(things, "a"));
+      Thread thread = new Thread(other);
+      thread.start();
+      awaitWaiting(Lists.newArrayList(thread));
+      api.release.countDown();
+
+      for (FutureTask<String> call : Lists.newArrayList(first, other)) {
+         try {
+            call.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("expected the failure of the shared call");
+         } catch (ExecutionException e) {
+            assertSame(e.getCause(), api.failure);
+         }
+      }
+      assertEquals(api.calls.get(), 1);
+   }
+
+   public void testCompletedCallsAreNotCached() {
+      BlockingThings api = new BlockingThings();
+      api.release.countDown();
+      Things things = SingleFlightInvocationHandler.coalescing(Things.class, api);
+      things.describeThing("a");
+      things.describeThing("a");
+      assertEquals(api.calls.get(), 2);
+   }
+
+   private static Callable<String> describe(final Things things, final String id) {
+      return new Callable<String>() {
+         @Override
+         public String call() {
+            return things.describeThing(id);
+         }
+      };
+   }
+
+   private static FutureTask<String> start(Callable<String> call) {
+      FutureTask<String> task = new FutureTask<String>(call);
+      new Thread(task).start();
+      return task;
+   }
+
+   /**
+    * Waits until every thread is parked, which they only are while waiting for the shared call.
+    */
+   private static void awaitWaiting(List<Thread> threads) {
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+      for (Thread thread : threads) {
+         while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline, thread + " is not waiting: " + thread.getState());
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   private static final class BlockingThings implements Things {
+      private final AtomicInteger calls = new AtomicInteger();
+      private final Semaphore entered = new Semaphore(0);
+      private final CountDownLatch release = new CountDownLatch(1);
+      private volatile RuntimeException failure;
+
+      @Override
+      public String describeThing(String id) {
+         return call(id);
+      }
+
+      @Override
+      public String createThing(String id) {
+         return call(id);
+      }
+
+      private String call(String id) {
+         int call = calls.incrementAndGet();
+         entered.release();
+         Uninterruptibles.awaitUninterruptibly(release);
+         if (failure != null)
+            throw failure;
+         return id + "-" + call;
+      }
+   }
+}